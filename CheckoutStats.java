@@ -0,0 +1,80 @@
+/**
+ * What a checkout did and how long it took.
+ */
+public class CheckoutStats {
+
+    /**
+     * Gets told about each file as a checkout restores it. Files are restored on
+     * several threads at once, so this has to be thread safe.
+     */
+    public interface Listener {
+        /**
+         * @param filesDone    - The number of files checked so far
+         * @param filesTotal   - The number of files in the commit; a sparse
+         *                     checkout only knows the files found so far
+         * @param bytesWritten - The number of bytes restored so far
+         */
+        void progress(int filesDone, int filesTotal, long bytesWritten);
+    }
+
+    private final int filesRestored;
+    private final int filesSkipped;
+    private final int filesDeleted;
+    private final long bytesWritten;
+    private final long nanos;
+
+    public CheckoutStats(int filesRestored, int filesSkipped, int filesDeleted, long bytesWritten, long nanos) {
+        this.filesRestored = filesRestored;
+        this.filesSkipped = filesSkipped;
+        this.filesDeleted = filesDeleted;
+        this.bytesWritten = bytesWritten;
+        this.nanos = nanos;
+    }
+
+    /**
+     * @return The number of files written to the working directory
+     */
+    public int getFilesRestored() {
+        return filesRestored;
+    }
+
+    /**
+     * @return The number of files left alone because they already matched
+     */
+    public int getFilesSkipped() {
+        return filesSkipped;
+    }
+
+    /**
+     * @return The number of files removed because the commit doesn't have them
+     */
+    public int getFilesDeleted() {
+        return filesDeleted;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return The wall clock time of the checkout in nanoseconds
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    public double getFilesPerSecond() {
+        return nanos == 0 ? 0 : filesRestored * 1e9 / nanos;
+    }
+
+    public double getBytesPerSecond() {
+        return nanos == 0 ? 0 : bytesWritten * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d restored, %d skipped, %d deleted, %d bytes in %.1f ms (%.0f files/s, %.1f MB/s)",
+                filesRestored, filesSkipped, filesDeleted, bytesWritten, nanos / 1e6, getFilesPerSecond(),
+                getBytesPerSecond() / (1024 * 1024));
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Splits a stream of bytes into content-defined chunks, so that an edit to a
+ * large file only changes the chunks around the edit and the rest can be shared
+ * with the file's earlier versions.
+ *
+ * A gear hash rolls over the bytes: each byte shifts the hash left and adds a
+ * random value for that byte, so the hash only depends on the last 64 bytes. A
+ * chunk ends wherever the hash, taken as unsigned, falls below a threshold,
+ * which depends only on the nearby content and not on where in the file it is. Chunks are kept
+ * between {@link #MIN_SIZE} and {@link #MAX_SIZE} bytes and average about
+ * {@link #AVERAGE_SIZE}.
+ */
+public class Chunker {
+
+    /**
+     * Receives each chunk as it is cut
+     */
+    public interface Sink {
+        /**
+         * @param data   - A buffer holding the chunk, reused for the next one
+         * @param length - The length of the chunk
+         * @throws IOException
+         */
+        void chunk(byte[] data, int length) throws IOException;
+    }
+
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int AVERAGE_SIZE = 64 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+
+    // past the minimum, a boundary turns up every AVERAGE_SIZE - MIN_SIZE bytes
+    // or so; the high bits decide, since they depend on all of the last 64 bytes
+    private static final long THRESHOLD = Long.divideUnsigned(-1L, AVERAGE_SIZE - MIN_SIZE);
+
+    // fixed, since changing it would change every chunk boundary
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x6a09e667f3bcc908L);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    private final Sink sink;
+    private final byte[] chunk = new byte[MAX_SIZE];
+    private int length;
+    private long hash;
+
+    /**
+     * @param sink - Where to send the chunks
+     */
+    public Chunker(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Adds the remaining bytes of a buffer, sending every chunk they complete.
+     *
+     * @param buffer - The next bytes of the stream
+     * @throws IOException
+     */
+    public void update(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            // the first bytes of a chunk can't end it, so they are copied without hashing
+            if (length < MIN_SIZE - 64) {
+                int n = Math.min(buffer.remaining(), MIN_SIZE - 64 - length);
+                buffer.get(chunk, length, n);
+                length += n;
+                continue;
+            }
+            byte b = buffer.get();
+            chunk[length++] = b;
+            hash = (hash << 1) + GEAR[b & 0xFF];
+            if ((length >= MIN_SIZE && Long.compareUnsigned(hash, THRESHOLD) < 0) || length == MAX_SIZE)
+                cut();
+        }
+    }
+
+    /**
+     * Sends whatever is left as the last chunk.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (length > 0)
+            cut();
+    }
+
+    private void cut() throws IOException {
+        sink.chunk(chunk, length);
+        length = 0;
+        hash = 0;
+    }
+}
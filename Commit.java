@@ -0,0 +1,131 @@
+import java.io.*;
+
+/**
+ * A parsed commit object. A commit found in the commit-graph knows its tree and
+ * parent from the graph, and only reads its object the first time its author,
+ * date or message is asked for.
+ */
+public class Commit {
+
+    private final String hash;
+    private final String tree;
+    private final String parent;
+    private final String author;
+    private final String date;
+    private final String message;
+
+    // where the rest of a commit from the commit-graph is read from
+    private final ObjectDatabase database;
+    private volatile Commit parsed;
+
+    public Commit(String hash, String tree, String parent, String author, String date, String message) {
+        this.hash = hash;
+        this.tree = tree;
+        this.parent = parent;
+        this.author = author;
+        this.date = date;
+        this.message = message;
+        this.database = null;
+    }
+
+    /**
+     * Makes a commit from a row of the commit-graph without reading its object.
+     *
+     * @param hash     - The hash of the commit
+     * @param tree     - The hash of its tree
+     * @param parent   - The hash of its parent, or null for the first commit
+     * @param database - The object database to read the rest from
+     */
+    Commit(String hash, String tree, String parent, ObjectDatabase database) {
+        this.hash = hash;
+        this.tree = tree;
+        this.parent = parent;
+        this.author = null;
+        this.date = null;
+        this.message = null;
+        this.database = database;
+    }
+
+    /**
+     * @return The commit with its author, date and message, read from its object
+     *         the first time
+     */
+    private Commit parsed() {
+        if (database == null)
+            return this;
+        Commit commit = parsed;
+        if (commit == null) {
+            try {
+                parsed = commit = database.getCommit(hash);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return commit;
+    }
+
+    /**
+     * Parses the "tree", "parent", "author", "date" and "message" lines of a
+     * commit.
+     *
+     * @param hash - The hash of the commit
+     * @param data - The contents of the commit object
+     * @return The parsed commit
+     */
+    public static Commit parse(String hash, byte[] data) {
+        String tree = null;
+        String parent = null;
+        String author = "";
+        String date = "";
+        String message = "";
+        for (String line : new String(data).split("\n")) {
+            if (line.startsWith("tree "))
+                tree = line.substring(5).trim();
+            else if (line.startsWith("parent "))
+                parent = line.length() >= 47 ? line.substring(7, 47) : null;
+            else if (line.startsWith("author "))
+                author = line.substring(7);
+            else if (line.startsWith("date "))
+                date = line.substring(5);
+            else if (line.startsWith("message "))
+                message = line.substring(8);
+        }
+        return new Commit(hash, tree, parent, author, date, message);
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return The hash of the commit's root tree
+     */
+    public String getTree() {
+        return tree;
+    }
+
+    /**
+     * @return The hash of the parent commit, or null for the first commit
+     */
+    public String getParent() {
+        return parent;
+    }
+
+    public String getAuthor() {
+        return parsed().author;
+    }
+
+    public String getDate() {
+        return parsed().date;
+    }
+
+    public String getMessage() {
+        return parsed().message;
+    }
+
+    @Override
+    public String toString() {
+        return "commit " + hash + "\nauthor " + getAuthor() + "\ndate " + getDate() + "\n\n    " + getMessage()
+                + "\n";
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * The commit-graph file (git/commit-graph): a table of every commit reachable
+ * when it was written, so history can be walked without reading any commit
+ * objects.
+ *
+ * The file is "CGPH", a version and a commit count, then a fan-out table of how
+ * many commits start with each byte, then one fixed-width row per commit sorted
+ * by hash: the commit's hash, its tree's hash, the row of its parent (-1 for
+ * none) and its generation number (1 for a commit with no parent, otherwise one
+ * more than its parent's). The file is memory mapped, and following a parent is
+ * just reading another row.
+ */
+public class CommitGraph {
+
+    private static final int MAGIC = 0x43475048; // "CGPH"
+    private static final int VERSION = 1;
+
+    private static final int HEADER = 12;
+    private static final int FANOUT = 256 * 4;
+    private static final int ROW = 20 + 20 + 4 + 4;
+
+    private final MappedByteBuffer graph;
+    private final int count;
+
+    private CommitGraph(MappedByteBuffer graph, int count) {
+        this.graph = graph;
+        this.count = count;
+    }
+
+    /**
+     * @param file - The path to the commit-graph file
+     * @return The graph, or null if there is no commit-graph file
+     * @throws IOException
+     */
+    public static CommitGraph open(Path file) throws IOException {
+        if (!Files.exists(file))
+            return null;
+        MappedByteBuffer graph;
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            graph = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+        if (graph.getInt(0) != MAGIC || graph.getInt(4) != VERSION)
+            throw new IOException(file + " isn't a commit-graph file");
+        return new CommitGraph(graph, graph.getInt(8));
+    }
+
+    /**
+     * @return The number of commits in the graph
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Binary searches the graph for a commit.
+     *
+     * @param hash - The hash of the commit
+     * @return The commit's row, or -1 if it isn't in the graph
+     */
+    public int find(String hash) {
+        ObjectId id = ObjectId.fromString(hash);
+        int first = id.getFirstByte();
+        int low = first == 0 ? 0 : graph.getInt(HEADER + (first - 1) * 4);
+        int high = graph.getInt(HEADER + first * 4) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = -id.compareTo(graph, HEADER + FANOUT + mid * ROW);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * @param row - A row of the graph
+     * @return The hash of the commit in that row
+     */
+    public String getHash(int row) {
+        return ObjectId.fromBuffer(graph, HEADER + FANOUT + row * ROW).name();
+    }
+
+    /**
+     * @param row - A row of the graph
+     * @return The hash of the commit's tree
+     */
+    public String getTree(int row) {
+        return ObjectId.fromBuffer(graph, HEADER + FANOUT + row * ROW + 20).name();
+    }
+
+    /**
+     * @param row - A row of the graph
+     * @return The row of the commit's parent, or -1 if it has none
+     */
+    public int getParent(int row) {
+        return graph.getInt(HEADER + FANOUT + row * ROW + 40);
+    }
+
+    /**
+     * @param row - A row of the graph
+     * @return The commit's generation number
+     */
+    public int getGeneration(int row) {
+        return graph.getInt(HEADER + FANOUT + row * ROW + 44);
+    }
+
+    /**
+     * Writes a commit-graph file holding every commit reachable from the given
+     * commits.
+     *
+     * @param database - The object database to read the commits from
+     * @param tips     - The commits to start from
+     * @param file     - The path to write the file to
+     * @return The number of commits written
+     * @throws IOException
+     */
+    public static int write(ObjectDatabase database, Collection<String> tips, Path file) throws IOException {
+        // find every reachable commit
+        HashMap<String, Commit> commits = new HashMap<>();
+        ArrayDeque<String> pending = new ArrayDeque<>(tips);
+        while (!pending.isEmpty()) {
+            String hash = pending.pop();
+            if (commits.containsKey(hash))
+                continue;
+            Commit commit = database.getCommit(hash);
+            commits.put(hash, commit);
+            if (commit.getParent() != null)
+                pending.push(commit.getParent());
+        }
+
+        HashMap<String, Integer> generations = new HashMap<>();
+        for (String hash : commits.keySet())
+            generation(hash, commits, generations);
+
+        ArrayList<String> sorted = new ArrayList<>(commits.keySet());
+        Collections.sort(sorted);
+        HashMap<String, Integer> rows = new HashMap<>();
+        for (int i = 0; i < sorted.size(); i++)
+            rows.put(sorted.get(i), i);
+
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), "tmp_graph_", null);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.size());
+
+            int[] fanout = new int[256];
+            for (String hash : sorted)
+                fanout[ObjectId.fromString(hash).getFirstByte()]++;
+            int total = 0;
+            for (int i = 0; i < 256; i++) {
+                total += fanout[i];
+                out.writeInt(total);
+            }
+
+            for (String hash : sorted) {
+                Commit commit = commits.get(hash);
+                out.write(ObjectId.fromString(hash).toRaw());
+                out.write(ObjectId.fromString(commit.getTree()).toRaw());
+                out.writeInt(commit.getParent() == null ? -1 : rows.get(commit.getParent()));
+                out.writeInt(generations.get(hash));
+            }
+        } finally {
+            out.close();
+        }
+
+        // another process may be writing a graph too; whichever lands last wins
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return sorted.size();
+    }
+
+    /**
+     * Works out a commit's generation number without recursing, since history
+     * can be far deeper than the stack.
+     */
+    private static int generation(String hash, HashMap<String, Commit> commits, HashMap<String, Integer> generations) {
+        ArrayDeque<String> chain = new ArrayDeque<>();
+        String current = hash;
+        while (current != null && !generations.containsKey(current)) {
+            chain.push(current);
+            current = commits.get(current).getParent();
+        }
+        int generation = current == null ? 0 : generations.get(current);
+        while (!chain.isEmpty())
+            generations.put(chain.pop(), ++generation);
+        return generations.get(hash);
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Delta encoding between two objects, used to store similar objects in a pack.
+ * A delta is the length of the result followed by a list of instructions that
+ * either copy a range out of the base or insert new bytes.
+ */
+public class Delta {
+
+    private static final int COPY = 0;
+    private static final int INSERT = 1;
+
+    // length of the blocks of the base that are indexed when looking for matches
+    private static final int BLOCK = 16;
+
+    private Delta() {
+    }
+
+    /**
+     * Encodes the target as a delta against the base.
+     *
+     * @param base   - The object the delta is made against
+     * @param target - The object to encode
+     * @return The delta
+     */
+    public static byte[] create(byte[] base, byte[] target) {
+        // index every block of the base by its contents
+        HashMap<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(blockHash(base, i), i);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, target.length);
+
+        int insertStart = 0;
+        int i = 0;
+        while (i + BLOCK <= target.length) {
+            Integer match = blocks.get(blockHash(target, i));
+            if (match == null || !Arrays.equals(base, match, match + BLOCK, target, i, i + BLOCK)) {
+                i++;
+                continue;
+            }
+
+            // grow the match in both directions
+            int baseStart = match;
+            int targetStart = i;
+            while (baseStart > 0 && targetStart > insertStart && base[baseStart - 1] == target[targetStart - 1]) {
+                baseStart--;
+                targetStart--;
+            }
+            int baseEnd = match + BLOCK;
+            int targetEnd = i + BLOCK;
+            while (baseEnd < base.length && targetEnd < target.length && base[baseEnd] == target[targetEnd]) {
+                baseEnd++;
+                targetEnd++;
+            }
+
+            writeInsert(out, target, insertStart, targetStart);
+            out.write(COPY);
+            writeVarint(out, baseStart);
+            writeVarint(out, baseEnd - baseStart);
+
+            i = targetEnd;
+            insertStart = targetEnd;
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Rebuilds an object from its base and a delta.
+     *
+     * @param base  - The object the delta was made against
+     * @param delta - The delta
+     * @return The object
+     * @throws IOException
+     */
+    public static byte[] apply(byte[] base, byte[] delta) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(delta);
+        byte[] result = new byte[(int) readVarint(in)];
+        int position = 0;
+        int op;
+        while ((op = in.read()) != -1) {
+            if (op == COPY) {
+                int offset = (int) readVarint(in);
+                int length = (int) readVarint(in);
+                System.arraycopy(base, offset, result, position, length);
+                position += length;
+            } else if (op == INSERT) {
+                int length = (int) readVarint(in);
+                if (in.read(result, position, length) != length)
+                    throw new EOFException("Delta is truncated");
+                position += length;
+            } else {
+                throw new IOException("Bad delta instruction " + op);
+            }
+        }
+        if (position != result.length)
+            throw new IOException("Delta doesn't match its base");
+        return result;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int start, int end) {
+        if (end <= start)
+            return;
+        out.write(INSERT);
+        writeVarint(out, end - start);
+        out.write(data, start, end - start);
+    }
+
+    private static int blockHash(byte[] data, int start) {
+        int hash = 1;
+        for (int i = start; i < start + BLOCK; i++)
+            hash = 31 * hash + data[i];
+        return hash;
+    }
+
+    /**
+     * Writes a number 7 bits at a time, low bits first, with the high bit set on
+     * every byte but the last.
+     */
+    static void writeVarint(OutputStream out, long value) {
+        try {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b == -1)
+                throw new EOFException("Number is truncated");
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
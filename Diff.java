@@ -0,0 +1,429 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Compares two trees, or a tree and the working directory, and lists the files
+ * that were added, removed or modified.
+ *
+ * Trees are compared one folder at a time. The entries of a folder are sorted
+ * by name, so both folders are walked side by side, and a folder whose tree has
+ * the same hash on both sides is skipped without reading anything under it.
+ * Files in the working directory are compared using the stat data in the
+ * index, so only files that look changed are read and hashed.
+ */
+public class Diff {
+
+    /**
+     * A file that differs between the two sides
+     */
+    public static class Change {
+
+        public enum Type {
+            ADDED, REMOVED, MODIFIED
+        }
+
+        private final Type type;
+        private final String path;
+        private final String oldHash;
+        private final String newHash;
+
+        public Change(Type type, String path, String oldHash, String newHash) {
+            this.type = type;
+            this.path = path;
+            this.oldHash = oldHash;
+            this.newHash = newHash;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return The hash of the file before, or null if it was added
+         */
+        public String getOldHash() {
+            return oldHash;
+        }
+
+        /**
+         * @return The hash of the file after, or null if it was removed or is an
+         *         untracked file in the working directory
+         */
+        public String getNewHash() {
+            return newHash;
+        }
+
+        @Override
+        public String toString() {
+            return type.name().charAt(0) + " " + path;
+        }
+    }
+
+    private final ObjectDatabase database;
+    private final Index index;
+
+    /**
+     * @param database - The object database to read trees from
+     * @param index    - The index holding the stat data of the working directory,
+     *                 or null if only trees will be compared
+     */
+    public Diff(ObjectDatabase database, Index index) {
+        this.database = database;
+        this.index = index;
+    }
+
+    /**
+     * Compares two trees.
+     *
+     * @param oldTree - The hash of the tree before, or null for an empty tree
+     * @param newTree - The hash of the tree after, or null for an empty tree
+     * @return The changed files, sorted by path
+     * @throws IOException
+     */
+    public List<Change> trees(String oldTree, String newTree) throws IOException {
+        ArrayList<Change> changes = new ArrayList<>();
+        trees("", oldTree, newTree, changes);
+        // walked in tree order, where a folder's contents come before a
+        // sibling like "a.txt" that sorts between "a" and "a/"
+        changes.sort(Comparator.comparing(Change::getPath));
+        return changes;
+    }
+
+    private void trees(String prefix, String oldTree, String newTree, List<Change> changes) throws IOException {
+        // the same hash means everything under it is the same
+        if (Objects.equals(oldTree, newTree))
+            return;
+
+        TreeMap<String, Tree.Entry> oldEntries = entries(oldTree);
+        TreeMap<String, Tree.Entry> newEntries = entries(newTree);
+        if (oldEntries == null || newEntries == null) {
+            flatTrees(prefix, oldTree, newTree, changes);
+            return;
+        }
+
+        TreeSet<String> names = new TreeSet<>(oldEntries.keySet());
+        names.addAll(newEntries.keySet());
+        for (String name : names) {
+            String path = prefix + name;
+            Tree.Entry oldEntry = oldEntries.get(name);
+            Tree.Entry newEntry = newEntries.get(name);
+            if (oldEntry != null && newEntry != null && oldEntry.getId().equals(newEntry.getId())
+                    && oldEntry.isTree() == newEntry.isTree())
+                continue;
+
+            if (oldEntry != null && newEntry != null && oldEntry.isTree() && newEntry.isTree()) {
+                trees(path + "/", oldEntry.getHash(), newEntry.getHash(), changes);
+            } else if (oldEntry != null && newEntry != null && !oldEntry.isTree() && !newEntry.isTree()) {
+                changes.add(new Change(Change.Type.MODIFIED, path, oldEntry.getHash(), newEntry.getHash()));
+            } else {
+                // added, removed, or a file replaced by a folder
+                if (oldEntry != null)
+                    all(prefix, oldEntry, Change.Type.REMOVED, changes);
+                if (newEntry != null)
+                    all(prefix, newEntry, Change.Type.ADDED, changes);
+            }
+        }
+    }
+
+    /**
+     * Compares two trees by every path under them, for old flat trees that list
+     * whole paths instead of one folder each.
+     */
+    private void flatTrees(String prefix, String oldTree, String newTree, List<Change> changes) throws IOException {
+        TreeMap<String, String> oldFiles = new TreeMap<>();
+        TreeMap<String, String> newFiles = new TreeMap<>();
+        if (oldTree != null)
+            files(oldTree, prefix, oldFiles);
+        if (newTree != null)
+            files(newTree, prefix, newFiles);
+
+        TreeSet<String> paths = new TreeSet<>(oldFiles.keySet());
+        paths.addAll(newFiles.keySet());
+        for (String path : paths) {
+            String oldHash = oldFiles.get(path);
+            String newHash = newFiles.get(path);
+            if (oldHash == null)
+                changes.add(new Change(Change.Type.ADDED, path, null, newHash));
+            else if (newHash == null)
+                changes.add(new Change(Change.Type.REMOVED, path, oldHash, null));
+            else if (!oldHash.equals(newHash))
+                changes.add(new Change(Change.Type.MODIFIED, path, oldHash, newHash));
+        }
+    }
+
+    /**
+     * Compares a tree with the working directory. Files that aren't in the tree
+     * are reported as added without being read.
+     *
+     * @param tree - The hash of the tree, or null for an empty tree
+     * @param root - The root of the working directory
+     * @return The changed files, sorted by path
+     * @throws IOException
+     */
+    public List<Change> worktree(String tree, File root) throws IOException {
+        ArrayList<Change> changes = new ArrayList<>();
+        worktree("", tree, root, changes);
+        changes.sort(Comparator.comparing(Change::getPath));
+        return changes;
+    }
+
+    private void worktree(String prefix, String tree, File folder, List<Change> changes) throws IOException {
+        TreeMap<String, Tree.Entry> entries = entries(tree);
+        if (entries == null) {
+            flatWorktree(prefix, tree, folder, changes);
+            return;
+        }
+        TreeMap<String, File> files = children(prefix, folder);
+
+        TreeSet<String> names = new TreeSet<>(entries.keySet());
+        names.addAll(files.keySet());
+        for (String name : names)
+            worktree(prefix, name, entries.get(name), files.get(name), changes);
+    }
+
+    /**
+     * Compares one entry of a tree with what is at its path in the working
+     * directory.
+     *
+     * @param prefix - The path of the folder holding it, ending in '/', or ""
+     * @param name   - Its name in the folder
+     * @param entry  - The entry in the tree, or null if there is none
+     * @param file   - The file or folder, or null if there is none
+     */
+    private void worktree(String prefix, String name, Tree.Entry entry, File file, List<Change> changes)
+            throws IOException {
+        String path = prefix + name;
+        if (entry != null && file != null && entry.isTree() && file.isDirectory()) {
+            worktree(path + "/", entry.getHash(), file, changes);
+        } else if (entry != null && file != null && !entry.isTree() && !file.isDirectory()) {
+            String hash = hash(path, file);
+            if (!hash.equals(entry.getHash()))
+                changes.add(new Change(Change.Type.MODIFIED, path, entry.getHash(), hash));
+        } else {
+            if (entry != null)
+                all(prefix, entry, Change.Type.REMOVED, changes);
+            if (file != null)
+                untracked(path, file, changes);
+        }
+    }
+
+    /**
+     * Compares only some paths of a tree with the working directory, for when
+     * everything else is known not to have changed. A path that is a folder in
+     * the tree or the working directory is compared with everything under it.
+     *
+     * @param tree  - The hash of the tree, or null for an empty tree
+     * @param root  - The root of the working directory
+     * @param paths - The paths to compare, from the root and separated by '/'
+     * @return The changes at or under those paths, sorted by path, or null if
+     *         the tree is an old flat tree and has to be compared whole
+     * @throws IOException
+     */
+    public List<Change> worktree(String tree, File root, Collection<String> paths) throws IOException {
+        TreeSet<String> sorted = new TreeSet<>(paths);
+        ArrayList<Change> changes = new ArrayList<>();
+        for (String path : sorted) {
+            if (!isWorktreePath(path) || hasParentIn(path, sorted))
+                continue;
+            int slash = path.lastIndexOf('/');
+            String parent = slash < 0 ? "" : path.substring(0, slash);
+            TreeMap<String, Tree.Entry> entries = folder(tree, parent);
+            if (entries == null)
+                return null;
+            String name = path.substring(slash + 1);
+            File file = new File(root, path);
+            worktree(slash < 0 ? "" : parent + "/", name, entries.get(name), file.exists() ? file : null, changes);
+        }
+        changes.sort(Comparator.comparing(Change::getPath));
+        return changes;
+    }
+
+    /**
+     * @return False for paths that are hidden or in the repository's git folder,
+     *         which are never compared
+     */
+    private static boolean isWorktreePath(String path) {
+        if (path.isEmpty() || path.equals("git") || path.startsWith("git/"))
+            return false;
+        for (String name : path.split("/")) {
+            if (name.startsWith("."))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return True if a folder above the path is also in the set, so comparing
+     *         that folder covers the path
+     */
+    private static boolean hasParentIn(String path, Set<String> paths) {
+        for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+            if (paths.contains(path.substring(0, slash)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Finds the entries of a folder by following its path down from a tree.
+     *
+     * @return The folder's entries by name, empty if the tree has no folder
+     *         there, or null if an old flat tree is in the way
+     */
+    private TreeMap<String, Tree.Entry> folder(String tree, String path) throws IOException {
+        TreeMap<String, Tree.Entry> entries = entries(tree);
+        if (path.isEmpty())
+            return entries;
+        for (String name : path.split("/")) {
+            if (entries == null)
+                return null;
+            Tree.Entry entry = entries.get(name);
+            if (entry == null || !entry.isTree())
+                return new TreeMap<>();
+            entries = entries(entry.getHash());
+        }
+        return entries;
+    }
+
+    /**
+     * Compares an old flat tree with the working directory by every path under it.
+     */
+    private void flatWorktree(String prefix, String tree, File folder, List<Change> changes) throws IOException {
+        TreeMap<String, String> tracked = new TreeMap<>();
+        files(tree, prefix, tracked);
+        TreeMap<String, File> present = new TreeMap<>();
+        walk(prefix, folder, present);
+
+        TreeSet<String> paths = new TreeSet<>(tracked.keySet());
+        paths.addAll(present.keySet());
+        for (String path : paths) {
+            String oldHash = tracked.get(path);
+            File file = present.get(path);
+            if (oldHash == null) {
+                changes.add(new Change(Change.Type.ADDED, path, null, null));
+            } else if (file == null) {
+                changes.add(new Change(Change.Type.REMOVED, path, oldHash, null));
+            } else {
+                String hash = hash(path, file);
+                if (!hash.equals(oldHash))
+                    changes.add(new Change(Change.Type.MODIFIED, path, oldHash, hash));
+            }
+        }
+    }
+
+    /**
+     * @return The entries of a folder's tree by name, or null if it is an old
+     *         flat tree
+     */
+    private TreeMap<String, Tree.Entry> entries(String tree) throws IOException {
+        TreeMap<String, Tree.Entry> entries = new TreeMap<>();
+        if (tree == null)
+            return entries;
+        for (Tree.Entry entry : database.getTree(tree).getEntries()) {
+            if (entry.getName().indexOf('/') >= 0)
+                return null;
+            entries.put(entry.getName(), entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Adds the hash of every file under a tree to a map by path. Later lines for
+     * the same path replace earlier ones.
+     */
+    private void files(String tree, String prefix, Map<String, String> files) throws IOException {
+        for (Tree.Entry entry : database.getTree(tree).getEntries()) {
+            String name = entry.getName().startsWith("/") ? entry.getName().substring(1) : entry.getName();
+            if (entry.isTree())
+                files(entry.getHash(), prefix + name + "/", files);
+            else
+                files.put(prefix + name, entry.getHash());
+        }
+    }
+
+    /**
+     * Reports a file, or every file under a folder, as added or removed.
+     */
+    private void all(String prefix, Tree.Entry entry, Change.Type type, List<Change> changes) throws IOException {
+        if (!entry.isTree()) {
+            String path = prefix + entry.getName();
+            if (type == Change.Type.ADDED)
+                changes.add(new Change(type, path, null, entry.getHash()));
+            else
+                changes.add(new Change(type, path, entry.getHash(), null));
+            return;
+        }
+        TreeMap<String, String> files = new TreeMap<>();
+        files(entry.getHash(), prefix + entry.getName() + "/", files);
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            if (type == Change.Type.ADDED)
+                changes.add(new Change(type, file.getKey(), null, file.getValue()));
+            else
+                changes.add(new Change(type, file.getKey(), file.getValue(), null));
+        }
+    }
+
+    private void untracked(String path, File file, List<Change> changes) {
+        if (!file.isDirectory()) {
+            changes.add(new Change(Change.Type.ADDED, path, null, null));
+            return;
+        }
+        TreeMap<String, File> files = new TreeMap<>();
+        walk(path + "/", file, files);
+        for (String child : files.keySet())
+            changes.add(new Change(Change.Type.ADDED, child, null, null));
+    }
+
+    /**
+     * Lists the files and folders in a folder that could be staged. Hidden files
+     * and the repository's own git folder are left out.
+     */
+    private static TreeMap<String, File> children(String prefix, File folder) {
+        TreeMap<String, File> children = new TreeMap<>();
+        File[] files = folder.listFiles();
+        if (files == null)
+            return children;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(".") || (prefix.isEmpty() && name.equals("git")))
+                continue;
+            children.put(name, file);
+        }
+        return children;
+    }
+
+    /**
+     * Adds every file under a folder to a map by path.
+     */
+    private static void walk(String prefix, File folder, Map<String, File> files) {
+        for (Map.Entry<String, File> child : children(prefix, folder).entrySet()) {
+            if (child.getValue().isDirectory())
+                walk(prefix + child.getKey() + "/", child.getValue(), files);
+            else
+                files.put(prefix + child.getKey(), child.getValue());
+        }
+    }
+
+    /**
+     * Hashes a file in the working directory, reusing its hash from the index if
+     * its stat data hasn't changed.
+     */
+    private String hash(String path, File file) throws IOException {
+        Path source = file.toPath();
+        BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+        String hash = index.cachedHash(path, attrs);
+        database.getObjects().getMetrics().statLookup(hash != null);
+        if (hash == null) {
+            hash = database.getObjects().hashFile(source);
+            index.recordStat(path, hash, attrs);
+        }
+        return hash;
+    }
+}
@@ -1,24 +1,139 @@
 import java.util.*;
 import java.io.*;
-import java.math.BigInteger;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-
-public class Git implements GitInterface {
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A handle on one repository: the working directory at its root, and the
+ * index, HEAD and objects in its git folder. Any number of handles can be open
+ * at once, on different repositories, and a handle can be used from many
+ * threads.
+ *
+ * Objects never change once written, so reading them, walking history and
+ * diffing commits don't take any locks. Anything that changes the index or
+ * HEAD holds their {@link LockFile}s, which keep out other threads as well as
+ * other processes.
+ *
+ * An operation that fails throws: an UncheckedIOException wrapping the
+ * IOException for a file system error, or the unchecked exception itself for
+ * bad arguments and the like. Failed stages, commits, checkouts, statuses and
+ * gcs are also counted in the {@link Metrics} and recorded as failed JFR
+ * events.
+ */
+public class Git implements GitInterface, Closeable {
+
+    private final Path root;
+    private final Path gitDir;
+    private final Path indexFile;
+    private final Path headFile;
+
+    // only read or changed while the index is locked
+    private volatile Index index;
+
+    private final ObjectStore objects;
+
+    // branches, tags and HEAD
+    private final Refs refs;
+
+    // timings and counters, published over JMX
+    private final Metrics metrics;
+
+    // parsed commits and trees
+    private final ObjectDatabase database;
+
+    // loaded the first time history is walked
+    private volatile CommitGraph commitGraph;
+    private volatile boolean commitGraphLoaded;
+
+    // prunes and repacks objects in the background once started
+    private final Maintenance maintenance;
+
+    // keeps track of changed paths in the working directory once started
+    private final Watcher watcher;
+
+    // the paths a sparse checkout put in the working directory, or null if
+    // everything was checked out
+    private final Path sparseFile;
+    private volatile SparseCheckout sparse;
+
+    // how long to wait for another thread or process to let go of the index or HEAD
+    private volatile long lockTimeout = 10_000;
+
+    // checkout settings
+    private volatile int checkoutThreads = Math.min(8, Runtime.getRuntime().availableProcessors());
+    private volatile CheckoutStats.Listener checkoutListener;
+    private volatile CheckoutStats lastCheckout;
 
     public static void main(String[] args) throws IOException {
         // initGitRepo();
     }
 
-    // constructor
+    /**
+     * Opens the repository in the current folder, making it if it doesn't exist.
+     * 
+     * @throws IOException
+     */
     public Git() throws IOException {
-        initGitRepo();
+        this(Paths.get(""), false);
+    }
+
+    /**
+     * @param compressObjects - True to store new objects zlib compressed with a
+     *                        git style header, in objects/xx/yyyy... folders
+     * @throws IOException
+     */
+    public Git(boolean compressObjects) throws IOException {
+        this(Paths.get(""), compressObjects);
+    }
+
+    /**
+     * Opens the repository in a folder, making it if it doesn't exist.
+     * 
+     * @param root - The root of the working directory
+     * @throws IOException
+     */
+    public Git(Path root) throws IOException {
+        this(root, false);
+    }
+
+    /**
+     * @param root            - The root of the working directory
+     * @param compressObjects - True to store new objects zlib compressed with a
+     *                        git style header, in objects/xx/yyyy... folders
+     * @throws IOException
+     */
+    public Git(Path root, boolean compressObjects) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.gitDir = this.root.resolve("git");
+        this.indexFile = gitDir.resolve("index");
+        this.headFile = gitDir.resolve("HEAD");
+        this.metrics = new Metrics(this.root.toString());
+        this.objects = new ObjectStore(gitDir.resolve("objects"), metrics);
+        this.objects.setCompressed(compressObjects);
+        this.database = new ObjectDatabase(objects, 4096);
+        this.metrics.setObjectDatabase(database);
+        this.refs = new Refs(gitDir);
+        this.maintenance = new Maintenance(objects, gitDir);
+        this.watcher = new Watcher(this.root, gitDir);
+        this.sparseFile = gitDir.resolve("sparse-checkout");
+        init();
+        this.sparse = SparseCheckout.read(sparseFile);
+
+        // published only once the repository opened, so a failed open leaves nothing behind
+        this.metrics.register(this.root);
     }
 
     /**
@@ -27,23 +142,56 @@ public class Git implements GitInterface {
      * @throws IOException
      */
     public static void initGitRepo() throws IOException {
+        new Git().close();
+    }
+
+    /**
+     * Stops the background maintenance and the watcher, closes the packs and
+     * takes this handle's metrics off JMX. The handle shouldn't be used after
+     * it is closed.
+     */
+    @Override
+    public void close() {
+        stopMaintenance();
+        stopWatching();
+        metrics.unregister();
+        try {
+            objects.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return The root of the working directory
+     */
+    public Path getRoot() {
+        return root;
+    }
 
-        File gitDir = new File("git");
+    /**
+     * Makes the repository's files and its first commit if they don't exist.
+     * 
+     * @throws IOException
+     */
+    private void init() throws IOException {
 
-        File objectsDir = new File("git/objects");
+        File gitDir = this.gitDir.toFile();
 
-        File indexFile = new File("git/index");
+        File objectsDir = this.gitDir.resolve("objects").toFile();
 
-        File headFile = new File("git/HEAD");
+        File indexFile = this.indexFile.toFile();
 
-        File readMeFile = new File("README.md");
+        File headFile = this.headFile.toFile();
+
+        File readMeFile = file("README.md");
 
         // exist check
         if (gitDir.exists() && objectsDir.exists() && indexFile.exists() && headFile.exists() && readMeFile.exists()) {
             System.out.println("Git Repository already exists");
         } else {
             if (!gitDir.exists()) {
-                gitDir.mkdir();
+                gitDir.mkdirs();
             }
             if (!objectsDir.exists()) {
                 objectsDir.mkdir();
@@ -52,13 +200,17 @@ public class Git implements GitInterface {
                 indexFile.createNewFile();
             }
             if (!headFile.exists()) {
-                headFile.createNewFile();
+                // new repositories start out on main
+                Files.write(this.headFile, Refs.symbolic(Refs.HEADS + "main"));
             }
             if (!readMeFile.exists()) {
                 readMeFile.createNewFile();
             }
 
-            makeBlob("README.md", new ArrayList<>());
+            try (LockFile lock = lockIndex(lockTimeout)) {
+                makeBlob("README.md", new HashSet<>());
+                writeIndex(lock);
+            }
 
             commit("author", "Initial Commit", true);
         }
@@ -73,23 +225,52 @@ public class Git implements GitInterface {
      * @return The hash of the latest commit
      * @throws IOException
      */
-    private static String commit(String author, String description, boolean firstCommit) throws IOException {
-        StringBuilder commit = new StringBuilder();
+    private String commit(String author, String description, boolean firstCommit) throws IOException {
+        try (LockFile indexLock = lockIndex(lockTimeout); LockFile headLock = LockFile.lock(headFile, lockTimeout)) {
+            try {
+                return commit(author, description, firstCommit, indexLock, headLock);
+            } catch (IOException | RuntimeException e) {
+                // forget anything half done so the index is read again
+                index = null;
+                throw e;
+            }
+        }
+    }
 
-        String tree = createCommitTree(firstCommit);
+    /**
+     * Commits the current staged changes while the index and HEAD are locked.
+     */
+    private String commit(String author, String description, boolean firstCommit, LockFile indexLock,
+            LockFile headLock) throws IOException {
+        String parent = firstCommit ? null : refs.resolve(Refs.HEAD);
+        String commitHash = writeCommit(author, description, parent);
+        updateHead(headLock, parent, commitHash);
+        writeIndex(indexLock);
+        return commitHash;
+    }
 
-        String parent;
-        if (!firstCommit)
-            parent = getStringFromFile("git/HEAD");
-        else
-            parent = "\n";
+    /**
+     * Writes a commit of the staged changes on top of a parent and clears them
+     * from the index. Neither HEAD nor the index file is written.
+     * 
+     * @param author      - The author of the commit
+     * @param description - The description of the commit
+     * @param parent      - The commit being built on, or null for the first one
+     * @return The hash of the commit
+     * @throws IOException
+     */
+    private String writeCommit(String author, String description, String parent) throws IOException {
+        StringBuilder commit = new StringBuilder();
+
+        String tree = createCommitTree(parent);
 
         String date = getDate();
 
         commit.append("tree " + tree);
         commit.append("\n");
 
-        commit.append("parent " + parent);
+        commit.append("parent " + (parent != null ? parent : ""));
+        commit.append("\n");
 
         commit.append("author " + author);
         commit.append("\n");
@@ -100,27 +281,67 @@ public class Git implements GitInterface {
         commit.append("message " + description);
         commit.append("\n");
 
-        String commitHash = generateFileHash(commit.toString().getBytes());
-        updateHead(commitHash);
-
-        BufferedWriter writer = new BufferedWriter(new FileWriter("git/objects/" + commitHash));
-        writer.write(commit.toString());
-        writer.close();
-
-        resetFile("git/index");
+        String commitHash = objects.write("commit", commit.toString().getBytes());
+        getIndex().clear();
         return commitHash;
     }
 
     /**
-     * Updates the HEAD to store a new commit
+     * Moves HEAD to a new commit. If HEAD is on a branch the branch is moved
+     * instead, as long as nobody else has moved it since it was read.
      * 
+     * @param lock       - The lock on HEAD
+     * @param parent     - The commit HEAD pointed at, or null if there wasn't one
      * @param commitHash - The hash of the commit
+     * @throws IOException if the branch was moved by someone else
+     */
+    private void updateHead(LockFile lock, String parent, String commitHash) throws IOException {
+        String branch = refs.getHeadBranch();
+        if (branch == null) {
+            lock.write(commitHash.getBytes());
+            lock.commit();
+        } else if (!refs.compareAndSet(branch, parent, commitHash)) {
+            throw new IOException(branch + " was moved by someone else while committing");
+        }
+    }
+
+    /**
+     * Locks the index, reading it again if another process has written it since
+     * it was loaded.
+     * 
+     * @param timeout - How long to wait for the lock, in milliseconds
+     * @return The lock on the index
+     * @throws LockFile.LockFailedException if another process holds the lock
      * @throws IOException
      */
-    private static void updateHead(String commitHash) throws IOException {
-        BufferedWriter writer = new BufferedWriter(new FileWriter("git/HEAD"));
-        writer.write(commitHash);
-        writer.close();
+    private LockFile lockIndex(long timeout) throws IOException {
+        LockFile lock = LockFile.lock(indexFile, timeout);
+        try {
+            if (index != null && !index.isCurrent())
+                index = null;
+            getIndex();
+        } catch (IOException | RuntimeException e) {
+            lock.close();
+            throw e;
+        }
+        return lock;
+    }
+
+    /**
+     * Records an operation as failed in the metrics and returns the exception to
+     * throw for it. The public methods don't declare checked exceptions, since
+     * GitInterface doesn't, so an IOException is wrapped in an
+     * UncheckedIOException.
+     * 
+     * @param event - The operation
+     * @param e     - What went wrong
+     * @return The exception to throw
+     */
+    private RuntimeException failed(Metrics.OperationEvent event, Exception e) {
+        metrics.fail(event, e);
+        if (e instanceof IOException)
+            return new UncheckedIOException((IOException) e);
+        return (RuntimeException) e;
     }
 
     /**
@@ -133,147 +354,271 @@ public class Git implements GitInterface {
     }
 
     /**
-     * Creates the tree file for the current commit.
+     * Creates the tree for the current commit: the previous commit's tree with
+     * the staged entries applied, one tree object per folder.
      * 
+     * @param parent - The commit being built on, or null for the first one
      * @return The hash of the tree file created
      * @throws IOException
      */
-    private static String createCommitTree(boolean firstCommit) throws IOException {
-        String previousTreeHash;
-        StringBuilder tree;
-        if (!firstCommit) {
-            previousTreeHash = getPreviousTreeHash();
-            String previousTreePath = "git/objects/" + previousTreeHash;
-            String previousTree = getStringFromFile(previousTreePath);
-            tree = new StringBuilder(previousTree);
-        }
+    private String createCommitTree(String parent) throws IOException {
+        long start = System.nanoTime();
+        String previousTreeHash = parent != null ? database.getCommit(parent).getTree() : null;
+        TreeBuilder tree = new TreeBuilder(database, previousTreeHash);
+
+        // parents sort before their contents, so a staged folder is in place
+        // before the entries staged inside it
+        ArrayList<Index.Entry> entries = new ArrayList<>(getIndex().entries());
+        entries.sort(Comparator.comparing(Index.Entry::getPath));
+        for (Index.Entry entry : entries)
+            tree.add(entry.getType(), entry.getHash(), entry.getPath());
+        String hash = tree.write();
+        metrics.record(Metrics.Phase.TREE_BUILD, start);
+        return hash;
+    }
 
-        else {
-            previousTreeHash = "";
-            tree = new StringBuilder();
+    /**
+     * Loads the index into memory the first time it is needed.
+     * 
+     * @return The staging index
+     * @throws IOException
+     */
+    private Index getIndex() throws IOException {
+        if (index == null) {
+            long start = System.nanoTime();
+            index = Index.load(indexFile, root);
+            metrics.record(Metrics.Phase.INDEX_UPDATE, start);
         }
-
-        String index = getStringFromFile("git/index");
-        tree.append(index);
-        String treeHash = generateFileHash(tree.toString().getBytes());
-        BufferedWriter writer = new BufferedWriter(new FileWriter("git/objects/" + treeHash));
-        writer.write(tree.toString());
-        writer.close();
-        return treeHash;
+        return index;
     }
 
     /**
-     * Clears the contents of a file: makes the file empty
+     * Writes the index through its lock if it has changed.
      * 
-     * @param path - The path to the file
+     * @param lock - The lock on the index
      * @throws IOException
      */
-    private static void resetFile(String path) throws IOException {
-        File file = new File(path);
-        file.delete();
-        file.createNewFile();
+    private void writeIndex(LockFile lock) throws IOException {
+        long start = System.nanoTime();
+        getIndex().write(lock);
+        metrics.record(Metrics.Phase.INDEX_UPDATE, start);
     }
 
     /**
-     * Gets the previous tree's hash in String form
+     * Builds the tree file for a folder in a single pass. Every child is staged
+     * through makeBlob as it is visited and its hash is reused for the tree line,
+     * so each file is only read and hashed once no matter how deep it is. The
+     * entries are sorted by name, as in trees built by {@link TreeBuilder}.
      * 
-     * @return The previous tree's hash in String form
+     * @param path        - The folder's path in the repository
+     * @param input       - The folder to backup as a tree
+     * @param directories - The canonical paths of the folders currently being
+     *                    walked, used for detecting cycles
+     * @return A tree as a byte array
      * @throws IOException
      */
-    private static String getPreviousTreeHash() throws IOException {
-        String commitHash = getStringFromFile("git/HEAD");
-        String commit = getStringFromFile("git/objects/" + commitHash.substring(0, 40));
-        String tree = commit.substring(5, 45);
-        return tree;
+    private byte[] treeToBytes(String path, File input, HashSet<String> directories) throws IOException {
+        String canonicalPath = input.getCanonicalPath();
+        if (!directories.add(canonicalPath)) {
+            throw new IllegalStateException("Cycle detected");
+        }
+        long start = System.nanoTime();
+        File[] children = input.listFiles();
+        metrics.record(Metrics.Phase.WALK, start);
+
+        // sorted by name, so a folder hashes the same whatever order the file
+        // system lists it in
+        Arrays.sort(children, Comparator.comparing(File::getName));
+        TreeMap<String, String> lines = new TreeMap<>();
+        for (File f : children) {
+            String fHash = makeBlob(path + "/" + f.getName(), directories);
+
+            // hidden files aren't stored so they are left out of the tree
+            if (fHash == null)
+                continue;
+
+            lines.put(treeEntryName(f), (f.isDirectory() ? "tree " : "blob ") + fHash + " " + treeEntryName(f));
+        }
+        SparseCheckout sparse = this.sparse;
+        if (sparse != null)
+            appendSkipped(path, children, sparse, lines);
+        directories.remove(canonicalPath);
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines.values())
+            sb.append(line).append('\n');
+        return sb.toString().getBytes();
     }
 
     /**
-     * Gets the contents of a file in String form if applicable.
+     * Adds the entries of a folder in HEAD that a sparse checkout left out of the
+     * working directory, so that staging the folder doesn't remove them.
      * 
-     * @param path The path of the file
-     * @return The file in String form
+     * @param path     - The folder's path in the repository
+     * @param children - What is in the folder in the working directory
+     * @param sparse   - The paths that were checked out
+     * @param lines    - The lines of the folder's tree so far, by name
      * @throws IOException
      */
-    private static String getStringFromFile(String path) throws IOException {
-        StringBuilder string = new StringBuilder();
-        BufferedReader reader = new BufferedReader(new FileReader(path));
-        while (reader.ready()) {
-            string.append(reader.readLine());
-            string.append("\n");
+    private void appendSkipped(String path, File[] children, SparseCheckout sparse, TreeMap<String, String> lines)
+            throws IOException {
+        Tree folder = headFolder(path);
+        if (folder == null)
+            return;
+        HashSet<String> present = new HashSet<>();
+        for (File f : children)
+            present.add(f.getName());
+        for (Tree.Entry entry : folder.getEntries()) {
+            if (present.contains(entry.getName()))
+                continue;
+            String hash = skipped(path + "/" + entry.getName(), entry, sparse);
+            if (hash != null)
+                lines.put(entry.getName(), entry.getType() + " " + hash + " " + entry.getName());
         }
-        reader.close();
-        return string.toString();
     }
 
     /**
-     * recursively generate pre-hashed tree file to be used in generateFileName
-     * 
-     * @param input - The folder to backup as a tree
-     * @param files - An ArrayList of all the files in the tree
-     * @return A tree as a byte array
+     * @param path   - The path of a file or folder missing from the working
+     *               directory
+     * @param entry  - Its entry in HEAD
+     * @param sparse - The paths that were checked out
+     * @return The hash of the entry with only what the sparse checkout left out,
+     *         or null if it was all checked out and has since been deleted
      * @throws IOException
      */
-    private static byte[] treeToBytes(File input, ArrayList<File> files) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        for (File f : input.listFiles()) {
-            String fName;
-            if (f.getAbsolutePath().equals(f.getCanonicalPath())) {
-                fName = f.getName();
-            } else {
-                fName = f.getAbsolutePath();
-            }
-            if (f.isDirectory()) {
-                if (files.contains(f)) {
-                    throw new IllegalStateException("Cycle detected");
-                }
-                files.add(f);
-                String fHash = generateFileHash(treeToBytes(f, files));
-                sb.append("tree " + fHash + " " + fName + "\n");
-            } else {
-                String fHash = generateFileHash(Files.readAllBytes(Paths.get(f.getPath())));
-                sb.append("blob " + fHash + " " + fName + "\n");
-            }
+    private String skipped(String path, Tree.Entry entry, SparseCheckout sparse) throws IOException {
+        if (!entry.isTree())
+            return sparse.matches(path) ? null : entry.getHash();
+        if (!sparse.mayMatchUnder(path))
+            return entry.getHash();
+        ArrayList<Tree.Entry> kept = new ArrayList<>();
+        boolean changed = false;
+        for (Tree.Entry child : database.getTree(entry.getHash()).getEntries()) {
+            String hash = skipped(path + "/" + child.getName(), child, sparse);
+            if (hash != null)
+                kept.add(new Tree.Entry(child.getType(), hash, child.getName()));
+            changed |= !child.getHash().equals(hash);
         }
-        return sb.toString().getBytes();
+        if (!changed)
+            return entry.getHash();
+        return kept.isEmpty() ? null : database.writeTree(kept);
     }
 
     /**
-     * Generates the hash string name according to SHA-1.
-     * 
-     * @param input - The byte data of the file in byte array form
-     * @return The SHA-1 hash of the byte data
+     * @param path - The path of a folder in the repository
+     * @return The folder's tree in HEAD, or null if HEAD has no such folder or
+     *         it is in an old flat tree
      * @throws IOException
      */
-    private static String generateFileHash(byte[] input) throws IOException {
-        try {
+    private Tree headFolder(String path) throws IOException {
+        String head = refs.resolve(Refs.HEAD);
+        if (head == null)
+            return null;
+        Tree tree = database.getTree(database.getCommit(head).getTree());
+        for (String name : path.split("/")) {
+            Tree.Entry folder = null;
+            for (Tree.Entry entry : tree.getEntries()) {
+                if (entry.getName().equals(name))
+                    folder = entry;
+            }
+            if (folder == null || !folder.isTree())
+                return null;
+            tree = database.getTree(folder.getHash());
+        }
+        return tree;
+    }
 
-            // getInstance() method is called with algorithm SHA-1
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
+    /**
+     * @param f - A file inside a folder being backed up
+     * @return The name used for the file in its folder's tree. Files reached
+     *         through a link are listed under the link's name, since a tree can
+     *         only hold names and not paths.
+     */
+    static String treeEntryName(File f) {
+        return f.getName();
+    }
 
-            // digest() method is called
-            // to calculate message digest of the input string
-            // returned as array of byte
-            byte[] messageDigest = md.digest(input);
+    /**
+     * @param path - A path in the repository, separated by '/'
+     * @return The file at that path in the working directory
+     */
+    private File file(String path) {
+        return root.resolve(path).toFile();
+    }
 
-            // Convert byte array into signum representation
-            BigInteger no = new BigInteger(1, messageDigest);
+    /**
+     * Turns a path into the form used in the index and in trees: relative to the
+     * root of the repository, normalized, and separated by '/'. Relative paths
+     * are taken from the root of the repository.
+     * 
+     * @param path - The path to a file in the repository
+     * @return The path relative to the repository
+     * @throws IllegalArgumentException if the path is outside the repository
+     */
+    String repoPath(String path) {
+        Path absolute = root.resolve(path).normalize();
+        if (!absolute.startsWith(root))
+            throw new IllegalArgumentException(path + " is outside the repository");
+        String relative = root.relativize(absolute).toString().replace(File.separatorChar, '/');
+        return relative.isEmpty() ? "." : relative;
+    }
 
-            // Convert message digest into hex value
-            String hashtext = no.toString(16);
+    /**
+     * Stores a file as a blob. Files whose stat data hasn't changed since they
+     * were last hashed aren't read again, as long as their blob is still stored.
+     * 
+     * @param objects - The object store to write to
+     * @param index   - The index holding the stat data
+     * @param input   - The file to store
+     * @param path    - The file's path in the repository
+     * @return The hash of the file
+     * @throws IOException
+     */
+    static String storeFile(ObjectStore objects, Index index, File input, String path) throws IOException {
+        Path source = input.toPath();
+        BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+        String hash = index.cachedHash(path, attrs);
+        if (hash != null && objects.freshen(hash)) {
+            objects.getMetrics().statLookup(true);
+            return hash;
+        }
+        objects.getMetrics().statLookup(false);
 
-            // Add preceding 0s to make it 40 digits long
-            while (hashtext.length() < 40) {
-                hashtext = "0" + hashtext;
-            }
+        // hashes and copies the file in one read
+        hash = objects.writeBlob(source);
+        index.recordStat(path, hash, attrs);
+        return hash;
+    }
 
-            // return the HashText
-            return hashtext;
-        }
+    /**
+     * Checks that a file can be staged.
+     * 
+     * @param input - The file to check
+     * @return False if the file is hidden and should be skipped
+     * @throws FileNotFoundException
+     * @throws AccessDeniedException
+     */
+    static boolean isStageable(File input) throws FileNotFoundException, AccessDeniedException {
+        if (!input.exists())
+            throw new FileNotFoundException("File doesn't exist");
 
-        // For specifying wrong message digest algorithms
-        catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+        // ignore restricted files
+        if (!input.canRead()) {
+            throw new AccessDeniedException("Can't read the file");
         }
+
+        // ignore hidden files
+        return !(input.getName().length() > 0 && input.getName().charAt(0) == '.');
+    }
+
+    /**
+     * Generates the hash string name according to SHA-1.
+     * 
+     * @param input - The byte data of the file in byte array form
+     * @return The SHA-1 hash of the byte data
+     * @throws IOException
+     */
+    private String generateFileHash(byte[] input) throws IOException {
+        return ObjectStore.hash(input);
     }
 
     /**
@@ -286,102 +631,178 @@ public class Git implements GitInterface {
      * @throws IllegalStateException
      */
     public void stage(String path) {
-        ArrayList<String> hashes = new ArrayList<String>();
-        try {
-            makeBlob(path, hashes);
-        } catch (Exception e) {
-            e.printStackTrace();
+        Metrics.OperationEvent event = metrics.begin(Metrics.Operation.STAGE);
+        try (LockFile lock = lockIndex(lockTimeout)) {
+            try {
+                String relative = repoPath(path);
+                if (watcher.isRunning() && !relative.equals(".") && isStageable(file(relative))
+                        && file(relative).isDirectory())
+                    stageWatched(relative);
+                else
+                    makeBlob(relative, new HashSet<String>());
+                writeIndex(lock);
+                metrics.end(event);
+            } catch (IOException | RuntimeException e) {
+                index = null;
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            throw failed(event, e);
+        }
+    }
+
+    /**
+     * Stages a file or folder, hashing and storing the files on several threads.
+     * While the working directory is being watched or sparsely checked out, the
+     * folder is staged as {@link #stage(String)} does.
+     * Each folder's tree is put together once all of its children are done, and
+     * the index entries are added in the same order as {@link #stage(String)}
+     * adds them, so the hashes and the index come out the same as in serial mode.
+     * 
+     * @param path        - The path to the file
+     * @param parallelism - The number of threads to use
+     */
+    public void stage(String path, int parallelism) {
+        if (parallelism <= 1 || watcher.isRunning() || sparse != null) {
+            stage(path);
+            return;
+        }
+        Metrics.OperationEvent event = metrics.begin(Metrics.Operation.STAGE);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (LockFile lock = lockIndex(lockTimeout)) {
+            try {
+                ArrayList<Index.Entry> entries = new ArrayList<>();
+                String relative = repoPath(path);
+                pool.invoke(new StageTask(objects, getIndex(), file(relative), relative, new HashSet<String>(),
+                        entries));
+                for (Index.Entry entry : entries)
+                    getIndex().add(entry.getType(), entry.getHash(), entry.getPath());
+                writeIndex(lock);
+                metrics.end(event);
+            } catch (IOException | RuntimeException e) {
+                index = null;
+                throw e;
+            }
+        } catch (UncheckedIOException e) {
+            // thrown by the staging tasks
+            metrics.fail(event, e.getCause());
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            throw failed(event, e);
+        } finally {
+            pool.shutdown();
         }
     }
 
     /**
-     * @param path   - The path to the file to be backed up
-     * @param hashes - An ArrayList used for detecting cycles
+     * @param path        - The path to the file to be backed up
+     * @param directories - The folders currently being walked, used for
+     *                    detecting cycles
      * @return The hash of the data
      * @throws IOException
      * @throws FileNotFoundException
      * @throws IllegalStateException
      */
-    private static String makeBlob(String path, ArrayList<String> hashes)
+    private String makeBlob(String path, HashSet<String> directories)
             throws IOException, FileNotFoundException, IllegalStateException {
 
         final String[] TYPEARRAY = new String[] { "blob", "tree" };
 
-        File input = new File(path);
-        if (!input.exists())
-            throw new FileNotFoundException("File doesn't exist");
-
-        // ignore restricted files
-        if (!input.canRead()) {
-            throw new AccessDeniedException("Can't read the file");
-        }
-
-        // ignore hidden files
-        if (input.getName().length() > 0 && input.getName().charAt(0) == '.')
+        File input = file(path);
+        if (!isStageable(input))
             return null;
 
-        // generate hash
+        // generate hash and store the object
         String fileName;
         if (!input.isDirectory()) {
-            fileName = generateFileHash(Files.readAllBytes(Paths.get(input.getPath())));
+            fileName = storeFile(objects, getIndex(), input, path);
         } else {
-            ArrayList<File> files = new ArrayList<File>();
-            fileName = generateFileHash(treeToBytes(input, files));
-        }
-
-        // check for cycles
-        if (hashes.contains(fileName)) {
-            throw new IllegalStateException("Cycle detected");
+            // stages the directory contents on the way
+            fileName = objects.write("tree", treeToBytes(path, input, directories));
         }
-        hashes.add(fileName);
 
-        // recursively call on directory contents
-        if (input.isDirectory())
-            for (File f : input.listFiles())
-                makeBlob(f.getPath(), hashes);
-
-        if (!input.isDirectory()) {
-            // creates empty file in objects directory
-            File copy = new File("git/objects/" + fileName);
+        // inserts an entry into index file
+        getIndex().add(TYPEARRAY[input.isDirectory() ? 1 : 0], fileName, path);
 
-            // copy the file
-            if (!copy.exists())
-                Files.copy(Path.of(input.getPath()), Path.of(copy.getPath()));
+        return fileName;
+    }
 
-        } else {
-            File copy = new File("git/objects/" + fileName);
-            copy.createNewFile();
-            FileOutputStream out = new FileOutputStream(copy);
-            ArrayList<File> files = new ArrayList<File>();
-            out.write(treeToBytes(input, files));
-            out.close();
+    /**
+     * Stages the files under a folder that differ from HEAD, going by the
+     * watcher's status instead of walking the folder. The commit comes out the
+     * same as after staging the whole folder, except that empty folders are left
+     * out. Anything already staged under the folder is staged again, and a
+     * removed file is staged by staging the folder it was in again, since a tree
+     * can only lose an entry by being replaced.
+     * 
+     * @param folder - The folder's path in the repository, or "" for everything
+     * @throws IOException
+     */
+    private void stageWatched(String folder) throws IOException {
+        String head = refs.resolve(Refs.HEAD);
+        String tree = head != null ? database.getCommit(head).getTree() : null;
+        List<Diff.Change> changes = worktreeChanges(new Diff(database, getIndex()), tree);
+
+        TreeSet<String> folders = new TreeSet<>();
+        TreeSet<String> files = new TreeSet<>();
+        for (Diff.Change change : changes) {
+            if (!isUnder(change.getPath(), folder))
+                continue;
+            if (change.getType() == Diff.Change.Type.REMOVED)
+                folders.add(existingParent(change.getPath(), folder));
+            else
+                files.add(change.getPath());
+        }
+        for (Index.Entry entry : getIndex().entries()) {
+            if (!isUnder(entry.getPath(), folder))
+                continue;
+            if (file(entry.getPath()).exists())
+                files.add(entry.getPath());
+            else
+                folders.add(existingParent(entry.getPath(), folder));
         }
 
-        // inserts an entry into index file
-        if (!inIndex(fileName)) {
-            PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter("git/index", true)));
-            pw.write(TYPEARRAY[input.isDirectory() ? 1 : 0] + " " + fileName + " " + input.getPath() + "\n");
-            pw.close();
+        // the root can't be staged, so removals right under it are left out
+        folders.remove("");
+        for (String path : folders) {
+            if (!isUnderAny(path, folders))
+                makeBlob(path, new HashSet<String>());
         }
+        for (String path : files) {
+            if (!isUnderAny(path, folders))
+                makeBlob(path, new HashSet<String>());
+        }
+    }
 
-        return fileName;
+    /**
+     * @return The closest folder above a path that still exists, going no higher
+     *         than the given folder
+     */
+    private String existingParent(String path, String folder) {
+        String parent = path;
+        do {
+            int slash = parent.lastIndexOf('/');
+            parent = slash < 0 ? "" : parent.substring(0, slash);
+        } while (!parent.equals(folder) && !parent.isEmpty() && !file(parent).isDirectory());
+        return parent;
     }
 
     /**
-     * @param hash - The hash of the file
-     * @return True if the file is in the index
-     * @throws IOException
+     * @return True if the path is the folder or inside it; everything is inside
+     *         ""
      */
-    private static boolean inIndex(String hash) throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader("git/index"));
-        while (reader.ready()) {
-            String line = reader.readLine();
-            if (line.contains(hash)) {
-                reader.close();
+    private static boolean isUnder(String path, String folder) {
+        return folder.isEmpty() || path.equals(folder) || path.startsWith(folder + "/");
+    }
+
+    /**
+     * @return True if the path is inside one of the folders, not counting itself
+     */
+    private static boolean isUnderAny(String path, Set<String> folders) {
+        for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+            if (folders.contains(path.substring(0, slash)))
                 return true;
-            }
         }
-        reader.close();
         return false;
     }
 
@@ -394,161 +815,1188 @@ public class Git implements GitInterface {
      * @throws IOException
      */
     public String commit(String author, String message) {
+        Metrics.OperationEvent event = metrics.begin(Metrics.Operation.COMMIT);
         try {
-            return commit(author, message, false);
-        } catch (Exception e) {
-            e.printStackTrace();
+            String hash = commit(author, message, false);
+            metrics.end(event);
+            return hash;
+        } catch (IOException | RuntimeException e) {
+            throw failed(event, e);
         }
-        return "";
     }
 
     /**
-     * Checks out a commit. Restores the working directory to the state from that
-     * commit.
+     * Stages a set of files and folders and commits them, with a single index
+     * write.
      * 
-     * @param commitHash - the hash of the commit
+     * @param author  - The author of the commit
+     * @param message - The description of the commit
+     * @param paths   - The paths to the files
+     * @return The hash of the commit
+     */
+    public String commit(String author, String message, Collection<String> paths) {
+        Snapshot snapshot = new Snapshot(author, message);
+        for (String path : paths)
+            snapshot.stage(path);
+        return commit(List.of(snapshot)).get(0);
+    }
+
+    /**
+     * Commits files given by their contents instead of read from the working
+     * directory, which isn't touched. The files are in the index and HEAD but
+     * not the working directory, so {@link #status()} reports them as removed
+     * until they are checked out or written there.
      * 
-     * @throws IOException
-     */ 
-    public void checkout(String commitHash) {
-        try {
-            checkout(commitHash, true);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+     * @param author  - The author of the commit
+     * @param message - The description of the commit
+     * @param files   - The contents of each file, by path
+     * @return The hash of the commit
+     */
+    public String commit(String author, String message, Map<String, byte[]> files) {
+        Snapshot snapshot = new Snapshot(author, message);
+        for (Map.Entry<String, byte[]> file : files.entrySet())
+            snapshot.put(file.getKey(), file.getValue());
+        return commit(List.of(snapshot)).get(0);
     }
 
     /**
-     * Checks out a commit. Restores the working directory to the state from that
-     * commit.
+     * Commits a batch of snapshots, each on top of the one before, while holding
+     * the index and HEAD locks once. HEAD and the index are only written after
+     * the last commit, so the whole batch costs one ref update and one index
+     * write however many commits it has, and those are the only writes flushed
+     * to disk: objects are never flushed one by one in this store. If any
+     * snapshot fails, HEAD doesn't move and none of the batch is committed.
      * 
-     * @param commitHash - the hash of the commit
-     * @param useless    - a useless variable used to overload the method; it
-     *                   doesn't matter what you put here
-     * @throws IOException
+     * @param snapshots - The commits to make, oldest first
+     * @return The hashes of the commits, in the same order
      */
-    private void checkout(String commitHash, boolean useless) throws IOException {
+    public List<String> commit(List<Snapshot> snapshots) {
+        if (snapshots.isEmpty())
+            return Collections.emptyList();
+        Metrics.OperationEvent event = metrics.begin(Metrics.Operation.COMMIT);
+        try (LockFile indexLock = lockIndex(lockTimeout); LockFile headLock = LockFile.lock(headFile, lockTimeout)) {
+            try {
+                String head = refs.resolve(Refs.HEAD);
+                String parent = head;
+                ArrayList<String> hashes = new ArrayList<>();
+                for (Snapshot snapshot : snapshots) {
+                    for (String path : snapshot.getPaths())
+                        makeBlob(repoPath(path), new HashSet<String>());
+                    for (Map.Entry<String, byte[]> file : snapshot.getFiles().entrySet()) {
+                        String hash = objects.write("blob", file.getValue());
+                        getIndex().add("blob", hash, repoPath(file.getKey()));
+                    }
+                    parent = writeCommit(snapshot.getAuthor(), snapshot.getMessage(), parent);
+                    hashes.add(parent);
+                }
+                updateHead(headLock, head, parent);
+                writeIndex(indexLock);
+                metrics.end(event);
+                return hashes;
+            } catch (IOException | RuntimeException e) {
+                // forget anything half done so the index is read again
+                index = null;
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            throw failed(event, e);
+        }
+    }
 
-        // clears the working directory before restoring commit
-        clearWorkingDirectory();
+    /**
+     * @return The timings and counters of this repository's operations, also
+     *         published over JMX
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
 
-        // restores the commit to the working directory
-        restoreData(commitHash);
+    /**
+     * @return The database of parsed commits and trees, with its cache statistics
+     */
+    public ObjectDatabase getObjectDatabase() {
+        return database;
     }
 
     /**
-     * Restores the data from a commit to the working directory.
+     * Lists the history of a commit, newest first. Commits are only read as the
+     * iterator reaches them.
      * 
-     * @param commitHash - the hash of the commit to restore
-     * @throws IOException
+     * @param start - HEAD, a branch, a tag or a hash to start from, or null for
+     *              HEAD
+     * @param limit - The most commits to list
+     * @return The commits
      */
-    private static void restoreData(String commitHash) throws IOException {
-        File commit = new File("git/objects/" + commitHash);
-        String commitData = getStringFromFile(commit.getPath());
-        int hashLocation = commitData.indexOf("tree") + 5;
-        String treeHash = commitData.substring(hashLocation, hashLocation + 40);
-        String treePath = "git/objects/" + treeHash;
-
-        // read in the entries from the tree specified in the commit
-        BufferedReader reader = new BufferedReader(new FileReader(treePath));
-        ArrayList<String> entries = new ArrayList<>();
-        while (reader.ready()) {
-            String line = reader.readLine();
-            entries.add(line);
+    public Iterator<Commit> log(String start, int limit) {
+        try {
+            start = refs.resolve(start == null ? Refs.HEAD : start);
+            if (start == null)
+                return Collections.emptyIterator();
+            return new History(database, getCommitGraph()).log(start, limit);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        reader.close();
+    }
 
-        // reverse order of the entries so folders are made first
-        Collections.reverse(entries);
+    /**
+     * @param ancestor - The possible ancestor: HEAD, a branch, a tag or a hash
+     * @param commit   - A commit, named the same ways
+     * @return True if ancestor is commit or is in its history
+     */
+    public boolean isAncestor(String ancestor, String commit) {
+        try {
+            String ancestorHash = refs.resolve(ancestor);
+            String commitHash = refs.resolve(commit);
+            if (ancestorHash == null || commitHash == null)
+                return false;
+            return new History(database, getCommitGraph()).isAncestor(ancestorHash, commitHash);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        // restore each entry to the working directory
-        for (String string : entries) {
-            if (string.contains("blob"))
-                restoreFile(string);
-            else if (string.contains("tree"))
-                restoreTree(string);
+    /**
+     * Lists the files that differ between two commits. Folders whose trees are
+     * the same in both commits are skipped without being read.
+     * 
+     * @param oldCommit - The hash of the commit before
+     * @param newCommit - The hash of the commit after
+     * @return The added, removed and modified files, sorted by path
+     */
+    public List<Diff.Change> diff(String oldCommit, String newCommit) {
+        try {
+            return new Diff(database, null).trees(database.getCommit(oldCommit).getTree(),
+                    database.getCommit(newCommit).getTree());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+    }
 
+    /**
+     * Lists the files in the working directory that differ from HEAD. Files
+     * whose stat data matches the index aren't read.
+     * 
+     * @return The added, removed and modified files, sorted by path
+     */
+    public List<Diff.Change> status() {
+        Metrics.OperationEvent event = metrics.begin(Metrics.Operation.STATUS);
+        try {
+            // the stat data is only saved if nobody else is using the index;
+            // otherwise a copy of it is read so the one being changed isn't touched
+            LockFile lock = null;
+            try {
+                lock = lockIndex(0);
+            } catch (LockFile.LockFailedException e) {
+                // busy
+            }
+            try {
+                Index stats = lock != null ? getIndex() : Index.load(indexFile, root);
+                String head = refs.resolve(Refs.HEAD);
+                String tree = head != null ? database.getCommit(head).getTree() : null;
+                List<Diff.Change> changes = worktreeChanges(new Diff(database, stats), tree);
+
+                // keep the hashes so the next status doesn't read the files again
+                if (lock != null)
+                    writeIndex(lock);
+                metrics.end(event);
+                return changes;
+            } finally {
+                if (lock != null)
+                    lock.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            throw failed(event, e);
+        }
     }
 
     /**
-     * Restores a file to the working directory given its line from a tree file.
+     * Compares the working directory with a tree, through the watcher if it is
+     * running. Files a sparse checkout left out aren't reported as removed.
      * 
-     * @param line - The line of information from the tree file
+     * @param diff - A diff with the index holding the stat data
+     * @param tree - The hash of the tree, or null for an empty tree
+     * @return The added, removed and modified files, sorted by path
      * @throws IOException
      */
-    private static void restoreFile(String line) throws IOException {
-        String fileHash = line.substring(5, 45);
-        String filePath = line.substring(46);
-        File file = new File(filePath);
-        if (file.exists())
-            file.delete();
-        Files.copy(Path.of("git/objects/" + fileHash), Path.of(filePath));
+    private List<Diff.Change> worktreeChanges(Diff diff, String tree) throws IOException {
+        List<Diff.Change> changes = watcher.isRunning() ? watcher.status(diff, tree)
+                : diff.worktree(tree, root.toFile());
+        SparseCheckout sparse = this.sparse;
+        if (sparse != null)
+            changes.removeIf(change -> change.getType() == Diff.Change.Type.REMOVED
+                    && !sparse.matches(change.getPath()));
+        return changes;
     }
 
     /**
-     * Restores the tree to the working directory.
+     * Writes git/commit-graph, a table of every commit reachable from HEAD, so
+     * that walking history doesn't have to read commit objects.
      * 
-     * @param line - The line from the commit or tree that contains information
-     *             about the tree to be restored
-     * @throws IOException
+     * @return The number of commits in the graph
      */
-    private static void restoreTree(String line) throws IOException {
-        String treeHash = line.substring(5, 45);
-        String treePath = line.substring(46);
-        File directory = new File(treePath);
-        if (!directory.exists())
-            directory.mkdir();
-        // File treeFile = new File("git/objects/" + treeHash);
+    public int writeCommitGraph() {
+        try {
+            // every branch and tag, and HEAD if it is detached
+            LinkedHashSet<String> tips = new LinkedHashSet<>(refs.list("refs/").values());
+            String head = refs.resolve(Refs.HEAD);
+            if (head != null)
+                tips.add(head);
+            int count = CommitGraph.write(database, tips, gitDir.resolve("commit-graph"));
+            commitGraph = CommitGraph.open(gitDir.resolve("commit-graph"));
+            commitGraphLoaded = true;
+            return count;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        // BufferedReader reader = new BufferedReader(new FileReader(treeFile));
-        // while (reader.ready()) {
-        // String treeline = reader.readLine();
-        // if (treeline.contains("blob")) {
-        // restoreFile(treeline);
-        // } else if (treeline.contains("tree")) {
-        // restoreTree(treeline);
-        // }
-        // }
-        // reader.close();
+    /**
+     * @return The commit-graph, or null if it hasn't been written
+     * @throws IOException
+     */
+    private CommitGraph getCommitGraph() throws IOException {
+        if (!commitGraphLoaded) {
+            commitGraph = CommitGraph.open(gitDir.resolve("commit-graph"));
+            commitGraphLoaded = true;
+        }
+        return commitGraph;
     }
 
     /**
-     * Clears the working directory of all files that do not end in .java and that
-     * are not a part of the git repository data.
+     * Packs every object into a single packfile in git/objects/pack, storing
+     * similar objects as deltas, and removes the loose object files. Loose refs
+     * are moved into packed-refs.
+     * 
+     * @return The number of objects in the pack
      */
-    private static void clearWorkingDirectory() {
-        File directory = new File("./");
-        for (File file : directory.listFiles()) {
-            if (file.isDirectory() && !keepFile(file.getName())) {
-                removeDirectory(file.getPath());
-            } else if (file.isFile() && !keepFile(file.getName())) {
-                file.delete();
+    public int gc() {
+        Metrics.OperationEvent event = metrics.begin(Metrics.Operation.GC);
+        try {
+            // only one process packs at a time; a second would delete the first's pack
+            LockFile lock = LockFile.lock(gitDir.resolve("gc"), lockTimeout);
+            try {
+                int packed = objects.pack();
+                refs.pack();
+                writeCommitGraph();
+                metrics.end(event);
+                return packed;
+            } finally {
+                lock.close();
             }
+        } catch (IOException | RuntimeException e) {
+            throw failed(event, e);
         }
     }
 
     /**
-     * Determines whether a file in the working directory should be kept.
+     * Starts pruning unreachable objects and repacking in the background. Runs
+     * don't lock the index or HEAD, so stage, commit and checkout carry on while
+     * they happen.
      * 
-     * @param fileName - The name of the file
-     * @return True if the file should be kept (should not be deleted)
+     * @param period - The time between runs
+     * @param unit   - The unit of the period
+     */
+    public void startMaintenance(long period, TimeUnit unit) {
+        maintenance.start(period, unit);
+    }
+
+    public void stopMaintenance() {
+        maintenance.stop();
+    }
+
+    /**
+     * @return The background maintenance, for its settings and statistics
      */
-    private static boolean keepFile(String fileName) {
-        return fileName.equals("git") || fileName.equals(".git") || fileName.equals(".gitignore")
-                || fileName.endsWith(".java");
+    public Maintenance getMaintenance() {
+        return maintenance;
+    }
+
+    /**
+     * Starts watching the working directory, so that status and stage only look
+     * at the paths that changed since the last time instead of walking every
+     * folder.
+     * 
+     * @param debounce  - How long changes have to stop for before they are
+     *                  staged automatically
+     * @param unit      - The unit of the debounce time
+     * @param autoStage - True to stage every change once a burst of changes
+     *                  goes quiet
+     */
+    public void startWatching(long debounce, TimeUnit unit, boolean autoStage) {
+        try {
+            watcher.setListener(autoStage ? this::stageWatchedChanges : null);
+            watcher.start(debounce, unit);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void stopWatching() {
+        watcher.stop();
+    }
+
+    /**
+     * @return The watcher, for its statistics
+     */
+    public Watcher getWatcher() {
+        return watcher;
+    }
+
+    /**
+     * Stages every change in the working directory, for the watcher to call.
+     */
+    private void stageWatchedChanges() {
+        Metrics.OperationEvent event = metrics.begin(Metrics.Operation.STAGE);
+        try (LockFile lock = lockIndex(lockTimeout)) {
+            try {
+                stageWatched("");
+                writeIndex(lock);
+                metrics.end(event);
+            } catch (IOException | RuntimeException e) {
+                index = null;
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            // runs on the watcher's thread, so the metrics are the only place to report it
+            metrics.fail(event, e);
+        }
+    }
+
+    /**
+     * Makes a branch at the commit HEAD points at.
+     * 
+     * @param name - The name of the branch, such as "main" or "feature/x"
+     * @return False if the branch already exists
+     */
+    public boolean createBranch(String name) {
+        return createBranch(name, Refs.HEAD);
+    }
+
+    /**
+     * @param name  - The name of the branch
+     * @param start - The commit, branch or tag the branch starts at
+     * @return False if the branch already exists
+     */
+    public boolean createBranch(String name, String start) {
+        try {
+            return createRef(Refs.HEADS + name, start);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Deletes a branch. The branch HEAD is on can't be deleted.
+     * 
+     * @param name - The name of the branch
+     * @return False if there is no such branch
+     */
+    public boolean deleteBranch(String name) {
+        try {
+            if ((Refs.HEADS + name).equals(refs.getHeadBranch()))
+                throw new IllegalStateException("Can't delete " + name + " while it is checked out");
+            return deleteRef(Refs.HEADS + name);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return The name of the branch HEAD is on, or null if a commit is checked
+     *         out directly
+     */
+    public String getCurrentBranch() {
+        try {
+            String branch = refs.getHeadBranch();
+            return branch != null && branch.startsWith(Refs.HEADS) ? branch.substring(Refs.HEADS.length()) : null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return Every branch by name, and the commit it points at
+     */
+    public SortedMap<String, String> getBranches() {
+        return listRefs(Refs.HEADS);
+    }
+
+    /**
+     * Makes a tag. Tags don't move once made.
+     * 
+     * @param name   - The name of the tag
+     * @param commit - The commit, branch or tag to tag
+     * @return False if the tag already exists
+     */
+    public boolean createTag(String name, String commit) {
+        try {
+            return createRef(Refs.TAGS + name, commit);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param name - The name of the tag
+     * @return False if there is no such tag
+     */
+    public boolean deleteTag(String name) {
+        try {
+            return deleteRef(Refs.TAGS + name);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return Every tag by name, and the commit it points at
+     */
+    public SortedMap<String, String> getTags() {
+        return listRefs(Refs.TAGS);
+    }
+
+    /**
+     * @param name - HEAD, a branch, a tag, a full ref name or a hash
+     * @return The hash of the commit it points at, or null if it doesn't
+     */
+    public String resolve(String name) {
+        try {
+            return refs.resolve(name);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Moves, makes or deletes a ref, but only if it still points where the caller
+     * last saw it. Lets tools like CI update branches without losing a change
+     * someone else made in between.
+     * 
+     * @param name     - The full name of the ref, such as refs/heads/main
+     * @param expected - The hash it must point at now, or null if it must not
+     *                 exist yet
+     * @param value    - The hash to point it at, or null to delete it
+     * @return False if the ref didn't have the expected value
+     */
+    public boolean updateRef(String name, String expected, String value) {
+        try {
+            return refs.compareAndSet(name, expected, value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean createRef(String name, String start) throws IOException {
+        String hash = refs.resolve(start);
+        if (hash == null)
+            throw new FileNotFoundException("No commit, branch or tag named " + start);
+        return refs.compareAndSet(name, null, hash);
+    }
+
+    private boolean deleteRef(String name) throws IOException {
+        String hash = refs.get(name);
+        return hash != null && refs.compareAndSet(name, hash, null);
+    }
+
+    /**
+     * @param prefix - refs/heads/ or refs/tags/
+     * @return The refs under the prefix by their short names
+     */
+    private SortedMap<String, String> listRefs(String prefix) {
+        TreeMap<String, String> named = new TreeMap<>();
+        try {
+            for (Map.Entry<String, String> ref : refs.list(prefix).entrySet())
+                named.put(ref.getKey().substring(prefix.length()), ref.getValue());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return named;
+    }
+
+    /**
+     * Checks out a commit. Restores the working directory to the state from that
+     * commit.
+     * 
+     * @param commitHash - the hash of the commit, or the name of a branch or tag
+     * 
+     * @throws IOException
+     */ 
+    public void checkout(String commitHash) {
+        checkout(commitHash, false);
+    }
+
+    /**
+     * Checks out a commit. Only the files that differ between HEAD and the commit
+     * are touched: files the commit doesn't have are deleted, and files that are
+     * new or have changed are restored. Checking out a branch puts HEAD on it, so
+     * new commits move the branch; anything else, such as a hash or a tag, points
+     * HEAD at the commit itself.
+     * 
+     * Local changes to files the commit doesn't change are kept. If the checkout
+     * would delete or overwrite a file that has been edited or staged since HEAD,
+     * nothing is touched and it fails instead.
+     * 
+     * @param commitHash - the hash of the commit, or the name of a branch or tag
+     * @param hardLinks  - True to restore files as hard links to their objects
+     *                   where possible instead of copying them. The files then
+     *                   share their data with the object store, so they must not
+     *                   be edited in place.
+     */
+    public void checkout(String commitHash, boolean hardLinks) {
+        checkout(commitHash, hardLinks, false);
+    }
+
+    /**
+     * @param commitHash - the hash of the commit, or the name of a branch or tag
+     * @param hardLinks  - True to restore files as hard links where possible
+     * @param force      - True to throw away local changes, restoring every file
+     *                   to its state in the commit
+     */
+    public void checkout(String commitHash, boolean hardLinks, boolean force) {
+        checkout(commitHash, hardLinks, force, null);
+    }
+
+    /**
+     * Checks out only the files of a commit that match some patterns, such as
+     * the folders a job needs out of a large snapshot. The trees are walked one
+     * folder at a time and folders no pattern can reach aren't read, so the time
+     * taken depends on how much is checked out rather than on the size of the
+     * commit. Files left out can be restored later with
+     * {@link #materialize(String)}, or read with {@link #open(String)}, which
+     * restores them the first time.
+     * 
+     * The patterns are kept until the next full checkout. Until then status
+     * doesn't report the files left out as removed, and staging a folder keeps
+     * them as they are in HEAD.
+     * 
+     * @param commitHash - the hash of the commit, or the name of a branch or tag
+     * @param patterns   - Paths of files or folders, such as "src/main", or glob
+     *                   patterns such as "docs/*.md"
+     */
+    public void checkout(String commitHash, Collection<String> patterns) {
+        checkout(commitHash, false, false, new SparseCheckout(patterns));
+    }
+
+    /**
+     * @param sparse - The paths to check out, or null for everything
+     */
+    private void checkout(String commitHash, boolean hardLinks, boolean force, SparseCheckout sparse) {
+        Metrics.OperationEvent event = metrics.begin(Metrics.Operation.CHECKOUT);
+        try (LockFile indexLock = lockIndex(lockTimeout); LockFile headLock = LockFile.lock(headFile, lockTimeout)) {
+            try {
+                String branch = Refs.isValidName(Refs.HEADS + commitHash) ? Refs.HEADS + commitHash : null;
+                String target = branch != null ? refs.get(branch) : null;
+                if (target == null) {
+                    branch = null;
+                    target = refs.resolve(commitHash);
+                    if (target == null)
+                        throw new FileNotFoundException("No commit, branch or tag named " + commitHash);
+                }
+                if (sparse != null)
+                    checkoutSparse(target, branch, sparse, indexLock, headLock);
+                else
+                    checkoutCommit(target, branch, hardLinks, force, indexLock, headLock);
+                metrics.end(event);
+            } catch (IOException | RuntimeException e) {
+                index = null;
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            throw failed(event, e);
+        }
+    }
+
+    /**
+     * Sets how long stage, commit and checkout wait for another process to let
+     * go of the index or HEAD before giving up.
+     * 
+     * @param millis - The longest wait, in milliseconds
+     */
+    public void setLockTimeout(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("The lock timeout can't be negative");
+        lockTimeout = millis;
+        refs.setLockTimeout(millis);
+    }
+
+    /**
+     * Stores files from a given size up as content-defined chunks, so that a
+     * small edit to a large file only stores the chunks around the edit instead
+     * of another copy of the file. Hashes don't change, and chunked files are
+     * checked out like any other.
+     * 
+     * @param bytes - The smallest file to chunk, or 0 to stop chunking new files
+     */
+    public void setChunkThreshold(long bytes) {
+        objects.setChunkThreshold(bytes);
+    }
+
+    /**
+     * Sets how many files checkout restores at once. Solid state drives do well
+     * with several threads; a spinning disk is usually fastest with one or two.
+     * 
+     * @param threads - The number of threads used to restore files
+     */
+    public void setCheckoutThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Need at least one checkout thread");
+        checkoutThreads = threads;
+    }
+
+    /**
+     * @param listener - Told about the progress of each checkout, or null
+     */
+    public void setCheckoutListener(CheckoutStats.Listener listener) {
+        checkoutListener = listener;
+    }
+
+    /**
+     * @return What the last checkout did and how fast, or null if there hasn't
+     *         been one
+     */
+    public CheckoutStats getLastCheckoutStats() {
+        return lastCheckout;
+    }
+
+    /**
+     * Restores the files on a fixed pool of threads once every folder has been
+     * made in a single pass.
+     * 
+     * @param commitHash - the hash of the commit
+     * @param branch     - The branch to put HEAD on, or null to point HEAD at the
+     *                   commit itself
+     * @param hardLinks  - True to restore files as hard links where possible
+     * @param force      - True to overwrite local changes
+     * @param indexLock  - The lock on the index
+     * @param headLock   - The lock on HEAD
+     * @throws IOException
+     */
+    private void checkoutCommit(String commitHash, String branch, boolean hardLinks, boolean force,
+            LockFile indexLock, LockFile headLock) throws IOException {
+        long start = System.nanoTime();
+        LinkedHashMap<String, Tree.Entry> target = readCommitTree(commitHash);
+
+        String head = refs.resolve(Refs.HEAD);
+        LinkedHashMap<String, Tree.Entry> current;
+        if (head != null)
+            current = readCommitTree(head);
+        else
+            current = new LinkedHashMap<>();
+        if (!force)
+            checkLocalChanges(current, target);
+
+        // delete the files that aren't in the commit
+        int deleted = 0;
+        TreeSet<String> oldDirectories = new TreeSet<>(Comparator.comparing(String::length).reversed()
+                .thenComparing(Comparator.reverseOrder()));
+        for (Tree.Entry entry : current.values()) {
+            String path = entry.getName();
+            if (entry.isTree()) {
+                if (!target.containsKey(path))
+                    oldDirectories.add(path);
+            } else if (!target.containsKey(path)) {
+                if (Files.deleteIfExists(root.resolve(path)))
+                    deleted++;
+            }
+        }
+
+        // then any of their folders that are now empty, deepest first
+        for (String path : oldDirectories) {
+            File directory = file(path);
+            String[] contents = directory.list();
+            if (contents != null && contents.length == 0)
+                directory.delete();
+        }
+
+        // make every folder first so the files can be restored in any order
+        TreeMap<String, Tree.Entry> directories = new TreeMap<>();
+        ArrayList<Tree.Entry> files = new ArrayList<>();
+        for (Tree.Entry entry : target.values()) {
+            if (entry.isTree()) {
+                directories.put(entry.getName(), entry);
+            } else {
+                files.add(entry);
+                int slash = entry.getName().lastIndexOf('/');
+                if (slash > 0)
+                    directories.putIfAbsent(entry.getName().substring(0, slash), null);
+            }
+        }
+        for (Map.Entry<String, Tree.Entry> directory : directories.entrySet()) {
+            if (directory.getValue() != null)
+                restoreTree(directory.getValue());
+            else
+                file(directory.getKey()).mkdirs();
+        }
+
+        // loaded here so the restore threads don't race to load it
+        getIndex();
+
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger restored = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        CheckoutStats.Listener listener = checkoutListener;
+        ExecutorService pool = Executors.newFixedThreadPool(checkoutThreads);
+        try {
+            ArrayList<Future<?>> restores = new ArrayList<>();
+            for (Tree.Entry entry : files) {
+                restores.add(pool.submit(() -> {
+                    String path = entry.getName();
+                    Tree.Entry old = current.get(path);
+                    boolean same = old != null && !old.isTree() && old.getId().equals(entry.getId());
+
+                    // a local edit to a file the commit doesn't change is kept, but a
+                    // deleted one is brought back
+                    if (!same || (force || !Files.exists(root.resolve(path))) && !isUnchanged(path, entry.getHash())) {
+                        bytes.addAndGet(restoreFile(entry, hardLinks));
+                        restored.incrementAndGet();
+                    }
+                    int count = done.incrementAndGet();
+                    if (listener != null)
+                        listener.progress(count, files.size(), bytes.get());
+                    return null;
+                }));
+            }
+            for (Future<?> restore : restores)
+                restore.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Checkout was interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // everything is checked out now
+        Files.deleteIfExists(sparseFile);
+        sparse = null;
+
+        headLock.write(branch != null ? Refs.symbolic(branch) : commitHash.getBytes());
+        headLock.commit();
+        writeIndex(indexLock);
+        lastCheckout = new CheckoutStats(restored.get(), files.size() - restored.get(), deleted, bytes.get(),
+                System.nanoTime() - start);
+    }
+
+    /**
+     * Makes sure a checkout doesn't lose work. A file of HEAD that has been
+     * edited or staged since, and that the checkout would delete or replace with
+     * something else, stops the checkout before anything is touched.
+     * 
+     * @param current - The entries of HEAD by path
+     * @param target  - The entries of the commit being checked out by path
+     * @throws IOException naming the files with local changes, if there are any
+     */
+    private void checkLocalChanges(Map<String, Tree.Entry> current, Map<String, Tree.Entry> target)
+            throws IOException {
+        TreeSet<String> changed = new TreeSet<>();
+        for (Tree.Entry entry : current.values()) {
+            String path = entry.getName();
+            Tree.Entry wanted = target.get(path);
+            if (entry.isTree() || wanted != null && wanted.getId().equals(entry.getId())
+                    || !Files.isRegularFile(root.resolve(path)))
+                continue;
+            Index.Entry staged = getIndex().getByPath(path);
+            boolean edited = staged != null && !staged.getHash().equals(entry.getHash())
+                    || !isUnchanged(path, entry.getHash());
+            if (edited && (wanted == null || wanted.isTree() || !isUnchanged(path, wanted.getHash())))
+                changed.add(path);
+        }
+        if (!changed.isEmpty())
+            throw new IOException("Checking out would overwrite local changes to " + String.join(", ", changed)
+                    + "; commit them first or check out with force");
+    }
+
+    /**
+     * Checks out the files of a commit that match a sparse checkout's patterns.
+     * HEAD's tree and the commit's are walked side by side one folder at a time,
+     * and matching files are restored on the checkout threads as they are found
+     * instead of being listed first. Files HEAD has that are no longer wanted
+     * are deleted.
+     * 
+     * @param commitHash - the hash of the commit
+     * @param branch     - The branch to put HEAD on, or null to point HEAD at the
+     *                   commit itself
+     * @param sparse     - The paths to check out
+     * @param indexLock  - The lock on the index
+     * @param headLock   - The lock on HEAD
+     * @throws IOException
+     */
+    private void checkoutSparse(String commitHash, String branch, SparseCheckout sparse, LockFile indexLock,
+            LockFile headLock) throws IOException {
+        long start = System.nanoTime();
+        String head = refs.resolve(Refs.HEAD);
+        String oldTree = head != null ? database.getCommit(head).getTree() : null;
+        String newTree = database.getCommit(commitHash).getTree();
+
+        try (LockFile lock = LockFile.lock(sparseFile, lockTimeout)) {
+            sparse.write(lock);
+        }
+        this.sparse = sparse;
+
+        // loaded here so the restore threads don't race to load it
+        getIndex();
+
+        SparseWalk walk = new SparseWalk(sparse);
+        try {
+            walk.folder("", oldTree, newTree);
+            walk.finish();
+        } finally {
+            walk.pool.shutdownNow();
+        }
+
+        headLock.write(branch != null ? Refs.symbolic(branch) : commitHash.getBytes());
+        headLock.commit();
+        writeIndex(indexLock);
+        lastCheckout = new CheckoutStats(walk.restored.get(), walk.found.get() - walk.restored.get(), walk.deleted,
+                walk.bytes.get(), System.nanoTime() - start);
+    }
+
+    /**
+     * The state of a sparse checkout while its trees are walked
+     */
+    private class SparseWalk {
+        private final SparseCheckout sparse;
+        private final ExecutorService pool = Executors.newFixedThreadPool(checkoutThreads);
+        private final CheckoutStats.Listener listener = checkoutListener;
+
+        // restores that haven't been waited for, oldest first
+        private final ArrayDeque<Future<?>> pending = new ArrayDeque<>();
+
+        private final AtomicInteger found = new AtomicInteger();
+        private final AtomicInteger done = new AtomicInteger();
+        private final AtomicInteger restored = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private int deleted;
+
+        private SparseWalk(SparseCheckout sparse) {
+            this.sparse = sparse;
+        }
+
+        /**
+         * Brings one folder from its state in the old tree to the wanted part of
+         * the new one.
+         * 
+         * @param prefix  - The folder's path, or "" for the root
+         * @param oldTree - The folder's tree in HEAD, or null if it had none
+         * @param newTree - The folder's tree in the commit, or null if nothing in
+         *                it is wanted any more
+         * @return The number of files checked out in the folder
+         */
+        private int folder(String prefix, String oldTree, String newTree) throws IOException {
+            File directory = prefix.isEmpty() ? root.toFile() : file(prefix);
+            String[] contents = directory.list();
+            HashSet<String> present = new HashSet<>(contents != null ? Arrays.asList(contents) : List.of());
+
+            TreeMap<String, Tree.Entry> oldEntries = folderEntries(oldTree);
+            TreeMap<String, Tree.Entry> newEntries = folderEntries(newTree);
+            TreeSet<String> names = new TreeSet<>(oldEntries.keySet());
+            names.addAll(newEntries.keySet());
+            int kept = 0;
+            for (String name : names) {
+                String path = prefix.isEmpty() ? name : prefix + "/" + name;
+                Tree.Entry old = oldEntries.get(name);
+                Tree.Entry entry = newEntries.get(name);
+                String oldFolder = old != null && old.isTree() ? old.getHash() : null;
+                if (entry != null && entry.isTree() && sparse.mayMatchUnder(path)) {
+                    if (old != null && !old.isTree())
+                        delete(path, present);
+                    kept += folder(path, oldFolder, entry.getHash());
+                    continue;
+                }
+
+                // nothing under a folder that isn't wanted is kept
+                if (oldFolder != null && present.contains(name))
+                    folder(path, oldFolder, null);
+                if (entry != null && !entry.isTree() && sparse.matches(path)) {
+                    if (old != null && !old.isTree() && !present.contains(name))
+                        old = null;
+                    restore(path, old, entry);
+                    kept++;
+                } else if (old != null && !old.isTree()) {
+                    delete(path, present);
+                }
+            }
+
+            // a folder left empty goes too; the restores may not have run yet,
+            // so one with files checked out in it is kept
+            contents = directory.list();
+            if (kept == 0 && !prefix.isEmpty() && contents != null && contents.length == 0)
+                directory.delete();
+            return kept;
+        }
+
+        private void delete(String path, Set<String> present) throws IOException {
+            if (present.contains(path.substring(path.lastIndexOf('/') + 1)) && Files.deleteIfExists(root.resolve(path)))
+                deleted++;
+        }
+
+        /**
+         * Restores a file on the pool unless it is already there.
+         * 
+         * @param old - The file's entry in HEAD, or null if it isn't in the
+         *            working directory
+         */
+        private void restore(String path, Tree.Entry old, Tree.Entry entry) throws IOException {
+            int slash = path.lastIndexOf('/');
+            if (slash >= 0)
+                file(path.substring(0, slash)).mkdirs();
+            Tree.Entry named = new Tree.Entry(entry.getType(), entry.getId(), path);
+            found.incrementAndGet();
+            pending.add(pool.submit(() -> {
+                if (old == null || !old.getId().equals(entry.getId()) || !isUnchanged(path, entry.getHash())) {
+                    bytes.addAndGet(restoreFile(named, false));
+                    restored.incrementAndGet();
+                }
+                int count = done.incrementAndGet();
+                if (listener != null)
+                    listener.progress(count, found.get(), bytes.get());
+                return null;
+            }));
+
+            // keeps the queue short and stops early if a restore failed
+            while (pending.size() > checkoutThreads * 16)
+                waitFor(pending.poll());
+        }
+
+        private void finish() throws IOException {
+            while (!pending.isEmpty())
+                waitFor(pending.poll());
+        }
+
+        private void waitFor(Future<?> restore) throws IOException {
+            try {
+                restore.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Checkout was interrupted");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * @param treeHash - The hash of a folder's tree, or null for none
+     * @return The folder's entries by name
+     * @throws IOException if the tree is an old flat tree, which can't be walked
+     *                     one folder at a time
+     */
+    private TreeMap<String, Tree.Entry> folderEntries(String treeHash) throws IOException {
+        TreeMap<String, Tree.Entry> entries = new TreeMap<>();
+        if (treeHash == null)
+            return entries;
+        for (Tree.Entry entry : database.getTree(treeHash).getEntries()) {
+            if (entry.getName().indexOf('/') >= 0)
+                throw new IOException("Tree " + treeHash + " lists whole paths; check the commit out in full instead");
+            entries.put(entry.getName(), entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Restores a file or folder from HEAD that a sparse checkout left out.
+     * Files that are already in the working directory aren't touched.
+     * 
+     * @param path - The path of the file or folder
+     * @return The number of files restored
+     */
+    public int materialize(String path) {
+        Metrics.OperationEvent event = metrics.begin(Metrics.Operation.CHECKOUT);
+        try (LockFile lock = lockIndex(lockTimeout)) {
+            try {
+                int count = materialize(repoPath(path), lock);
+                metrics.end(event);
+                return count;
+            } catch (IOException | RuntimeException e) {
+                index = null;
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            throw failed(event, e);
+        }
+    }
+
+    private int materialize(String path, LockFile lock) throws IOException {
+        String head = refs.resolve(Refs.HEAD);
+        if (head == null)
+            throw new FileNotFoundException(path + " isn't in HEAD");
+        int slash = path.lastIndexOf('/');
+        Tree.Entry entry = null;
+        if (slash < 0) {
+            entry = folderEntries(database.getCommit(head).getTree()).get(path);
+        } else {
+            Tree folder = headFolder(path.substring(0, slash));
+            if (folder != null) {
+                for (Tree.Entry e : folder.getEntries()) {
+                    if (e.getName().equals(path.substring(slash + 1)))
+                        entry = e;
+                }
+            }
+        }
+        if (entry == null)
+            throw new FileNotFoundException(path + " isn't in HEAD");
+        int count = materialize(new Tree.Entry(entry.getType(), entry.getId(), path));
+        writeIndex(lock);
+        return count;
+    }
+
+    /**
+     * @param entry - An entry of HEAD, named by its whole path
+     * @return The number of files restored
+     */
+    private int materialize(Tree.Entry entry) throws IOException {
+        File file = file(entry.getName());
+        if (!entry.isTree()) {
+            if (file.exists())
+                return 0;
+            file.getParentFile().mkdirs();
+            restoreFile(entry, false);
+            return 1;
+        }
+        int count = 0;
+        for (Tree.Entry child : folderEntries(entry.getHash()).values())
+            count += materialize(new Tree.Entry(child.getType(), child.getId(), entry.getName() + "/" + child.getName()));
+        return count;
+    }
+
+    /**
+     * Opens a file in the working directory for reading. A file a sparse
+     * checkout left out is restored from HEAD first.
+     * 
+     * @param path - The path of the file
+     * @return A stream of the file's contents
+     * @throws IOException if the file isn't in the working directory or HEAD
+     */
+    public InputStream open(String path) throws IOException {
+        String relative = repoPath(path);
+        Path file = root.resolve(relative);
+        if (!Files.exists(file) && sparse != null) {
+            Metrics.OperationEvent event = metrics.begin(Metrics.Operation.CHECKOUT);
+            try (LockFile lock = lockIndex(lockTimeout)) {
+                try {
+                    materialize(relative, lock);
+                    metrics.end(event);
+                } catch (IOException | RuntimeException e) {
+                    index = null;
+                    metrics.fail(event, e);
+                    throw e;
+                }
+            }
+        }
+        return Files.newInputStream(file);
+    }
+
+    /**
+     * Reads the tree of a commit as a map from each path to its entry, walking
+     * down into every folder's tree. The name of each entry is its whole path.
+     * 
+     * @param commitHash - the hash of the commit
+     * @return The entries of the commit by path
+     * @throws IOException
+     */
+    private LinkedHashMap<String, Tree.Entry> readCommitTree(String commitHash) throws IOException {
+        LinkedHashMap<String, Tree.Entry> entries = new LinkedHashMap<>();
+        readTree(database.getCommit(commitHash).getTree(), "", entries);
+        return entries;
+    }
+
+    /**
+     * Adds the entries of a tree and of every tree under it to a map. Old flat
+     * trees list whole paths, and later lines for the same path replace earlier
+     * ones.
+     * 
+     * @param treeHash - The hash of the tree
+     * @param prefix   - The path of the tree's folder, or "" for the root
+     * @param entries  - The map to add the entries to, by path
+     * @throws IOException
+     */
+    private void readTree(String treeHash, String prefix, LinkedHashMap<String, Tree.Entry> entries)
+            throws IOException {
+        for (Tree.Entry entry : database.getTree(treeHash).getEntries()) {
+            String path = prefix.isEmpty() ? entry.getName() : prefix + "/" + entry.getName();
+            entries.put(path, new Tree.Entry(entry.getType(), entry.getId(), path));
+            if (entry.isTree())
+                readTree(entry.getHash(), path, entries);
+        }
+    }
+
+    /**
+     * Checks whether a file in the working directory still has the given
+     * contents, using the stat data in the index to avoid reading it.
+     * 
+     * @param path - The path of the file
+     * @param hash - The hash the file should have
+     * @return True if the file exists and has that hash
+     * @throws IOException
+     */
+    private boolean isUnchanged(String path, String hash) throws IOException {
+        Path file = root.resolve(path);
+        if (!Files.isRegularFile(file))
+            return false;
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        String cached = getIndex().cachedHash(path, attrs);
+        metrics.statLookup(cached != null);
+        if (cached == null) {
+            cached = objects.hashFile(file);
+            getIndex().recordStat(path, cached, attrs);
+        }
+        return cached.equals(hash);
+    }
+
+    /**
+     * Restores a file to the working directory given its entry from a tree.
+     * 
+     * @param entry     - The file's entry, named by its whole path
+     * @param hardLinks - True to link the file to its object where possible
+     * @return The size of the restored file
+     * @throws IOException
+     */
+    private long restoreFile(Tree.Entry entry, boolean hardLinks) throws IOException {
+        long start = System.nanoTime();
+        String fileHash = entry.getHash();
+        String filePath = entry.getName();
+        File file = file(filePath);
+        if (file.isDirectory())
+            removeDirectory(file);
+        else if (file.exists())
+            file.delete();
+        if (!hardLinks || !objects.linkTo(fileHash, file.toPath()))
+            objects.copyTo(fileHash, file.toPath());
+
+        // the file is known to match its blob, so the next stage can skip it
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        getIndex().recordStat(filePath, fileHash, attrs);
+        metrics.record(Metrics.Phase.RESTORE, start, attrs.size());
+        return attrs.size();
+    }
+
+    /**
+     * Restores the tree to the working directory.
+     * 
+     * @param entry - The folder's entry, named by its whole path
+     * @throws IOException
+     */
+    private void restoreTree(Tree.Entry entry) throws IOException {
+        String treePath = entry.getName();
+        File directory = file(treePath);
+        if (!directory.exists())
+            directory.mkdirs();
     }
 
     /**
      * Deletes a directory and all files within it.
      * 
-     * @param directoryPath - the directory to delete
+     * @param directory - the directory to delete
      */
-    private static void removeDirectory(String directoryPath) {
-        File directory = new File(directoryPath);
+    private static void removeDirectory(File directory) {
         for (File file : directory.listFiles()) {
             if (file.isDirectory())
-                removeDirectory(file.getPath());
+                removeDirectory(file);
             file.delete();
         }
         directory.delete();
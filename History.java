@@ -0,0 +1,105 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Walks the history of commits. Parents, trees and generations are looked up in
+ * the commit-graph file when there is one, which turns each step into reading a
+ * row of a mapped table; a commit's object is only read if its author, date or
+ * message is asked for. Commits made since the graph was written are read from
+ * their objects until the walk reaches one the graph knows.
+ */
+public class History {
+
+    private final ObjectDatabase database;
+    private final CommitGraph graph;
+
+    /**
+     * @param database - The object database to read commits from
+     * @param graph    - The commit-graph, or null if there isn't one
+     */
+    public History(ObjectDatabase database, CommitGraph graph) {
+        this.database = database;
+        this.graph = graph;
+    }
+
+    /**
+     * Lists commits starting from one and following each commit's parent.
+     * Commits are only read as the iterator reaches them, and those in the
+     * commit-graph only when their details are asked for.
+     *
+     * @param start - The hash of the newest commit to list
+     * @param limit - The most commits to list
+     * @return The commits, newest first
+     */
+    public Iterator<Commit> log(String start, int limit) {
+        return new Iterator<Commit>() {
+            private String next = start;
+            private int row = graph == null ? -1 : graph.find(start);
+            private int count;
+
+            @Override
+            public boolean hasNext() {
+                return next != null && count < limit;
+            }
+
+            @Override
+            public Commit next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                try {
+                    Commit commit;
+                    count++;
+                    if (row >= 0) {
+                        int parent = graph.getParent(row);
+                        String hash = next;
+                        next = parent >= 0 ? graph.getHash(parent) : null;
+                        commit = new Commit(hash, graph.getTree(row), next, database);
+                        row = parent;
+                    } else {
+                        commit = database.getCommit(next);
+                        next = commit.getParent();
+                        if (next != null && graph != null)
+                            row = graph.find(next);
+                    }
+                    return commit;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Checks whether one commit is in the history of another. Once both are in
+     * the commit-graph, the walk stops as soon as it passes the generation of the
+     * possible ancestor.
+     *
+     * @param ancestor - The hash of the possible ancestor
+     * @param commit   - The hash of the commit whose history is searched
+     * @return True if ancestor is commit or one of its ancestors
+     * @throws IOException
+     */
+    public boolean isAncestor(String ancestor, String commit) throws IOException {
+        // walk the commits newer than the graph through their objects
+        String current = commit;
+        int row = -1;
+        while (current != null) {
+            if (current.equals(ancestor))
+                return true;
+            if (graph != null && (row = graph.find(current)) >= 0)
+                break;
+            current = database.getCommit(current).getParent();
+        }
+        if (current == null)
+            return false;
+
+        // the graph holds every ancestor of the commits in it
+        int target = graph.find(ancestor);
+        if (target < 0)
+            return false;
+        int generation = graph.getGeneration(target);
+        while (row >= 0 && graph.getGeneration(row) > generation)
+            row = graph.getParent(row);
+        return row == target;
+    }
+}
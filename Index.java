@@ -0,0 +1,696 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The staging index (git/index) held in memory. Changes mark the index as dirty
+ * and are only written back by {@link #write(LockFile)}, which replaces the file
+ * atomically while the index is locked.
+ *
+ * Like real git's index, it also remembers the size, modification time and
+ * inode of every file it has hashed. These are kept across commits, so staging
+ * a file whose stat data hasn't changed can reuse its hash without reading it.
+ * A file modified at or after the time the index was last written could have
+ * changed again within the same timestamp, so it is always hashed again. The
+ * stat data of such a file isn't written, since the next index would be newer
+ * and would make it look safe to reuse. The stat data of files that no longer
+ * exist is dropped whenever the index is written.
+ *
+ * The file is "GIDX", a version, the number of staged entries and the number of
+ * stat records, then one fixed-width row for each, both sorted by the UTF-8
+ * bytes of their paths, then the table of paths the rows point into, then a
+ * CRC-32C of everything before it. Staged entries are 20 bytes of id, the type
+ * and the offset and length of the path. Stat records are the id, size,
+ * modification time, the path and the file's inode. The file is memory mapped
+ * and stat records are binary searched in place, so loading an index doesn't
+ * depend on how many files it knows about; only the stat data recorded since it
+ * was loaded is kept in a map. Staged entries are read into maps the first time
+ * they are changed or listed.
+ *
+ * An index in the old text format, "type hash path" lines followed by "stat"
+ * lines, is still read, and is written back in the binary format.
+ */
+public class Index {
+
+    /**
+     * A single line of the index: "type hash path"
+     */
+    public static class Entry {
+        private final String type;
+        private final ObjectId id;
+        private final String path;
+
+        public Entry(String type, String hash, String path) {
+            this(type, ObjectId.fromString(hash), path);
+        }
+
+        public Entry(String type, ObjectId id, String path) {
+            this.type = type;
+            this.id = id;
+            this.path = path;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        public String getHash() {
+            return id.name();
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + id.name() + " " + path;
+        }
+    }
+
+    /**
+     * The stat data of a file when it was last hashed
+     */
+    private static class Stat {
+        private final ObjectId id;
+        private final long size;
+        private final long modified;
+        private final String fileKey;
+
+        private Stat(ObjectId id, long size, long modified, String fileKey) {
+            this.id = id;
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+        }
+    }
+
+    /**
+     * A mapped index file
+     */
+    private static class Table {
+        private final ByteBuffer buffer;
+        private final int entries;
+        private final int stats;
+
+        // where the path table starts
+        private final int strings;
+
+        private Table(ByteBuffer buffer, int entries, int stats) {
+            this.buffer = buffer;
+            this.entries = entries;
+            this.stats = stats;
+            this.strings = HEADER + entries * ENTRY + stats * STAT;
+        }
+
+        /**
+         * @param file   - The path the file was read from, for errors
+         * @param buffer - The contents of the file
+         * @param verify - Whether to check the checksum
+         * @return The table
+         * @throws IOException if the file is corrupt or a version this can't read
+         */
+        private static Table read(Path file, ByteBuffer buffer, boolean verify) throws IOException {
+            int size = buffer.capacity();
+            if (size < HEADER + CHECKSUM || buffer.getInt(0) != MAGIC)
+                throw new IOException(file + " isn't an index file");
+            if (buffer.getInt(4) != VERSION)
+                throw new IOException(file + " is index version " + buffer.getInt(4) + ", expected " + VERSION);
+            int entries = buffer.getInt(8);
+            int stats = buffer.getInt(12);
+            if (entries < 0 || stats < 0 || HEADER + (long) entries * ENTRY + (long) stats * STAT > size - CHECKSUM)
+                throw new IOException(file + " is corrupt");
+            if (verify) {
+                CRC32C crc = new CRC32C();
+                crc.update(buffer.slice(0, size - CHECKSUM));
+                if ((int) crc.getValue() != buffer.getInt(size - CHECKSUM))
+                    throw new IOException(file + " is corrupt: checksum mismatch");
+            }
+            return new Table(buffer, entries, stats);
+        }
+
+        private Entry entry(int row) {
+            int position = HEADER + row * ENTRY;
+            return new Entry(TYPES[buffer.getInt(position + 20)], ObjectId.fromBuffer(buffer, position),
+                    string(position + 24));
+        }
+
+        private Stat stat(int row) {
+            int position = HEADER + entries * ENTRY + row * STAT;
+            return new Stat(ObjectId.fromBuffer(buffer, position), buffer.getLong(position + 20),
+                    buffer.getLong(position + 28), string(position + 44));
+        }
+
+        /**
+         * @param path - The UTF-8 bytes of a path
+         * @return The row of the staged entry with that path, or -1
+         */
+        private int findEntry(byte[] path) {
+            return find(HEADER + 24, ENTRY, entries, path);
+        }
+
+        /**
+         * @param path - The UTF-8 bytes of a path
+         * @return The row of the stat record with that path, or -1
+         */
+        private int findStat(byte[] path) {
+            return find(HEADER + entries * ENTRY + 36, STAT, stats, path);
+        }
+
+        private int find(int first, int width, int count, byte[] path) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(first + mid * width, path);
+                if (cmp < 0)
+                    low = mid + 1;
+                else if (cmp > 0)
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+
+        /**
+         * Compares a string in the path table with some bytes the same way
+         * {@link Arrays#compareUnsigned(byte[], byte[])} would.
+         *
+         * @param position - Where the string's offset and length are stored
+         * @param bytes    - The bytes to compare it with
+         */
+        private int compare(int position, byte[] bytes) {
+            int offset = strings + buffer.getInt(position);
+            int length = buffer.getInt(position + 4);
+            int n = Math.min(length, bytes.length);
+            for (int i = 0; i < n; i++) {
+                int cmp = Byte.compareUnsigned(buffer.get(offset + i), bytes[i]);
+                if (cmp != 0)
+                    return cmp;
+            }
+            return length - bytes.length;
+        }
+
+        /**
+         * @param position - Where the string's offset and length are stored
+         * @return The bytes of the string
+         */
+        private byte[] bytes(int position) {
+            byte[] bytes = new byte[buffer.getInt(position + 4)];
+            buffer.get(strings + buffer.getInt(position), bytes);
+            return bytes;
+        }
+
+        private String string(int position) {
+            return new String(bytes(position), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Something to write under a path, paired with the path's bytes for sorting
+     */
+    private static class Row<T> {
+        private final byte[] path;
+        private final T value;
+
+        private Row(String path, T value) {
+            this(path.getBytes(StandardCharsets.UTF_8), value);
+        }
+
+        private Row(byte[] path, T value) {
+            this.path = path;
+            this.value = value;
+        }
+    }
+
+    private static final int MAGIC = 0x47494458; // "GIDX"
+    private static final int VERSION = 2;
+
+    private static final int HEADER = 16;
+    private static final int ENTRY = 20 + 4 + 4 + 4;
+    private static final int STAT = 20 + 8 + 8 + 4 + 4 + 4 + 4;
+    private static final int CHECKSUM = 4;
+
+    private static final String[] TYPES = { "blob", "tree" };
+
+    private final Path file;
+
+    // the folder the paths are relative to, or null to keep every file's stat data
+    private Path workTree;
+
+    // the file as it was last read or written, or null if it was empty or in
+    // the old text format
+    private volatile Table table;
+
+    // null until the staged entries are first changed or listed
+    private LinkedHashMap<String, Entry> byPath;
+    private HashMap<ObjectId, Entry> byHash;
+
+    // how many more entries have each hash that more than one entry has
+    private HashMap<ObjectId, Integer> shared;
+
+    // stat data recorded since the table was read; written from parallel
+    // stages, so it has to be thread safe
+    private final ConcurrentHashMap<String, Stat> stats = new ConcurrentHashMap<>();
+
+    // when the index file was last written, in nanoseconds
+    private volatile long timestamp = Long.MIN_VALUE;
+
+    // the inode of the index file as it was last read or written; every write
+    // replaces the file, so a different one means another process wrote it
+    private volatile Object fileKey;
+    private volatile boolean dirty;
+
+    private Index(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Maps the index file, or reads it into memory if it is in the old text
+     * format.
+     *
+     * @param file - The path to the index file
+     * @return The loaded index
+     * @throws IOException if the file can't be read or is corrupt
+     */
+    public static Index load(Path file) throws IOException {
+        return load(file, null);
+    }
+
+    /**
+     * Loads the index of a working directory. Writing it drops the stat data of
+     * files that are no longer there.
+     *
+     * @param file     - The path to the index file
+     * @param workTree - The working directory the index's paths are relative to
+     * @return The loaded index
+     * @throws IOException if the file can't be read or is corrupt
+     */
+    public static Index load(Path file, Path workTree) throws IOException {
+        Index index = new Index(file);
+        index.workTree = workTree;
+        if (Files.exists(file)) {
+            ByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.capacity() >= 4 && buffer.getInt(0) == MAGIC) {
+                index.table = Table.read(file, buffer, true);
+            } else if (buffer.capacity() > 0) {
+                index.loadText();
+            }
+            index.remember();
+        }
+        if (index.table == null)
+            index.loadEntries();
+        index.dirty = index.table == null && (!index.stats.isEmpty() || !index.isEmpty());
+        return index;
+    }
+
+    /**
+     * Reads an index written in the old text format, so it is converted the
+     * next time it is written.
+     */
+    private void loadText() throws IOException {
+        byPath = new LinkedHashMap<>();
+        byHash = new HashMap<>();
+        shared = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() < 46)
+                    continue;
+                int space = line.indexOf(' ');
+                String type = line.substring(0, space);
+                ObjectId id = ObjectId.fromString(line, space + 1);
+                if (type.equals("stat")) {
+                    // stat hash size modified fileKey path
+                    String[] fields = line.substring(space + 42).split(" ", 4);
+                    stats.put(fields[3], new Stat(id, Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                            fields[2]));
+                } else {
+                    put(new Entry(type, id, line.substring(space + 42)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the staged entries out of the table the first time they are needed.
+     */
+    private void loadEntries() {
+        if (byPath != null)
+            return;
+        byPath = new LinkedHashMap<>();
+        byHash = new HashMap<>();
+        shared = new HashMap<>();
+        Table table = this.table;
+        if (table != null) {
+            for (int i = 0; i < table.entries; i++)
+                put(table.entry(i));
+        }
+    }
+
+    /**
+     * Adds an entry to the index, replacing any entry with the same path.
+     *
+     * @param type - "blob" or "tree"
+     * @param hash - The hash of the object
+     * @param path - The path of the file in the working directory
+     */
+    public void add(String type, String hash, String path) {
+        loadEntries();
+        ObjectId id = ObjectId.fromString(hash);
+        Entry old = byPath.get(path);
+        if (old != null && old.getType().equals(type) && old.getId().equals(id))
+            return;
+        put(new Entry(type, id, path));
+        dirty = true;
+    }
+
+    private void put(Entry entry) {
+        Entry old = byPath.remove(entry.getPath());
+        if (old != null)
+            unhash(old);
+        byPath.put(entry.getPath(), entry);
+        if (byHash.put(entry.getId(), entry) != null)
+            shared.merge(entry.getId(), 1, Integer::sum);
+    }
+
+    /**
+     * Takes an entry that has been removed out of the hash lookup, unless
+     * another entry has the same hash.
+     */
+    private void unhash(Entry old) {
+        ObjectId id = old.getId();
+        Integer others = shared.remove(id);
+        if (others == null) {
+            byHash.remove(id);
+            return;
+        }
+        if (others > 1)
+            shared.put(id, others - 1);
+        if (byHash.get(id) == old) {
+            // only files with the same contents share a hash, so this is rare
+            for (Entry entry : byPath.values()) {
+                if (entry.getId().equals(id)) {
+                    byHash.put(id, entry);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up the hash of a file from the last time it was hashed.
+     *
+     * @param path  - The path of the file
+     * @param attrs - The file's current attributes
+     * @return The hash, or null if the file may have changed and has to be hashed
+     */
+    public String cachedHash(String path, BasicFileAttributes attrs) {
+        Stat stat = getStat(path);
+        if (stat == null)
+            return null;
+        long modified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        if (stat.size != attrs.size() || stat.modified != modified || !stat.fileKey.equals(fileKey(attrs)))
+            return null;
+
+        // racily clean: could have been modified again without the time changing
+        if (modified >= timestamp)
+            return null;
+        return stat.id.name();
+    }
+
+    private Stat getStat(String path) {
+        Stat stat = stats.get(path);
+        Table table = this.table;
+        if (stat != null || table == null)
+            return stat;
+        int row = table.findStat(path.getBytes(StandardCharsets.UTF_8));
+        return row < 0 ? null : table.stat(row);
+    }
+
+    /**
+     * Remembers the stat data of a file that has just been hashed.
+     *
+     * @param path  - The path of the file
+     * @param hash  - The hash of the file
+     * @param attrs - The attributes the file had when it was hashed
+     */
+    public void recordStat(String path, String hash, BasicFileAttributes attrs) {
+        stats.put(path, new Stat(ObjectId.fromString(hash), attrs.size(),
+                attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), fileKey(attrs)));
+        dirty = true;
+    }
+
+    private static String fileKey(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        return key == null ? "-" : key.toString().replace(' ', '_');
+    }
+
+    /**
+     * @param hash - The hash of an object
+     * @return True if some entry in the index has this hash
+     */
+    public boolean containsHash(String hash) {
+        loadEntries();
+        return byHash.containsKey(ObjectId.fromString(hash));
+    }
+
+    /**
+     * @param path - The path of a file
+     * @return The entry for the path, or null if it isn't staged
+     */
+    public Entry getByPath(String path) {
+        if (byPath != null)
+            return byPath.get(path);
+        int row = table.findEntry(path.getBytes(StandardCharsets.UTF_8));
+        return row < 0 ? null : table.entry(row);
+    }
+
+    /**
+     * @param hash - The hash of an object
+     * @return An entry with this hash, or null if there is none
+     */
+    public Entry getByHash(String hash) {
+        loadEntries();
+        return byHash.get(ObjectId.fromString(hash));
+    }
+
+    /**
+     * @return The entries sorted by path as they were read, followed by those
+     *         staged since in the order they were staged
+     */
+    public Collection<Entry> entries() {
+        loadEntries();
+        return Collections.unmodifiableCollection(byPath.values());
+    }
+
+    public boolean isEmpty() {
+        return byPath != null ? byPath.isEmpty() : table.entries == 0;
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Removes every staged entry from the index. The stat data is kept.
+     */
+    public void clear() {
+        if (!isEmpty())
+            dirty = true;
+        byPath = new LinkedHashMap<>();
+        byHash = new HashMap<>();
+        shared = new HashMap<>();
+    }
+
+    /**
+     * Checks whether the index file is still the one this index was read from
+     * or last wrote. If it isn't, another process has written it since.
+     *
+     * @return True if the file hasn't been replaced
+     * @throws IOException
+     */
+    public boolean isCurrent() throws IOException {
+        if (!Files.exists(file))
+            return fileKey == null && timestamp == Long.MIN_VALUE;
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS) == timestamp
+                && Objects.equals(attrs.fileKey(), fileKey);
+    }
+
+    private void remember() throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        timestamp = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        fileKey = attrs.fileKey();
+    }
+
+    /**
+     * Writes the index back to disk if it changed. The contents go into the lock
+     * file, which is then renamed over the index, so a crash never leaves a half
+     * written index behind. If nothing changed the lock is left for the caller to
+     * close.
+     *
+     * @param lock - The lock on the index file
+     * @throws IOException
+     */
+    public void write(LockFile lock) throws IOException {
+        if (!lock.getTarget().equals(file))
+            throw new IllegalArgumentException("Not a lock on " + file);
+        if (!dirty)
+            return;
+        byte[] data = encode(Long.MAX_VALUE);
+        lock.write(data);
+
+        // racily clean files: the time is only known once the file is written,
+        // so any written at or after it are dropped and the file written again
+        long written = lock.lastModified();
+        if (hasStatsSince(written)) {
+            data = encode(written);
+            lock.write(data);
+        }
+        lock.commit();
+        remember();
+
+        // everything is in the file now, so stat data is looked up there again
+        table = Table.read(file, ByteBuffer.wrap(data), false);
+        stats.clear();
+        dirty = false;
+    }
+
+    /**
+     * @param time - A time in nanoseconds
+     * @return True if any file's stat data was modified at or after the time
+     */
+    private boolean hasStatsSince(long time) {
+        for (Stat stat : stats.values()) {
+            if (stat.modified >= time)
+                return true;
+        }
+        Table table = this.table;
+        for (int i = 0; table != null && i < table.stats; i++) {
+            if (table.stat(i).modified >= time)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param smudge - The time from which files' stat data is left out, in
+     *               nanoseconds
+     * @return The index in the binary format
+     */
+    private byte[] encode(long smudge) throws IOException {
+        loadEntries();
+        ArrayList<Row<Entry>> entries = new ArrayList<>(byPath.size());
+        for (Entry entry : byPath.values())
+            entries.add(new Row<>(entry.getPath(), entry));
+        entries.sort((a, b) -> Arrays.compareUnsigned(a.path, b.path));
+
+        ArrayList<Row<Stat>> changed = new ArrayList<>(stats.size());
+        for (Map.Entry<String, Stat> stat : stats.entrySet())
+            changed.add(new Row<>(stat.getKey(), stat.getValue()));
+        changed.sort((a, b) -> Arrays.compareUnsigned(a.path, b.path));
+
+        // merge the stat data recorded since with the table's, which is sorted
+        Table table = this.table;
+        int old = table == null ? 0 : table.stats;
+        ArrayList<Row<Stat>> merged = new ArrayList<>(old + changed.size());
+        int next = 0;
+        for (int i = 0; i < old; i++) {
+            byte[] path = table.bytes(HEADER + table.entries * ENTRY + i * STAT + 36);
+            int cmp = 1;
+            while (next < changed.size() && (cmp = Arrays.compareUnsigned(changed.get(next).path, path)) <= 0) {
+                merged.add(changed.get(next++));
+                if (cmp == 0)
+                    break;
+            }
+            if (cmp != 0)
+                merged.add(new Row<>(path, table.stat(i)));
+        }
+        while (next < changed.size())
+            merged.add(changed.get(next++));
+        merged.removeIf(row -> row.value.modified >= smudge || isGone(row.path));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                HEADER + entries.size() * ENTRY + merged.size() * STAT + CHECKSUM);
+        CRC32C crc = new CRC32C();
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new CheckedOutputStream(bytes, crc), 64 * 1024));
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+        out.writeInt(merged.size());
+        for (Row<Entry> row : entries) {
+            int type = Arrays.asList(TYPES).indexOf(row.value.getType());
+            if (type < 0)
+                throw new IllegalStateException("Unknown type " + row.value.getType());
+            out.write(row.value.getId().toRaw());
+            out.writeInt(type);
+            writeString(out, strings, row.path);
+        }
+        for (Row<Stat> row : merged) {
+            out.write(row.value.id.toRaw());
+            out.writeLong(row.value.size);
+            out.writeLong(row.value.modified);
+            writeString(out, strings, row.path);
+            writeString(out, strings, row.value.fileKey.getBytes(StandardCharsets.UTF_8));
+        }
+        strings.writeTo(out);
+        out.flush();
+        out.writeInt((int) crc.getValue());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param path - The UTF-8 bytes of a path in the working directory
+     * @return True if there is no longer a file at the path
+     */
+    private boolean isGone(byte[] path) {
+        Path workTree = this.workTree;
+        return workTree != null && !Files.isRegularFile(workTree.resolve(new String(path, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Adds a string to the path table and writes where it is.
+     */
+    private static void writeString(DataOutputStream out, ByteArrayOutputStream strings, byte[] bytes)
+            throws IOException {
+        out.writeInt(strings.size());
+        out.writeInt(bytes.length);
+        strings.write(bytes);
+    }
+
+    /**
+     * @return The staged entries, one "type hash path" line per entry
+     */
+    @Override
+    public String toString() {
+        loadEntries();
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : byPath.values()) {
+            sb.append(entry.toString());
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
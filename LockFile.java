@@ -0,0 +1,291 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A git style lock on a file in the repository, such as git/index or git/HEAD.
+ *
+ * Locking a file creates "name.lock" next to it. Creating the lock file fails if
+ * it already exists, so only one writer, in this process or any other, can hold
+ * it at a time. The holder also takes an OS lock on the lock file, which lets a
+ * lock file left behind by a crashed process be told apart from one that is
+ * still held.
+ *
+ * Threads of this process wanting the same file queue on an in-memory lock
+ * first, so only one of them at a time goes after the lock file. The in-memory
+ * lock is dropped once nobody holds it or waits for it, so a long running
+ * process only keeps one for each file locked at the moment. A lock must be
+ * closed by the thread that took it.
+ *
+ * The new contents of the file are written to the lock file, which is then
+ * renamed over the file, so readers always see either the old contents or the
+ * new ones. Closing a lock that wasn't committed deletes the lock file and
+ * leaves the file as it was.
+ */
+public class LockFile implements Closeable {
+
+    /**
+     * Thrown when a lock is held by someone else for longer than we are
+     * willing to wait.
+     */
+    public static class LockFailedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LockFailedException(String message) {
+            super(message);
+        }
+    }
+
+    // a lock file this old that nobody holds was left behind by a crash
+    private static final long STALE_MILLIS = 10_000;
+
+    /**
+     * The in-memory lock on one file, with a count of the threads holding it or
+     * waiting for it
+     */
+    private static final class ThreadLock extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+
+        private final Path key;
+
+        // only changed inside THREAD_LOCKS.compute for the key
+        private int users;
+
+        private ThreadLock(Path key) {
+            this.key = key;
+        }
+
+        /**
+         * Stops counting the calling thread, dropping the lock from the map if
+         * nobody else is using it.
+         */
+        private void done() {
+            THREAD_LOCKS.computeIfPresent(key, (path, lock) -> --lock.users == 0 ? null : lock);
+        }
+    }
+
+    // one per file being locked, shared by every repository handle in the process
+    private static final ConcurrentHashMap<Path, ThreadLock> THREAD_LOCKS = new ConcurrentHashMap<>();
+
+    private final Path target;
+    private final Path lockPath;
+    private final ThreadLock threadLock;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private boolean closed;
+
+    private LockFile(Path target, Path lockPath, ThreadLock threadLock, FileChannel channel, FileLock lock) {
+        this.target = target;
+        this.lockPath = lockPath;
+        this.threadLock = threadLock;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     * Locks a file, waiting for whoever holds it to let go.
+     *
+     * @param target  - The file to lock
+     * @param timeout - How long to wait for the lock, in milliseconds
+     * @return The lock
+     * @throws LockFailedException if the lock is still held once the time is up
+     * @throws IOException
+     */
+    public static LockFile lock(Path target, long timeout) throws IOException {
+        Path lockPath = target.resolveSibling(target.getFileName() + ".lock");
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        ThreadLock threadLock = THREAD_LOCKS.compute(target.toAbsolutePath().normalize(), (key, lock) -> {
+            if (lock == null)
+                lock = new ThreadLock(key);
+            lock.users++;
+            return lock;
+        });
+        try {
+            if (!threadLock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+                threadLock.done();
+                throw new LockFailedException("Unable to lock " + target + ": another thread is holding it");
+            }
+        } catch (InterruptedException e) {
+            threadLock.done();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + lockPath);
+        }
+
+        try {
+            long backoff = 1;
+            while (true) {
+                LockFile lock = tryLock(target, lockPath, threadLock);
+                if (lock != null)
+                    return lock;
+                if (System.nanoTime() - deadline >= 0)
+                    throw new LockFailedException("Unable to lock " + target + ": " + lockPath
+                            + " is held by another process. If no other process is running, remove it"
+                            + " and try again.");
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, 50);
+            }
+        } catch (InterruptedException e) {
+            unlock(threadLock);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + lockPath);
+        } catch (IOException | RuntimeException e) {
+            unlock(threadLock);
+            throw e;
+        }
+    }
+
+    private static LockFile tryLock(Path target, Path lockPath, ThreadLock threadLock) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(lockPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            removeIfStale(lockPath);
+            return null;
+        }
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock != null)
+                return new LockFile(target, lockPath, threadLock, channel, lock);
+        } catch (OverlappingFileLockException e) {
+            // can't happen for a file we just created, but treat it as held
+        }
+        channel.close();
+        Files.deleteIfExists(lockPath);
+        return null;
+    }
+
+    /**
+     * Deletes a lock file that nobody holds and that hasn't been touched for a
+     * while. A lock file is only ever unheld for the moment between it being
+     * created and locked, so waiting for it to go stale can't break a live lock.
+     */
+    private static void removeIfStale(Path lockPath) throws IOException {
+        try {
+            long age = System.currentTimeMillis() - Files.getLastModifiedTime(lockPath).toMillis();
+            if (age < STALE_MILLIS)
+                return;
+            FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.WRITE);
+            try {
+                FileLock lock = channel.tryLock();
+                if (lock == null)
+                    return;
+
+                // another process may have removed it and made a fresh one since
+                age = System.currentTimeMillis() - Files.getLastModifiedTime(lockPath).toMillis();
+                if (age >= STALE_MILLIS)
+                    Files.deleteIfExists(lockPath);
+                lock.release();
+            } catch (OverlappingFileLockException e) {
+                // held by another thread of this process
+            } finally {
+                channel.close();
+            }
+        } catch (NoSuchFileException e) {
+            // let go of while we were looking at it
+        }
+    }
+
+    /**
+     * @return The file this lock is for
+     */
+    public Path getTarget() {
+        return target;
+    }
+
+    /**
+     * Writes the new contents of the file to the lock file. Nothing is visible
+     * until {@link #commit()}.
+     *
+     * @param data - The new contents of the file
+     * @throws IOException
+     */
+    public void write(byte[] data) throws IOException {
+        if (closed)
+            throw new IllegalStateException(lockPath + " has already been released");
+        channel.truncate(0);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = 0;
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    /**
+     * @return When the lock file was last written, in nanoseconds. The file keeps
+     *         this time when it is renamed over the target.
+     * @throws IOException
+     */
+    public long lastModified() throws IOException {
+        return Files.getLastModifiedTime(lockPath).to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Flushes the lock file to disk and renames it over the file, then lets go
+     * of the lock.
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        if (closed)
+            throw new IllegalStateException(lockPath + " has already been released");
+        try {
+            channel.force(true);
+            Files.move(lockPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Lets go of the lock without changing the file, unless it has already been
+     * committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        try {
+            Files.deleteIfExists(lockPath);
+        } finally {
+            release();
+        }
+    }
+
+    private void release() throws IOException {
+        closed = true;
+        try {
+            if (lock.isValid())
+                lock.release();
+        } finally {
+            try {
+                channel.close();
+            } finally {
+                unlock(threadLock);
+            }
+        }
+    }
+
+    private static void unlock(ThreadLock threadLock) {
+        threadLock.unlock();
+        threadLock.done();
+    }
+
+    /**
+     * @return The number of files threads of this process are holding or
+     *         waiting for
+     */
+    static int threadLocks() {
+        return THREAD_LOCKS.size();
+    }
+}
@@ -0,0 +1,433 @@
+import java.io.*;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the object store from growing forever. Every commit leaves behind the
+ * trees it replaced, and files that were staged but never committed leave their
+ * blobs; nothing ever refers to them again.
+ *
+ * A run marks every object reachable from HEAD, the refs and the index, deletes
+ * the loose objects that aren't marked and are older than the grace period,
+ * and packs the marked objects into a single pack. Unreachable objects still in
+ * their grace period stay loose, since packing them would make them look new
+ * again on every run. Unreachable objects found in a pack are written back out
+ * as loose objects dated at the pack's time, or dropped if the pack is older
+ * than the grace period, like git's repack -A. Objects written or reused
+ * during the grace period are never removed, which covers anything a stage or
+ * commit running at the same time is about to refer to: storing an object that
+ * already exists touches it instead (see {@link ObjectStore#freshen(String)}).
+ * A chunked blob's manifest that is kept, whether reachable or just young,
+ * keeps every chunk it lists. Loose objects hard linked into the working
+ * directory aren't freshened, so they are never pruned either.
+ *
+ * Runs happen on one low priority daemon thread. They don't take the index or
+ * HEAD locks, so they never hold up stage, commit or checkout, and they read
+ * objects without going through the shared parsed-object cache.
+ */
+public class Maintenance {
+
+    private final ObjectStore objects;
+    private final Path gitDir;
+
+    private volatile Duration gracePeriod = Duration.ofDays(14);
+    private ScheduledExecutorService scheduler;
+
+    // metrics
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong objectsPruned = new AtomicLong();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+    private final AtomicLong totalPauseNanos = new AtomicLong();
+    private volatile long lastPauseNanos;
+    private volatile long lastRunNanos;
+    private volatile int objectCount;
+
+    /**
+     * @param objects - The object store to maintain
+     * @param gitDir  - The repository's git folder, holding HEAD, refs and the
+     *                index
+     */
+    public Maintenance(ObjectStore objects, Path gitDir) {
+        this.objects = objects;
+        this.gitDir = gitDir;
+    }
+
+    /**
+     * @param gracePeriod - How old an unreachable object has to be before it is
+     *                    removed
+     */
+    public void setGracePeriod(Duration gracePeriod) {
+        if (gracePeriod.isNegative())
+            throw new IllegalArgumentException("The grace period can't be negative");
+        this.gracePeriod = gracePeriod;
+    }
+
+    public Duration getGracePeriod() {
+        return gracePeriod;
+    }
+
+    /**
+     * Runs maintenance in the background every so often, starting after one
+     * period. Does nothing if it is already running.
+     *
+     * @param period - The time between the end of one run and the start of the
+     *               next
+     * @param unit   - The unit of the period
+     */
+    public synchronized void start(long period, TimeUnit unit) {
+        if (scheduler != null)
+            return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "git-maintenance " + gitDir);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                runOnce();
+            } catch (Exception e) {
+                // counted, and the next run tries again
+                e.printStackTrace();
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stops running maintenance in the background. A run already going is
+     * interrupted, and this waits for it to finish.
+     */
+    public synchronized void stop() {
+        if (scheduler == null)
+            return;
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return scheduler != null;
+    }
+
+    /**
+     * Marks, prunes and repacks once, on the calling thread.
+     *
+     * @return False if another gc was already running, so nothing was done
+     * @throws IOException
+     */
+    public boolean runOnce() throws IOException {
+        long start = System.nanoTime();
+        LockFile lock;
+        try {
+            lock = LockFile.lock(gitDir.resolve("gc"), 0);
+        } catch (LockFile.LockFailedException e) {
+            skipped.incrementAndGet();
+            return false;
+        }
+        try {
+            long before = diskUsage();
+            FileTime cutoff = FileTime.fromMillis(System.currentTimeMillis() - gracePeriod.toMillis());
+
+            // anything written after the roots are read is young enough to be kept
+            HashSet<String> keep = mark();
+
+            // the chunks of unreachable manifests still in their grace period,
+            // with the time of the manifest
+            HashMap<String, FileTime> youngChunks = new HashMap<>();
+            int pruned = 0;
+            for (Map.Entry<String, Path> manifest : objects.manifests().entrySet()) {
+                if (keep.contains(manifest.getKey()))
+                    continue;
+                if (prune(manifest.getValue(), cutoff)) {
+                    pruned++;
+                    continue;
+                }
+                List<String> chunks = objects.chunks(manifest.getKey());
+                if (chunks != null) {
+                    FileTime modified = modified(manifest.getValue());
+                    for (String chunk : chunks)
+                        youngChunks.merge(chunk, modified, (a, b) -> a.compareTo(b) >= 0 ? a : b);
+                }
+            }
+
+            // young unreachable loose objects are left where they are
+            int young = 0;
+            HashMap<String, Path> loose = objects.looseObjects();
+            for (Map.Entry<String, Path> object : loose.entrySet()) {
+                if (keep.contains(object.getKey()))
+                    continue;
+                if (!youngChunks.containsKey(object.getKey()) && prune(object.getValue(), cutoff))
+                    pruned++;
+                else
+                    young++;
+            }
+            for (Path temp : objects.tempFiles())
+                prune(temp, cutoff);
+
+            // unreachable packed objects age from when they were packed
+            for (Map.Entry<String, FileTime> packed : objects.packedTimes().entrySet()) {
+                String id = packed.getKey();
+                if (keep.contains(id) || loose.containsKey(id))
+                    continue;
+                FileTime modified = packed.getValue();
+                FileTime manifest = youngChunks.get(id);
+                if (manifest != null && manifest.compareTo(modified) > 0)
+                    modified = manifest;
+                if (modified.compareTo(cutoff) >= 0) {
+                    objects.loosen(id, modified);
+                    young++;
+                } else {
+                    pruned++;
+                }
+            }
+
+            long pauseStart = System.nanoTime();
+            objectCount = objects.pack(keep) + young;
+            lastPauseNanos = System.nanoTime() - pauseStart;
+            totalPauseNanos.addAndGet(lastPauseNanos);
+
+            objectsPruned.addAndGet(pruned);
+            bytesReclaimed.addAndGet(Math.max(0, before - diskUsage()));
+            runs.incrementAndGet();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            lock.close();
+            lastRunNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Finds every object reachable from HEAD, the refs and the index. If any of
+     * them can't be read the run stops, since pruning with an incomplete mark
+     * would delete live objects.
+     *
+     * @return The hashes of the reachable objects
+     * @throws IOException
+     */
+    private HashSet<String> mark() throws IOException {
+        HashSet<String> marked = new HashSet<>();
+        for (String commit : roots())
+            markCommit(commit, marked);
+        Index index = Index.load(gitDir.resolve("index"));
+        for (Index.Entry entry : index.entries()) {
+            if (entry.getType().equals("tree"))
+                markTree(entry.getHash(), marked);
+            else
+                markBlob(entry.getHash(), marked);
+        }
+        return marked;
+    }
+
+    /**
+     * @return The commits that HEAD, the refs and packed-refs point at
+     * @throws IOException
+     */
+    private Set<String> roots() throws IOException {
+        HashSet<String> roots = new HashSet<>();
+        addRoot(gitDir.resolve("HEAD"), roots);
+        Path refs = gitDir.resolve("refs");
+        if (Files.isDirectory(refs)) {
+            try (java.util.stream.Stream<Path> files = Files.walk(refs)) {
+                for (Path ref : (Iterable<Path>) files::iterator) {
+                    if (Files.isRegularFile(ref) && !ref.getFileName().toString().endsWith(".lock"))
+                        addRoot(ref, roots);
+                }
+            }
+        }
+        Path packedRefs = gitDir.resolve("packed-refs");
+        if (Files.exists(packedRefs)) {
+            for (String line : Files.readAllLines(packedRefs)) {
+                if (line.length() >= 40 && ObjectId.isId(line.substring(0, 40)))
+                    roots.add(line.substring(0, 40));
+            }
+        }
+        return roots;
+    }
+
+    private static void addRoot(Path ref, Set<String> roots) throws IOException {
+        try {
+            String value = new String(Files.readAllBytes(ref)).trim();
+            if (value.length() >= 40 && ObjectId.isId(value.substring(0, 40)))
+                roots.add(value.substring(0, 40));
+        } catch (NoSuchFileException e) {
+            // deleted while we were looking
+        }
+    }
+
+    private void markCommit(String hash, Set<String> marked) throws IOException {
+        while (hash != null && marked.add(hash)) {
+            Commit commit = Commit.parse(hash, objects.read(hash));
+            markTree(commit.getTree(), marked);
+            hash = commit.getParent();
+        }
+    }
+
+    private void markTree(String hash, Set<String> marked) throws IOException {
+        // a tree already marked has had everything under it marked too
+        if (!marked.add(hash))
+            return;
+        for (Tree.Entry entry : Tree.parse(hash, objects.read(hash)).getEntries()) {
+            if (entry.isTree())
+                markTree(entry.getHash(), marked);
+            else
+                markBlob(entry.getHash(), marked);
+        }
+    }
+
+    private void markBlob(String hash, Set<String> marked) throws IOException {
+        if (!marked.add(hash))
+            return;
+        List<String> chunks = objects.chunks(hash);
+        if (chunks != null)
+            marked.addAll(chunks);
+    }
+
+    /**
+     * Deletes a file if it is older than the cutoff and isn't linked into the
+     * working directory, along with its fan-out folder if that is left empty.
+     *
+     * @return True if the file was deleted
+     */
+    private boolean prune(Path path, FileTime cutoff) throws IOException {
+        try {
+            if (Files.getLastModifiedTime(path).compareTo(cutoff) >= 0 || ObjectStore.linkCount(path) > 1)
+                return false;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (!Files.deleteIfExists(path))
+            return false;
+        Path parent = path.getParent();
+        if (parent.getFileName().toString().length() == 2) {
+            try {
+                Files.deleteIfExists(parent);
+            } catch (DirectoryNotEmptyException e) {
+                // other objects share the fan-out folder
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return When a file was last modified, or the start of time if it is gone
+     */
+    private static FileTime modified(Path path) throws IOException {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (NoSuchFileException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * @return The total size of the files in the object store
+     * @throws IOException
+     */
+    private long diskUsage() throws IOException {
+        long total = 0;
+        Path directory = gitDir.resolve("objects");
+        try (java.util.stream.Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                try {
+                    if (Files.isRegularFile(file))
+                        total += Files.size(file);
+                } catch (NoSuchFileException e) {
+                    // removed while we were counting
+                }
+            }
+        } catch (UncheckedIOException e) {
+            // a folder went away while it was being walked
+        }
+        return total;
+    }
+
+    /**
+     * @return The number of completed runs
+     */
+    public long getRuns() {
+        return runs.get();
+    }
+
+    /**
+     * @return The number of runs skipped because another gc was running
+     */
+    public long getSkippedRuns() {
+        return skipped.get();
+    }
+
+    /**
+     * @return The number of runs that failed
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return The number of objects in the store after the last run
+     */
+    public int getObjectCount() {
+        return objectCount;
+    }
+
+    /**
+     * @return The number of unreachable objects removed so far
+     */
+    public long getObjectsPruned() {
+        return objectsPruned.get();
+    }
+
+    /**
+     * @return The bytes freed so far, by pruning and by packing
+     */
+    public long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+
+    /**
+     * @return How long the last run held the object store's pack lock, in
+     *         milliseconds. This is the only part of a run anything else can wait
+     *         on, and only other packs do: reads keep using the old packs until
+     *         the new one is swapped in.
+     */
+    public double getLastPauseMillis() {
+        return lastPauseNanos / 1e6;
+    }
+
+    /**
+     * @return How long every run has held the pack lock, in milliseconds
+     */
+    public double getTotalPauseMillis() {
+        return totalPauseNanos.get() / 1e6;
+    }
+
+    /**
+     * @return How long the last run took from start to finish, in milliseconds
+     */
+    public double getLastRunMillis() {
+        return lastRunNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d runs, %d objects, %d pruned, %d bytes reclaimed, last pause %.1f ms", runs.get(),
+                objectCount, objectsPruned.get(), bytesReclaimed.get(), getLastPauseMillis());
+    }
+}
@@ -0,0 +1,416 @@
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Counts and times what a repository does: how long each operation and each
+ * phase inside it takes, how many bytes are hashed and written, and how often
+ * the caches save work.
+ *
+ * Counters are {@link LongAdder}s, so threads staging or checking out in
+ * parallel don't contend on them, and timing a phase costs two calls to
+ * System.nanoTime. Every operation is also recorded as a JFR event, and phases
+ * are too when a recording asks for them; when nothing is recording, an event
+ * costs a flag check.
+ */
+public class Metrics implements MetricsMXBean {
+
+    /**
+     * The public operations of a repository
+     */
+    public enum Operation {
+        STAGE, COMMIT, CHECKOUT, STATUS, GC
+    }
+
+    /**
+     * The steps operations spend their time in
+     */
+    public enum Phase {
+        /** listing folders while staging */
+        WALK,
+        /** hashing files without storing them */
+        HASH,
+        /** hashing and storing objects */
+        OBJECT_WRITE,
+        /** loading and writing the index */
+        INDEX_UPDATE,
+        /** building the trees of a commit */
+        TREE_BUILD,
+        /** restoring files during checkout */
+        RESTORE
+    }
+
+    @Name("git.Operation")
+    @Label("Git Operation")
+    @Category("Git")
+    @Description("A stage, commit, checkout, status or gc")
+    static class OperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Repository")
+        String repository;
+
+        @Label("Failed")
+        boolean failed;
+
+        @Label("Error")
+        String error;
+
+        // not recorded
+        transient Operation type;
+        transient long start;
+    }
+
+    @Name("git.Phase")
+    @Label("Git Phase")
+    @Category("Git")
+    @Description("One step of an operation, such as storing a file or building a tree")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    private static final EventType PHASE_EVENT = EventType.getEventType(PhaseEvent.class);
+
+    // numbers the handles opened in this process, for their MBean names
+    private static final AtomicInteger HANDLES = new AtomicInteger();
+
+    private final String repository;
+    private volatile ObjectName objectName;
+
+    private final LongAdder[] operationCounts = adders(Operation.values().length);
+    private final LongAdder[] operationNanos = adders(Operation.values().length);
+    private final LongAdder[] operationErrors = adders(Operation.values().length);
+    private final LongAdder[] phaseCounts = adders(Phase.values().length);
+    private final LongAdder[] phaseNanos = adders(Phase.values().length);
+
+    private final LongAdder bytesHashed = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder objectsWritten = new LongAdder();
+    private final LongAdder filesSkipped = new LongAdder();
+    private final LongAdder filesHashed = new LongAdder();
+
+    private volatile ObjectDatabase database;
+    private volatile long cacheHitsAtReset;
+    private volatile long cacheMissesAtReset;
+    private volatile String lastError;
+
+    /**
+     * @param repository - A name for the repository in events, such as its root
+     */
+    public Metrics(String repository) {
+        this.repository = repository;
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++)
+            adders[i] = new LongAdder();
+        return adders;
+    }
+
+    /**
+     * @param database - The object database whose cache hit rate is reported
+     */
+    void setObjectDatabase(ObjectDatabase database) {
+        this.database = database;
+        cacheHitsAtReset = database.getHits();
+        cacheMissesAtReset = database.getMisses();
+    }
+
+    /**
+     * Publishes these metrics over JMX. Every handle gets its own MBean, told
+     * apart by a handle number, so opening a repository again doesn't take over
+     * the metrics of a handle that is still in use.
+     *
+     * @param root - The root of the repository
+     */
+    void register(Path root) {
+        try {
+            ObjectName name = new ObjectName("git:type=Repository,root=" + ObjectName.quote(root.toString())
+                    + ",handle=" + HANDLES.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            // metrics are still kept, just not published
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Removes these metrics from JMX, once their handle is closed.
+     */
+    void unregister() {
+        ObjectName name = objectName;
+        if (name == null)
+            return;
+        objectName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (InstanceNotFoundException e) {
+            // already gone
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return The name these metrics are published under, or null if they
+     *         aren't
+     */
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * Starts timing an operation.
+     *
+     * @param operation - The operation
+     * @return The event to pass to {@link #end}
+     */
+    OperationEvent begin(Operation operation) {
+        OperationEvent event = new OperationEvent();
+        event.type = operation;
+        event.operation = operation.name();
+        event.repository = repository;
+        event.start = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Finishes timing an operation that succeeded.
+     *
+     * @param event - The event from {@link #begin}
+     */
+    void end(OperationEvent event) {
+        event.end();
+        int operation = event.type.ordinal();
+        operationCounts[operation].increment();
+        operationNanos[operation].add(System.nanoTime() - event.start);
+        event.commit();
+    }
+
+    /**
+     * Finishes timing an operation that failed.
+     *
+     * @param event - The event from {@link #begin}
+     * @param error - What went wrong
+     */
+    void fail(OperationEvent event, Throwable error) {
+        event.failed = true;
+        event.error = String.valueOf(error);
+        operationErrors[event.type.ordinal()].increment();
+        lastError = event.operation + ": " + error;
+        end(event);
+    }
+
+    /**
+     * Adds the time since a phase started.
+     *
+     * @param phase - The phase
+     * @param start - When it started, from System.nanoTime
+     */
+    void record(Phase phase, long start) {
+        record(phase, start, 0);
+    }
+
+    /**
+     * @param phase - The phase
+     * @param start - When it started, from System.nanoTime
+     * @param bytes - The number of bytes it handled
+     */
+    void record(Phase phase, long start, long bytes) {
+        long nanos = System.nanoTime() - start;
+        phaseCounts[phase.ordinal()].increment();
+        phaseNanos[phase.ordinal()].add(nanos);
+        if (PHASE_EVENT.isEnabled()) {
+            PhaseEvent event = new PhaseEvent();
+            event.phase = phase.name();
+            event.nanos = nanos;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    void addBytesHashed(long bytes) {
+        bytesHashed.add(bytes);
+    }
+
+    void addBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+        objectsWritten.increment();
+    }
+
+    /**
+     * Counts a file whose hash was looked up in the index.
+     *
+     * @param hit - True if the stat data matched, so the file wasn't read
+     */
+    void statLookup(boolean hit) {
+        if (hit)
+            filesSkipped.increment();
+        else
+            filesHashed.increment();
+    }
+
+    public long getOperationCount(Operation operation) {
+        return operationCounts[operation.ordinal()].sum();
+    }
+
+    public long getOperationErrors(Operation operation) {
+        return operationErrors[operation.ordinal()].sum();
+    }
+
+    /**
+     * @param phase - A phase
+     * @return The total time spent in it, in nanoseconds
+     */
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum();
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        return sums(Operation.values(), operationCounts);
+    }
+
+    @Override
+    public Map<String, Double> getOperationMillis() {
+        return millis(Operation.values(), operationNanos);
+    }
+
+    @Override
+    public Map<String, Long> getOperationErrors() {
+        return sums(Operation.values(), operationErrors);
+    }
+
+    @Override
+    public Map<String, Long> getPhaseCounts() {
+        return sums(Phase.values(), phaseCounts);
+    }
+
+    @Override
+    public Map<String, Double> getPhaseMillis() {
+        return millis(Phase.values(), phaseNanos);
+    }
+
+    private static Map<String, Long> sums(Enum<?>[] names, LongAdder[] adders) {
+        LinkedHashMap<String, Long> sums = new LinkedHashMap<>();
+        for (Enum<?> name : names)
+            sums.put(name.name(), adders[name.ordinal()].sum());
+        return sums;
+    }
+
+    private static Map<String, Double> millis(Enum<?>[] names, LongAdder[] adders) {
+        LinkedHashMap<String, Double> millis = new LinkedHashMap<>();
+        for (Enum<?> name : names)
+            millis.put(name.name(), adders[name.ordinal()].sum() / 1e6);
+        return millis;
+    }
+
+    @Override
+    public long getBytesHashed() {
+        return bytesHashed.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getObjectsWritten() {
+        return objectsWritten.sum();
+    }
+
+    @Override
+    public long getFilesSkipped() {
+        return filesSkipped.sum();
+    }
+
+    @Override
+    public long getFilesHashed() {
+        return filesHashed.sum();
+    }
+
+    @Override
+    public double getStatCacheHitRate() {
+        long hits = filesSkipped.sum();
+        long total = hits + filesHashed.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public double getObjectCacheHitRate() {
+        ObjectDatabase database = this.database;
+        if (database == null)
+            return 0;
+        long hits = database.getHits() - cacheHitsAtReset;
+        long total = hits + database.getMisses() - cacheMissesAtReset;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String getLastError() {
+        return lastError;
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder[] adders : List.of(operationCounts, operationNanos, operationErrors, phaseCounts, phaseNanos)) {
+            for (LongAdder adder : adders)
+                adder.reset();
+        }
+        for (LongAdder adder : List.of(bytesHashed, bytesWritten, objectsWritten, filesSkipped, filesHashed))
+            adder.reset();
+        ObjectDatabase database = this.database;
+        if (database != null) {
+            cacheHitsAtReset = database.getHits();
+            cacheMissesAtReset = database.getMisses();
+        }
+        lastError = null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Operation operation : Operation.values()) {
+            long count = getOperationCount(operation);
+            if (count > 0)
+                sb.append(String.format("%s %d in %.1f ms (%d failed)%n", operation, count,
+                        operationNanos[operation.ordinal()].sum() / 1e6, getOperationErrors(operation)));
+        }
+        for (Phase phase : Phase.values()) {
+            long count = phaseCounts[phase.ordinal()].sum();
+            if (count > 0)
+                sb.append(String.format("  %s %d in %.1f ms%n", phase, count, getPhaseNanos(phase) / 1e6));
+        }
+        sb.append(String.format("%d bytes hashed, %d bytes written in %d objects, %d files skipped (%.0f%%),"
+                + " object cache %.0f%%", getBytesHashed(), getBytesWritten(), getObjectsWritten(), getFilesSkipped(),
+                getStatCacheHitRate() * 100, getObjectCacheHitRate() * 100));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.Map;
+
+/**
+ * The view of a repository's {@link Metrics} published over JMX, under
+ * git:type=Repository,root="...",handle=N for each open handle. The handle
+ * number tells apart several handles on the same repository.
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return The number of times each operation has run, by name
+     */
+    Map<String, Long> getOperationCounts();
+
+    /**
+     * @return The total time spent in each operation, in milliseconds
+     */
+    Map<String, Double> getOperationMillis();
+
+    /**
+     * @return The number of times each operation has failed
+     */
+    Map<String, Long> getOperationErrors();
+
+    /**
+     * @return The number of times each phase has run, by name
+     */
+    Map<String, Long> getPhaseCounts();
+
+    /**
+     * @return The total time spent in each phase, in milliseconds
+     */
+    Map<String, Double> getPhaseMillis();
+
+    long getBytesHashed();
+
+    long getBytesWritten();
+
+    long getObjectsWritten();
+
+    /**
+     * @return The number of files that weren't read because their stat data
+     *         matched the index
+     */
+    long getFilesSkipped();
+
+    /**
+     * @return The number of files read and hashed
+     */
+    long getFilesHashed();
+
+    /**
+     * @return The fraction of files whose hash came from the index
+     */
+    double getStatCacheHitRate();
+
+    /**
+     * @return The fraction of commit and tree lookups answered from memory
+     */
+    double getObjectCacheHitRate();
+
+    /**
+     * @return The operation and message of the last failure, or null
+     */
+    String getLastError();
+
+    /**
+     * Sets every count and time back to zero.
+     */
+    void reset();
+}
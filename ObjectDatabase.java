@@ -0,0 +1,167 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads commits and trees out of the object store and keeps the most recently
+ * used ones parsed in memory, so walking history or checking out again doesn't
+ * go back to disk or parse the same object twice. Objects never change once
+ * written, so cached objects never go stale.
+ *
+ * The cache is split into stripes by the first digit of the hash, each its own
+ * least recently used list with its own lock, so threads reading different
+ * objects rarely wait on each other.
+ */
+public class ObjectDatabase {
+
+    private static final int STRIPES = 16;
+
+    private final ObjectStore objects;
+    private final Stripe[] stripes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param objects  - The object store to read from
+     * @param capacity - The most parsed objects kept in memory
+     */
+    public ObjectDatabase(ObjectStore objects, int capacity) {
+        this.objects = objects;
+        int stripeCapacity = Math.max(1, capacity / STRIPES);
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe(stripeCapacity);
+    }
+
+    /**
+     * One stripe of the cache, a least recently used list of parsed objects by
+     * hash
+     */
+    private static class Stripe extends LinkedHashMap<String, Object> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        private Stripe(int capacity) {
+            // access order makes the eldest entry the least recently used one
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private Stripe stripe(String hash) {
+        return stripes[Character.digit(hash.charAt(0), 16) & (STRIPES - 1)];
+    }
+
+    public ObjectStore getObjects() {
+        return objects;
+    }
+
+    /**
+     * @param hash - The hash of a commit
+     * @return The parsed commit
+     * @throws IOException
+     */
+    public Commit getCommit(String hash) throws IOException {
+        Object cached = lookup(hash);
+        if (cached instanceof Commit)
+            return (Commit) cached;
+        Commit commit = Commit.parse(hash, objects.read(hash));
+        store(hash, commit);
+        return commit;
+    }
+
+    /**
+     * @param hash - The hash of a tree
+     * @return The parsed tree
+     * @throws IOException
+     */
+    public Tree getTree(String hash) throws IOException {
+        Object cached = lookup(hash);
+        if (cached instanceof Tree)
+            return (Tree) cached;
+        Tree tree = Tree.parse(hash, objects.read(hash));
+        store(hash, tree);
+        return tree;
+    }
+
+    /**
+     * Writes a tree to the object store and keeps it parsed, since a tree that
+     * was just written is usually read again by the next commit.
+     *
+     * @param entries - The lines of the tree
+     * @return The hash of the tree
+     * @throws IOException
+     */
+    public String writeTree(List<Tree.Entry> entries) throws IOException {
+        String hash = objects.write("tree", Tree.toBytes(entries));
+        store(hash, new Tree(hash, new ArrayList<>(entries)));
+        return hash;
+    }
+
+    private Object lookup(String hash) {
+        LinkedHashMap<String, Object> stripe = stripe(hash);
+        Object cached;
+        synchronized (stripe) {
+            cached = stripe.get(hash);
+        }
+        if (cached != null)
+            hits.incrementAndGet();
+        else
+            misses.incrementAndGet();
+        return cached;
+    }
+
+    private void store(String hash, Object object) {
+        LinkedHashMap<String, Object> stripe = stripe(hash);
+        synchronized (stripe) {
+            stripe.put(hash, object);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The fraction of lookups answered from memory
+     */
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    /**
+     * @return The number of parsed objects in memory
+     */
+    public int size() {
+        int size = 0;
+        for (LinkedHashMap<String, Object> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Drops every cached object.
+     */
+    public void clear() {
+        for (LinkedHashMap<String, Object> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The SHA-1 hash of an object, held as five ints instead of a 40 character
+ * string. Comparing and hashing ids doesn't touch any other memory, and ids are
+ * converted to and from hex through lookup tables without any intermediate
+ * objects.
+ *
+ * Hashing goes through a SHA-1 digest kept per thread, cloned from one
+ * prototype, so hashing many small objects doesn't look up the algorithm or
+ * build a new digest each time.
+ */
+public final class ObjectId implements Comparable<ObjectId> {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // the value of each hex digit, or -1 for characters that aren't digits
+    private static final byte[] DIGITS = new byte[128];
+    static {
+        java.util.Arrays.fill(DIGITS, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            DIGITS[HEX[i]] = (byte) i;
+            DIGITS[Character.toUpperCase(HEX[i])] = (byte) i;
+        }
+    }
+
+    private static final MessageDigest PROTOTYPE;
+    static {
+        try {
+            PROTOTYPE = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(ObjectId::newDigest);
+
+    private final int w1;
+    private final int w2;
+    private final int w3;
+    private final int w4;
+    private final int w5;
+
+    private ObjectId(int w1, int w2, int w3, int w4, int w5) {
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.w4 = w4;
+        this.w5 = w5;
+    }
+
+    /**
+     * @param hash - A hash as 40 hex digits
+     * @return The id
+     * @throws IllegalArgumentException if the string isn't a hash
+     */
+    public static ObjectId fromString(String hash) {
+        if (hash.length() != 40)
+            throw new IllegalArgumentException("Not a hash: " + hash);
+        return fromString(hash, 0);
+    }
+
+    /**
+     * Parses a hash out of the middle of a line without cutting it out first.
+     *
+     * @param text   - Text containing a hash
+     * @param offset - Where the 40 hex digits start
+     * @return The id
+     * @throws IllegalArgumentException if the text there isn't a hash
+     */
+    public static ObjectId fromString(CharSequence text, int offset) {
+        if (offset < 0 || offset + 40 > text.length())
+            throw new IllegalArgumentException("Not a hash: " + text);
+        return new ObjectId(parseInt(text, offset), parseInt(text, offset + 8), parseInt(text, offset + 16),
+                parseInt(text, offset + 24), parseInt(text, offset + 32));
+    }
+
+    private static int parseInt(CharSequence text, int offset) {
+        int value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            char c = text.charAt(i);
+            int digit = c < 128 ? DIGITS[c] : -1;
+            if (digit < 0)
+                throw new IllegalArgumentException("Not a hash: " + text);
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    /**
+     * @param text - Any string
+     * @return True if the string is a hash as it is stored: 40 lowercase hex
+     *         digits. Uppercase digits would compare unequal to the same hash.
+     */
+    public static boolean isId(String text) {
+        if (text == null || text.length() != 40)
+            return false;
+        for (int i = 0; i < 40; i++) {
+            char c = text.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f'))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param raw    - Bytes containing a hash
+     * @param offset - Where the 20 bytes start
+     * @return The id
+     */
+    public static ObjectId fromRaw(byte[] raw, int offset) {
+        return new ObjectId(getInt(raw, offset), getInt(raw, offset + 4), getInt(raw, offset + 8),
+                getInt(raw, offset + 12), getInt(raw, offset + 16));
+    }
+
+    public static ObjectId fromRaw(byte[] raw) {
+        return fromRaw(raw, 0);
+    }
+
+    /**
+     * @param buffer   - A buffer containing a hash, such as a mapped index file
+     * @param position - Where the 20 bytes start
+     * @return The id
+     */
+    public static ObjectId fromBuffer(ByteBuffer buffer, int position) {
+        return new ObjectId(buffer.getInt(position), buffer.getInt(position + 4), buffer.getInt(position + 8),
+                buffer.getInt(position + 12), buffer.getInt(position + 16));
+    }
+
+    private static int getInt(byte[] raw, int offset) {
+        return (raw[offset] & 0xFF) << 24 | (raw[offset + 1] & 0xFF) << 16 | (raw[offset + 2] & 0xFF) << 8
+                | (raw[offset + 3] & 0xFF);
+    }
+
+    /**
+     * @return The 20 bytes of the hash
+     */
+    public byte[] toRaw() {
+        byte[] raw = new byte[20];
+        copyRawTo(raw, 0);
+        return raw;
+    }
+
+    /**
+     * @param raw    - The array to write the 20 bytes of the hash to
+     * @param offset - Where in the array to write them
+     */
+    public void copyRawTo(byte[] raw, int offset) {
+        putInt(raw, offset, w1);
+        putInt(raw, offset + 4, w2);
+        putInt(raw, offset + 8, w3);
+        putInt(raw, offset + 12, w4);
+        putInt(raw, offset + 16, w5);
+    }
+
+    private static void putInt(byte[] raw, int offset, int value) {
+        raw[offset] = (byte) (value >>> 24);
+        raw[offset + 1] = (byte) (value >>> 16);
+        raw[offset + 2] = (byte) (value >>> 8);
+        raw[offset + 3] = (byte) value;
+    }
+
+    /**
+     * @return The first byte of the hash, used to pick a fan-out bucket
+     */
+    public int getFirstByte() {
+        return w1 >>> 24;
+    }
+
+    /**
+     * Compares this id with one stored in a buffer, without reading it into an
+     * object first.
+     *
+     * @param buffer   - A buffer containing a hash
+     * @param position - Where the 20 bytes start
+     * @return Less than, equal to or greater than 0 as this id sorts before, the
+     *         same as, or after the stored one
+     */
+    public int compareTo(ByteBuffer buffer, int position) {
+        int cmp = Integer.compareUnsigned(w1, buffer.getInt(position));
+        if (cmp != 0)
+            return cmp;
+        cmp = Integer.compareUnsigned(w2, buffer.getInt(position + 4));
+        if (cmp != 0)
+            return cmp;
+        cmp = Integer.compareUnsigned(w3, buffer.getInt(position + 8));
+        if (cmp != 0)
+            return cmp;
+        cmp = Integer.compareUnsigned(w4, buffer.getInt(position + 12));
+        if (cmp != 0)
+            return cmp;
+        return Integer.compareUnsigned(w5, buffer.getInt(position + 16));
+    }
+
+    /**
+     * Ids sort the same way as their hex strings do.
+     */
+    @Override
+    public int compareTo(ObjectId other) {
+        int cmp = Integer.compareUnsigned(w1, other.w1);
+        if (cmp != 0)
+            return cmp;
+        cmp = Integer.compareUnsigned(w2, other.w2);
+        if (cmp != 0)
+            return cmp;
+        cmp = Integer.compareUnsigned(w3, other.w3);
+        if (cmp != 0)
+            return cmp;
+        cmp = Integer.compareUnsigned(w4, other.w4);
+        if (cmp != 0)
+            return cmp;
+        return Integer.compareUnsigned(w5, other.w5);
+    }
+
+    /**
+     * @return The hash as 40 hex digits
+     */
+    public String name() {
+        char[] chars = new char[40];
+        formatInt(chars, 0, w1);
+        formatInt(chars, 8, w2);
+        formatInt(chars, 16, w3);
+        formatInt(chars, 24, w4);
+        formatInt(chars, 32, w5);
+        return new String(chars);
+    }
+
+    private static void formatInt(char[] chars, int offset, int value) {
+        for (int i = offset + 7; i >= offset; i--) {
+            chars[i] = HEX[value & 0xF];
+            value >>>= 4;
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof ObjectId))
+            return false;
+        ObjectId id = (ObjectId) other;
+        return w1 == id.w1 && w2 == id.w2 && w3 == id.w3 && w4 == id.w4 && w5 == id.w5;
+    }
+
+    /**
+     * The bits of a SHA-1 hash are already evenly spread, so any word of it will
+     * do. The first word is avoided since fan-out tables already sort by it.
+     */
+    @Override
+    public int hashCode() {
+        return w2;
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+
+    /**
+     * @param data - The data to hash
+     * @return The SHA-1 hash of the data
+     */
+    public static ObjectId hash(byte[] data) {
+        return fromRaw(digest().digest(data));
+    }
+
+    /**
+     * @param digest - A digest that has been fed some data
+     * @return The id of the data, resetting the digest
+     */
+    public static ObjectId fromDigest(MessageDigest digest) {
+        return fromRaw(digest.digest());
+    }
+
+    /**
+     * Returns this thread's SHA-1 digest, reset and ready for use. It must be
+     * finished with before anything else on the thread hashes, so it shouldn't be
+     * held across calls into other code.
+     *
+     * @return The digest
+     */
+    public static MessageDigest digest() {
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        return md;
+    }
+
+    /**
+     * @return A new SHA-1 digest for callers that hash over a long span
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return (MessageDigest) PROTOTYPE.clone();
+        } catch (CloneNotSupportedException e) {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e2) {
+                throw new IllegalStateException(e2);
+            }
+        }
+    }
+}
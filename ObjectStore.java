@@ -0,0 +1,921 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads and writes objects in git/objects. Files are streamed through a
+ * reusable buffer: each chunk updates the SHA-1 digest and is written to a temp
+ * file in the same pass, and the temp file is renamed to its hash once the
+ * whole file has been read. Memory use stays the same no matter how big the
+ * file is.
+ *
+ * Objects are stored in one of two formats. The plain format keeps the raw
+ * contents at objects/hash. The compressed format is the one real git uses for
+ * loose objects: a "type length\0" header followed by the contents, deflated,
+ * at objects/xx/yyyy... where xx is the first two digits of the hash. Objects
+ * are named by the hash of their contents in both formats, so both can be read
+ * from the same repository and switching formats doesn't change any hashes.
+ *
+ * {@link #pack()} moves every object into a single packfile under
+ * objects/pack. Reads look for a loose object first and then fall back to the
+ * packs.
+ *
+ * Blobs at least as large as the chunk threshold, if one is set, are split by
+ * a {@link Chunker} and each chunk is stored as an object of its own. The blob
+ * is then recorded as a manifest listing its chunks, at
+ * objects/manifests/xx/yyyy... under the hash of its whole contents, so its
+ * hash is the same as if it hadn't been chunked. A new version of a large file
+ * only adds the chunks that changed. Reading a chunked blob streams its chunks
+ * back one after another; manifests are never packed.
+ */
+public class ObjectStore {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // one direct buffer per thread, reused for every file
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal
+            .withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    // holds deflated output before it is written
+    private static final ThreadLocal<ByteBuffer> DEFLATE_BUFFER = ThreadLocal
+            .withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private final Path directory;
+    private final Path packDirectory;
+    private volatile boolean compressed;
+    private volatile List<PackFile> packs = new ArrayList<>();
+    private volatile FileTime packsScanned;
+    // held while a pack is built, so lookups only wait on the list swap
+    final Object packing = new Object();
+    private final Path manifestDirectory;
+    private volatile long chunkThreshold;
+    private final Metrics metrics;
+
+    public ObjectStore(Path directory) {
+        this(directory, new Metrics(directory.toString()));
+    }
+
+    /**
+     * @param directory - The objects folder
+     * @param metrics   - Where to count the bytes hashed and written
+     */
+    public ObjectStore(Path directory, Metrics metrics) {
+        this.directory = directory;
+        this.packDirectory = directory.resolve("pack");
+        this.manifestDirectory = directory.resolve("manifests");
+        this.metrics = metrics;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param compressed - True to write new objects in the compressed format
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * @param threshold - The size in bytes from which blobs are stored as chunks,
+     *                  or 0 to never chunk them
+     */
+    public void setChunkThreshold(long threshold) {
+        if (threshold < 0)
+            throw new IllegalArgumentException("The chunk threshold can't be negative");
+        this.chunkThreshold = threshold;
+    }
+
+    public long getChunkThreshold() {
+        return chunkThreshold;
+    }
+
+    private Path loosePath(String hash) {
+        return directory.resolve(hash);
+    }
+
+    private Path compressedPath(String hash) {
+        return directory.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    private Path manifestPath(String hash) {
+        return manifestDirectory.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    /**
+     * @param hash - The hash of an object
+     * @return True if the object is in the store
+     */
+    public boolean exists(String hash) throws IOException {
+        return Files.exists(compressedPath(hash)) || Files.exists(loosePath(hash)) || findPack(hash) != null
+                || Files.exists(manifestPath(hash));
+    }
+
+    /**
+     * Checks that a loose object exists and marks it as just written, so that
+     * pruning, which only removes objects older than its grace period, leaves it
+     * alone while something new refers to it. An object that is only packed
+     * isn't freshened, so the caller writes it again as a loose object. For a
+     * chunked blob the manifest is freshened, which keeps its chunks too.
+     *
+     * A loose object hard linked into the working directory by a checkout is the
+     * same file as the working copy, so touching it would change the working
+     * file's time and throw away its stat data. It is left as it is; pruning
+     * never removes a linked object (see {@link #linkCount(Path)}).
+     *
+     * @param hash - The hash of an object
+     * @return True if the object exists as a loose object or a manifest
+     * @throws IOException
+     */
+    public boolean freshen(String hash) throws IOException {
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        Path loose = loosePath(hash);
+        for (Path path : new Path[] { compressedPath(hash), loose, manifestPath(hash) }) {
+            try {
+                if (path == loose && linkCount(path) > 1)
+                    return true;
+                Files.setLastModifiedTime(path, now);
+                return true;
+            } catch (NoSuchFileException e) {
+                // not stored in this format
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param path - A file
+     * @return The number of hard links to the file, or 1 if the file system
+     *         doesn't count them. An object with more than one is linked into a
+     *         working directory.
+     * @throws IOException
+     */
+    static int linkCount(Path path) throws IOException {
+        try {
+            return (Integer) Files.getAttribute(path, "unix:nlink");
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * @return When each packed object was last packed: the time of the newest
+     *         pack holding it, by hash
+     * @throws IOException
+     */
+    public HashMap<String, FileTime> packedTimes() throws IOException {
+        HashMap<String, FileTime> times = new HashMap<>();
+        for (PackFile pack : getPacks()) {
+            FileTime modified;
+            try {
+                modified = Files.getLastModifiedTime(pack.getPackPath());
+            } catch (NoSuchFileException e) {
+                // replaced by another repack
+                continue;
+            }
+            for (String id : pack.ids())
+                times.merge(id, modified, (a, b) -> a.compareTo(b) >= 0 ? a : b);
+        }
+        return times;
+    }
+
+    /**
+     * Writes a packed object back out as a plain loose object dated at the given
+     * time, so it ages from then rather than from whenever it is packed next.
+     * Does nothing if the object is already loose.
+     *
+     * @param hash     - The hash of the object
+     * @param modified - The time to give the loose object
+     * @throws IOException
+     */
+    public void loosen(String hash, FileTime modified) throws IOException {
+        Path target = loosePath(hash);
+        if (Files.exists(compressedPath(hash)) || Files.exists(target))
+            return;
+        Path temp = Files.createTempFile(directory, "tmp_obj_", null);
+        try {
+            InputStream in = open(hash);
+            try {
+                Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                in.close();
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.setLastModifiedTime(target, modified);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @return The temp files left in the store by writes that never finished, or
+     *         that are still going
+     * @throws IOException
+     */
+    List<Path> tempFiles() throws IOException {
+        ArrayList<Path> temps = new ArrayList<>();
+        for (Path folder : new Path[] { directory, packDirectory }) {
+            if (!Files.isDirectory(folder))
+                continue;
+            DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "tmp_*");
+            try {
+                for (Path path : stream)
+                    temps.add(path);
+            } finally {
+                stream.close();
+            }
+        }
+        return temps;
+    }
+
+    /**
+     * @return The manifests of the chunked blobs, by hash
+     * @throws IOException
+     */
+    HashMap<String, Path> manifests() throws IOException {
+        HashMap<String, Path> manifests = new HashMap<>();
+        if (!Files.isDirectory(manifestDirectory))
+            return manifests;
+        DirectoryStream<Path> stream = Files.newDirectoryStream(manifestDirectory);
+        try {
+            for (Path folder : stream) {
+                String name = folder.getFileName().toString();
+                if (name.length() != 2 || !isHex(name) || !Files.isDirectory(folder))
+                    continue;
+                DirectoryStream<Path> fanout = Files.newDirectoryStream(folder);
+                try {
+                    for (Path manifest : fanout) {
+                        String rest = manifest.getFileName().toString();
+                        if (rest.length() == 38 && isHex(rest))
+                            manifests.put(name + rest, manifest);
+                    }
+                } finally {
+                    fanout.close();
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        return manifests;
+    }
+
+    /**
+     * @param hash - The hash of a blob
+     * @return The hashes of the blob's chunks in order, or null if the blob
+     *         isn't chunked
+     * @throws IOException
+     */
+    public List<String> chunks(String hash) throws IOException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(manifestPath(hash), StandardCharsets.US_ASCII);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        ArrayList<String> chunks = new ArrayList<>(lines.size());
+        for (int i = 1; i < lines.size(); i++)
+            chunks.add(lines.get(i).substring(0, 40));
+        return chunks;
+    }
+
+    /**
+     * Closes the open packs. Streams still reading one keep it open until they
+     * are closed, and the packs are opened again if the store is used after.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        List<PackFile> open = packs;
+        packs = new ArrayList<>();
+        packsScanned = null;
+        for (PackFile pack : open)
+            pack.close();
+    }
+
+    /**
+     * @return The packs in objects/pack, opened the first time they are needed
+     * @throws IOException
+     */
+    private List<PackFile> getPacks() throws IOException {
+        if (packsScanned == null)
+            rescanPacks();
+        return packs;
+    }
+
+    /**
+     * Opens any packs added to objects/pack since it was last looked at and
+     * closes the ones that have been removed.
+     *
+     * @return True if the packs changed
+     * @throws IOException
+     */
+    private synchronized boolean rescanPacks() throws IOException {
+        if (!Files.isDirectory(packDirectory))
+            return false;
+        FileTime modified = Files.getLastModifiedTime(packDirectory);
+        if (modified.equals(packsScanned))
+            return false;
+
+        HashMap<Path, PackFile> open = new HashMap<>();
+        for (PackFile pack : packs)
+            open.put(pack.getIndexPath(), pack);
+        ArrayList<PackFile> loaded = new ArrayList<>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(packDirectory, "pack-*.idx");
+        try {
+            for (Path idx : stream) {
+                PackFile pack = open.remove(idx);
+                loaded.add(pack != null ? pack : PackFile.open(idx));
+            }
+        } finally {
+            stream.close();
+        }
+        packs = loaded;
+        packsScanned = modified;
+
+        // streams still reading a removed pack keep it open until they're closed
+        for (PackFile removed : open.values())
+            removed.close();
+        return true;
+    }
+
+    /**
+     * Finds the pack holding an object. If it isn't in any of the known packs,
+     * objects/pack is checked again in case another pack was written since.
+     *
+     * @param hash - The hash of the object
+     * @return The pack, or null if the object isn't packed
+     * @throws IOException
+     */
+    private PackFile findPack(String hash) throws IOException {
+        for (PackFile pack : getPacks()) {
+            if (pack.contains(hash))
+                return pack;
+        }
+        if (rescanPacks()) {
+            for (PackFile pack : packs) {
+                if (pack.contains(hash))
+                    return pack;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens an object for reading. Compressed objects are inflated as they are
+     * read and their header is skipped.
+     *
+     * @param hash - The hash of the object
+     * @return A stream of the object's contents
+     * @throws IOException
+     */
+    public InputStream open(String hash) throws IOException {
+        Path path = compressedPath(hash);
+        if (Files.exists(path)) {
+            InputStream in = null;
+            try {
+                in = new InflaterInputStream(new BufferedInputStream(Files.newInputStream(path)));
+            } catch (NoSuchFileException e) {
+                // pruned or packed away since the check
+            }
+            if (in != null) {
+                int b;
+                while ((b = in.read()) > 0)
+                    ;
+                if (b < 0) {
+                    in.close();
+                    throw new IOException("Corrupt object " + hash);
+                }
+                return in;
+            }
+        }
+        path = loosePath(hash);
+        if (Files.exists(path)) {
+            try {
+                return Files.newInputStream(path);
+            } catch (NoSuchFileException e) {
+                // packed away since the check
+            }
+        }
+        // a pack closed by a repack since it was found is no longer listed
+        PackFile pack;
+        while ((pack = findPack(hash)) != null) {
+            InputStream in = pack.open(hash);
+            if (in != null)
+                return in;
+        }
+        List<String> chunks = chunks(hash);
+        if (chunks == null)
+            throw new FileNotFoundException("Object " + hash + " doesn't exist");
+
+        // each chunk is only opened once the one before it has been read
+        Iterator<String> next = chunks.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            public boolean hasMoreElements() {
+                return next.hasNext();
+            }
+
+            public InputStream nextElement() {
+                try {
+                    return open(next.next());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param hash - The hash of the object
+     * @return The size of the object's contents
+     * @throws IOException
+     */
+    public long size(String hash) throws IOException {
+        Path path = loosePath(hash);
+        if (!Files.exists(compressedPath(hash)) && Files.exists(path))
+            return Files.size(path);
+        if (Files.exists(compressedPath(hash))) {
+            InputStream in = new InflaterInputStream(Files.newInputStream(compressedPath(hash)));
+            try {
+                String header = new String(in.readNBytes(64), StandardCharsets.US_ASCII);
+                return Long.parseLong(header.substring(header.indexOf(' ') + 1, header.indexOf('\0')));
+            } finally {
+                in.close();
+            }
+        }
+        PackFile pack;
+        while ((pack = findPack(hash)) != null) {
+            long size = pack.size(hash);
+            if (size >= 0)
+                return size;
+        }
+        try {
+            String header = Files.readAllLines(manifestPath(hash), StandardCharsets.US_ASCII).get(0);
+            return Long.parseLong(header.substring(header.indexOf(' ') + 1));
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("Object " + hash + " doesn't exist");
+        }
+    }
+
+    /**
+     * @return The hashes of every object in the store, loose or packed
+     * @throws IOException
+     */
+    public Set<String> list() throws IOException {
+        TreeSet<String> ids = new TreeSet<>(looseObjects().keySet());
+        for (PackFile pack : getPacks())
+            ids.addAll(pack.ids());
+        return ids;
+    }
+
+    /**
+     * @return The loose objects in the store, by hash
+     * @throws IOException
+     */
+    HashMap<String, Path> looseObjects() throws IOException {
+        HashMap<String, Path> loose = new HashMap<>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+        try {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.length() == 40 && isHex(name)) {
+                    loose.put(name, path);
+                } else if (name.length() == 2 && isHex(name) && Files.isDirectory(path)) {
+                    DirectoryStream<Path> fanout = Files.newDirectoryStream(path);
+                    try {
+                        for (Path object : fanout) {
+                            String rest = object.getFileName().toString();
+                            if (rest.length() == 38 && isHex(rest))
+                                loose.put(name + rest, object);
+                        }
+                    } finally {
+                        fanout.close();
+                    }
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        return loose;
+    }
+
+    private static boolean isHex(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f'))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Consolidates every object, loose or already packed, into one new pack and
+     * then removes the loose objects and the old packs. Lookups carry on from
+     * the old packs while the new one is written.
+     *
+     * @return The number of objects in the new pack
+     * @throws IOException
+     */
+    public int pack() throws IOException {
+        synchronized (packing) {
+            HashMap<String, Path> loose = looseObjects();
+            List<PackFile> oldPacks = getPacks();
+            if (loose.isEmpty() && oldPacks.size() <= 1)
+                return oldPacks.isEmpty() ? 0 : oldPacks.get(0).size();
+            return repack(list(), loose, oldPacks);
+        }
+    }
+
+    /**
+     * Replaces every pack with one holding only the given objects, then removes
+     * the loose objects that were packed. Packed objects that aren't kept are
+     * dropped. Chunked blobs stay as manifests; their chunks are packed if they
+     * are kept.
+     *
+     * @param keep - The hashes of the objects to keep
+     * @return The number of objects in the new pack
+     * @throws IOException
+     */
+    public int pack(Set<String> keep) throws IOException {
+        synchronized (packing) {
+            HashMap<String, Path> loose = looseObjects();
+            loose.keySet().retainAll(keep);
+            List<PackFile> oldPacks = getPacks();
+            TreeSet<String> ids = new TreeSet<>();
+            for (String id : keep) {
+                if (Files.exists(compressedPath(id)) || Files.exists(loosePath(id)) || findPack(id) != null)
+                    ids.add(id);
+            }
+            return repack(ids, loose, oldPacks);
+        }
+    }
+
+    /**
+     * Writes the new pack without holding the store's monitor, which only
+     * guards swapping in the rescanned pack list.
+     */
+    private int repack(Set<String> ids, HashMap<String, Path> loose, List<PackFile> oldPacks) throws IOException {
+        Path idx = PackFile.write(this, ids, packDirectory);
+        rescanPacks();
+
+        for (Path path : loose.values()) {
+            Files.deleteIfExists(path);
+            if (!path.getParent().equals(directory)) {
+                try {
+                    Files.deleteIfExists(path.getParent());
+                } catch (DirectoryNotEmptyException e) {
+                    // other objects share the fan-out folder
+                }
+            }
+        }
+        for (PackFile old : oldPacks) {
+            if (old.getIndexPath().equals(idx))
+                continue;
+            Files.deleteIfExists(old.getIndexPath());
+            Files.deleteIfExists(old.getPackPath());
+        }
+        rescanPacks();
+        return ids.size();
+    }
+
+    /**
+     * @param hash - The hash of the object
+     * @return The contents of the object
+     * @throws IOException
+     */
+    public byte[] read(String hash) throws IOException {
+        InputStream in = open(hash);
+        try {
+            return in.readAllBytes();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies the contents of an object into a file.
+     *
+     * @param hash   - The hash of the object
+     * @param target - The file to create
+     * @throws IOException
+     */
+    public void copyTo(String hash, Path target) throws IOException {
+        Path path = loosePath(hash);
+        if (!Files.exists(compressedPath(hash)) && Files.exists(path)) {
+            try {
+                Files.copy(path, target);
+                return;
+            } catch (NoSuchFileException e) {
+                // packed away since the check
+            }
+        }
+        InputStream in = open(hash);
+        try {
+            Files.copy(in, target);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Makes a hard link to an object's file, if it is stored as a plain loose
+     * object. The link shares its data with the object store.
+     *
+     * @param hash   - The hash of the object
+     * @param target - The file to create
+     * @return False if the object can't be linked and has to be copied instead
+     * @throws IOException
+     */
+    public boolean linkTo(String hash, Path target) throws IOException {
+        Path path = loosePath(hash);
+        if (Files.exists(compressedPath(hash)) || !Files.exists(path))
+            return false;
+        try {
+            Files.createLink(target, path);
+            return true;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // different file systems, or links aren't supported
+            return false;
+        }
+    }
+
+    /**
+     * Hashes a file without storing it.
+     *
+     * @param source - The file to hash
+     * @return The hash of the file
+     * @throws IOException
+     */
+    public String hashFile(Path source) throws IOException {
+        long start = System.nanoTime();
+        MessageDigest md = ObjectId.digest();
+        long read = 0;
+        FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+        try {
+            ByteBuffer buffer = BUFFER.get();
+            buffer.clear();
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                read += n;
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+        metrics.addBytesHashed(read);
+        metrics.record(Metrics.Phase.HASH, start, read);
+        return ObjectId.fromDigest(md).name();
+    }
+
+    /**
+     * Hashes a file and stores it as a blob, reading the file only once. Files
+     * at least as large as the chunk threshold are stored as chunks.
+     *
+     * @param source - The file to store
+     * @return The hash of the file
+     * @throws IOException
+     */
+    public String writeBlob(Path source) throws IOException {
+        long start = System.nanoTime();
+        long threshold = chunkThreshold;
+        long size = Files.size(source);
+        if (threshold > 0 && size >= threshold) {
+            String hash = writeChunked(source);
+            metrics.record(Metrics.Phase.OBJECT_WRITE, start, size);
+            return hash;
+        }
+        MessageDigest md = ObjectId.digest();
+        Path temp = Files.createTempFile(directory, "tmp_obj_", null);
+        try {
+            FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE);
+            Deflater deflater = compressed ? new Deflater() : null;
+            try {
+                if (deflater != null)
+                    deflate(deflater, ByteBuffer.wrap(header("blob", size)), out);
+
+                ByteBuffer buffer = BUFFER.get();
+                buffer.clear();
+                long read = 0;
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    read += n;
+                    buffer.flip();
+                    md.update(buffer);
+                    buffer.rewind();
+                    if (deflater != null) {
+                        deflate(deflater, buffer, out);
+                    } else {
+                        while (buffer.hasRemaining())
+                            out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+                if (read != size)
+                    throw new IOException(source + " changed while it was being staged");
+
+                if (deflater != null) {
+                    deflater.finish();
+                    deflate(deflater, null, out);
+                }
+            } finally {
+                in.close();
+                out.close();
+                if (deflater != null)
+                    deflater.end();
+            }
+            String hash = ObjectId.fromDigest(md).name();
+            moveIntoPlace(temp, hash);
+            metrics.addBytesHashed(size);
+            metrics.addBytesWritten(size);
+            metrics.record(Metrics.Phase.OBJECT_WRITE, start, size);
+            return hash;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Stores a file as chunks and a manifest listing them. Chunks that are
+     * already stored, from an earlier version of the file, aren't written again.
+     *
+     * @param source - The file to store
+     * @return The hash of the whole file
+     * @throws IOException
+     */
+    private String writeChunked(Path source) throws IOException {
+        // the chunks are stored through write(), which hashes with the thread's digest
+        MessageDigest md = ObjectId.newDigest();
+        StringBuilder manifest = new StringBuilder();
+        Chunker chunker = new Chunker((data, length) -> {
+            String chunk = store("blob", Arrays.copyOf(data, length));
+            manifest.append(chunk).append(' ').append(length).append('\n');
+        });
+
+        long read = 0;
+        FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+        try {
+            long size = in.size();
+            ByteBuffer buffer = BUFFER.get();
+            buffer.clear();
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                read += n;
+                buffer.flip();
+                md.update(buffer);
+                buffer.rewind();
+                chunker.update(buffer);
+                buffer.clear();
+            }
+            chunker.finish();
+            if (read != size)
+                throw new IOException(source + " changed while it was being staged");
+        } finally {
+            in.close();
+        }
+
+        metrics.addBytesHashed(read);
+        String hash = ObjectId.fromDigest(md).name();
+        if (freshen(hash))
+            return hash;
+        byte[] data = ("chunked " + read + "\n" + manifest).getBytes(StandardCharsets.US_ASCII);
+        Path target = manifestPath(hash);
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(directory, "tmp_manifest_", null);
+        try {
+            Files.write(temp, data);
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                // a prune removed the fan-out folder once it was empty
+                Files.createDirectories(target.getParent());
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return hash;
+    }
+
+    /**
+     * Stores data that is already in memory, such as a tree or a commit.
+     *
+     * @param type - The type of the object: "blob", "tree" or "commit"
+     * @param data - The contents of the object
+     * @return The hash of the data
+     * @throws IOException
+     */
+    public String write(String type, byte[] data) throws IOException {
+        long start = System.nanoTime();
+        String hash = store(type, data);
+        metrics.record(Metrics.Phase.OBJECT_WRITE, start, data.length);
+        return hash;
+    }
+
+    private String store(String type, byte[] data) throws IOException {
+        String hash = hash(data);
+        metrics.addBytesHashed(data.length);
+        if (!freshen(hash)) {
+            Path temp = Files.createTempFile(directory, "tmp_obj_", null);
+            try {
+                if (compressed) {
+                    FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE);
+                    Deflater deflater = new Deflater();
+                    try {
+                        deflate(deflater, ByteBuffer.wrap(header(type, data.length)), out);
+                        deflate(deflater, ByteBuffer.wrap(data), out);
+                        deflater.finish();
+                        deflate(deflater, null, out);
+                    } finally {
+                        out.close();
+                        deflater.end();
+                    }
+                } else {
+                    Files.write(temp, data);
+                }
+                moveIntoPlace(temp, hash);
+                metrics.addBytesWritten(data.length);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Renames a finished temp file to the object's final path.
+     */
+    private void moveIntoPlace(Path temp, String hash) throws IOException {
+        if (!compressed) {
+            Files.move(temp, loosePath(hash), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+        Path target = compressedPath(hash);
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            // a repack or prune removed the fan-out folder once it was empty
+            Files.createDirectories(target.getParent());
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Feeds input to the deflater and writes out whatever it produces. Passing
+     * null as the input drains a deflater that has been told to finish.
+     */
+    private static void deflate(Deflater deflater, ByteBuffer input, FileChannel out) throws IOException {
+        ByteBuffer output = DEFLATE_BUFFER.get();
+
+        // the deflater keeps a reference to its last input, which may since
+        // have been cleared and refilled
+        if (input != null)
+            deflater.setInput(input);
+        else
+            deflater.setInput(EMPTY);
+        while (input == null ? !deflater.finished() : !deflater.needsInput()) {
+            output.clear();
+            deflater.deflate(output);
+            output.flip();
+            while (output.hasRemaining())
+                out.write(output);
+        }
+    }
+
+    private static byte[] header(String type, long length) {
+        return (type + " " + length + "\0").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Generates the SHA-1 hash of some data.
+     *
+     * @param data - The data to hash
+     * @return The SHA-1 hash as 40 hex digits
+     */
+    public static String hash(byte[] data) {
+        return ObjectId.hash(data).name();
+    }
+}
@@ -0,0 +1,512 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A packfile in git/objects/pack: many objects stored in one file, with
+ * similar objects stored as deltas against each other.
+ *
+ * The .pack file is "PACK", a version and an object count, then one entry per
+ * object: a kind byte, the object's size, the hash of its base if it is a
+ * delta, and the deflated data. It ends with the SHA-1 of everything before
+ * it. The .idx file holds the hashes sorted in binary with a fan-out table of
+ * how many hashes start with each byte, followed by each object's offset in
+ * the pack. The index is memory mapped and binary searched, so finding an
+ * object never reads the pack itself.
+ *
+ * The .pack file is read through one channel shared by every reader. It is
+ * reference counted: each stream from {@link #open(String)} holds a reference
+ * until it is closed, so closing a pack that a repack replaced only closes the
+ * channel once the last reader is done with it. A reader interrupted in the
+ * middle of a read closes the channel for everyone, so the others open it again
+ * and carry on.
+ */
+public class PackFile {
+
+    private static final int FULL = 0;
+    private static final int DELTA = 1;
+
+    private static final int PACK_MAGIC = 0x5041434B; // "PACK"
+    private static final int IDX_MAGIC = 0x50494458; // "PIDX"
+    private static final int VERSION = 1;
+
+    private static final int IDX_HEADER = 12;
+    private static final int FANOUT = 256 * 4;
+
+    // how many recent objects are tried as delta bases
+    private static final int WINDOW = 10;
+
+    // longest chain of deltas allowed before an object is stored whole
+    private static final int MAX_DEPTH = 10;
+
+    // objects bigger than this are streamed into the pack without a delta
+    private static final long MAX_DELTA_SIZE = 16 * 1024 * 1024;
+
+    private final Path idxPath;
+    private final Path packPath;
+    private volatile FileChannel pack;
+    private final MappedByteBuffer idx;
+    private final int count;
+
+    // the store's reference and one for each open stream; the channel is closed
+    // when they are all gone
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private PackFile(Path idxPath, Path packPath, FileChannel pack, MappedByteBuffer idx, int count) {
+        this.idxPath = idxPath;
+        this.packPath = packPath;
+        this.pack = pack;
+        this.idx = idx;
+        this.count = count;
+    }
+
+    /**
+     * Opens a pack through its index file.
+     *
+     * @param idxPath - The path to the .idx file
+     * @return The pack
+     * @throws IOException
+     */
+    public static PackFile open(Path idxPath) throws IOException {
+        MappedByteBuffer idx;
+        FileChannel channel = FileChannel.open(idxPath, StandardOpenOption.READ);
+        try {
+            idx = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+        if (idx.getInt(0) != IDX_MAGIC || idx.getInt(4) != VERSION)
+            throw new IOException(idxPath + " isn't a pack index");
+        String name = idxPath.getFileName().toString();
+        Path packPath = idxPath.resolveSibling(name.substring(0, name.length() - 4) + ".pack");
+        return new PackFile(idxPath, packPath, FileChannel.open(packPath, StandardOpenOption.READ), idx, idx.getInt(8));
+    }
+
+    public Path getIndexPath() {
+        return idxPath;
+    }
+
+    public Path getPackPath() {
+        return packPath;
+    }
+
+    /**
+     * @return The number of objects in the pack
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param hash - The hash of an object
+     * @return True if the object is in this pack
+     */
+    public boolean contains(String hash) {
+        return find(hash) >= 0;
+    }
+
+    /**
+     * Binary searches the index for an object.
+     *
+     * @param hash - The hash of the object
+     * @return The offset of the object in the pack, or -1 if it isn't here
+     */
+    private long find(String hash) {
+        ObjectId id = ObjectId.fromString(hash);
+        int first = id.getFirstByte();
+        int low = first == 0 ? 0 : idx.getInt(IDX_HEADER + (first - 1) * 4);
+        int high = idx.getInt(IDX_HEADER + first * 4) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = -id.compareTo(idx, IDX_HEADER + FANOUT + mid * 20);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return idx.getLong(IDX_HEADER + FANOUT + count * 20 + mid * 8);
+        }
+        return -1;
+    }
+
+    /**
+     * @return The hashes of every object in the pack
+     */
+    public List<String> ids() {
+        ArrayList<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            ids.add(ObjectId.fromBuffer(idx, IDX_HEADER + FANOUT + i * 20).name());
+        return ids;
+    }
+
+    /**
+     * Opens an object in the pack. Whole objects are inflated as they are read;
+     * deltas are rebuilt from their base in memory. The pack stays open until
+     * the stream is closed, even if the pack itself is closed in the meantime.
+     *
+     * @param hash - The hash of the object
+     * @return A stream of the object's contents, or null if it isn't here or the
+     *         pack has been closed
+     * @throws IOException
+     */
+    public InputStream open(String hash) throws IOException {
+        long offset = find(hash);
+        if (offset < 0 || !acquire())
+            return null;
+        try {
+            return new ReleasingInputStream(open(offset, 0));
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    private InputStream open(long offset, int depth) throws IOException {
+        if (depth > MAX_DEPTH)
+            throw new IOException("Delta chain too long in " + packPath);
+        InputStream in = new BufferedInputStream(new ChannelInputStream(offset));
+        int kind = in.read();
+        Delta.readVarint(in);
+        if (kind == FULL)
+            return new InflaterInputStream(in);
+        if (kind != DELTA)
+            throw new IOException("Corrupt entry in " + packPath);
+
+        byte[] baseId = in.readNBytes(20);
+        byte[] delta;
+        InputStream data = new InflaterInputStream(in);
+        try {
+            delta = data.readAllBytes();
+        } finally {
+            data.close();
+        }
+        long baseOffset = find(ObjectId.fromRaw(baseId).name());
+        if (baseOffset < 0)
+            throw new IOException("Missing delta base in " + packPath);
+        byte[] base;
+        InputStream baseIn = open(baseOffset, depth + 1);
+        try {
+            base = baseIn.readAllBytes();
+        } finally {
+            baseIn.close();
+        }
+        return new ByteArrayInputStream(Delta.apply(base, delta));
+    }
+
+    /**
+     * @param hash - The hash of an object
+     * @return The size of the object, or -1 if it isn't here
+     * @throws IOException
+     */
+    public long size(String hash) throws IOException {
+        long offset = find(hash);
+        if (offset < 0 || !acquire())
+            return -1;
+        try {
+            InputStream in = new ChannelInputStream(offset + 1);
+            return Delta.readVarint(in);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Takes a reference to the pack so its channel stays open while it is read.
+     *
+     * @return False if the pack has already been closed, even if streams opened
+     *         before are still reading it
+     */
+    private boolean acquire() {
+        int n;
+        do {
+            n = references.get();
+            if (n == 0 || closed.get())
+                return false;
+        } while (!references.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    private synchronized void release() throws IOException {
+        if (references.decrementAndGet() == 0)
+            pack.close();
+    }
+
+    /**
+     * Reads from the pack at a position, opening the channel again if an
+     * interrupted reader on another thread closed it.
+     *
+     * @return The number of bytes read, or -1 at the end of the pack
+     * @throws IOException
+     */
+    private int read(ByteBuffer buffer, long position) throws IOException {
+        while (true) {
+            FileChannel channel = pack;
+            try {
+                return channel.read(buffer, position);
+            } catch (ClosedByInterruptException e) {
+                // this reader was interrupted; the others still need the channel
+                reopen(channel);
+                throw e;
+            } catch (ClosedChannelException e) {
+                if (references.get() == 0)
+                    throw e;
+                reopen(channel);
+            }
+        }
+    }
+
+    private synchronized void reopen(FileChannel closed) throws IOException {
+        if (pack == closed && references.get() > 0)
+            pack = FileChannel.open(packPath, StandardOpenOption.READ);
+    }
+
+    /**
+     * Closes the pack. Streams that are still open keep reading, and the file is
+     * closed once the last of them is.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (closed.compareAndSet(false, true))
+            release();
+    }
+
+    /**
+     * Writes a new pack holding the given objects. Objects are sorted by size
+     * and each one is tried as a delta against the last few objects before it;
+     * the delta is kept if it is less than half the size of the object.
+     *
+     * @param objects   - The object store to read the objects from
+     * @param ids       - The hashes of the objects to pack
+     * @param directory - The folder to write the pack into
+     * @return The path of the new .idx file
+     * @throws IOException
+     */
+    public static Path write(ObjectStore objects, Collection<String> ids, Path directory) throws IOException {
+        Files.createDirectories(directory);
+
+        // similar objects tend to be similar in size
+        HashMap<String, Long> sizes = new HashMap<>();
+        for (String id : ids)
+            sizes.put(id, objects.size(id));
+        ArrayList<String> order = new ArrayList<>(ids);
+        order.sort(Comparator.comparing((String id) -> sizes.get(id)).thenComparing(id -> id));
+
+        TreeMap<String, Long> offsets = new TreeMap<>();
+        Path temp = Files.createTempFile(directory, "tmp_pack_", null);
+        Path tempIdx = null;
+        try {
+            MessageDigest md = ObjectId.newDigest();
+            CountingOutputStream out = new CountingOutputStream(new DigestOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)), md));
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(PACK_MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(order.size());
+
+            ArrayDeque<WindowEntry> window = new ArrayDeque<>();
+            for (String id : order) {
+                long size = sizes.get(id);
+                offsets.put(id, out.count);
+
+                if (size > MAX_DELTA_SIZE) {
+                    out.write(FULL);
+                    Delta.writeVarint(out, size);
+                    InputStream in = objects.open(id);
+                    try {
+                        deflate(in, out);
+                    } finally {
+                        in.close();
+                    }
+                    continue;
+                }
+
+                byte[] data = objects.read(id);
+                WindowEntry base = null;
+                byte[] bestDelta = null;
+                for (WindowEntry candidate : window) {
+                    if (candidate.depth >= MAX_DEPTH)
+                        continue;
+                    byte[] delta = Delta.create(candidate.data, data);
+                    if (delta.length < data.length / 2 && (bestDelta == null || delta.length < bestDelta.length)) {
+                        base = candidate;
+                        bestDelta = delta;
+                    }
+                }
+
+                if (base != null) {
+                    out.write(DELTA);
+                    Delta.writeVarint(out, size);
+                    out.write(ObjectId.fromString(base.id).toRaw());
+                    deflate(new ByteArrayInputStream(bestDelta), out);
+                } else {
+                    out.write(FULL);
+                    Delta.writeVarint(out, size);
+                    deflate(new ByteArrayInputStream(data), out);
+                }
+
+                window.addLast(new WindowEntry(id, data, base == null ? 0 : base.depth + 1));
+                if (window.size() > WINDOW)
+                    window.removeFirst();
+            }
+            out.flush();
+            byte[] checksum = md.digest();
+            out.write(checksum);
+            out.close();
+
+            // the index is written last so readers never see a pack without one
+            String name = "pack-" + ObjectId.fromRaw(checksum).name();
+            tempIdx = Files.createTempFile(directory, "tmp_idx_", null);
+            writeIndex(tempIdx, offsets, checksum);
+            Files.move(temp, directory.resolve(name + ".pack"), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Path idxPath = directory.resolve(name + ".idx");
+            Files.move(tempIdx, idxPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return idxPath;
+        } finally {
+            Files.deleteIfExists(temp);
+            if (tempIdx != null)
+                Files.deleteIfExists(tempIdx);
+        }
+    }
+
+    private static void writeIndex(Path path, TreeMap<String, Long> offsets, byte[] checksum) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        try {
+            out.writeInt(IDX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(offsets.size());
+
+            int[] fanout = new int[256];
+            for (String id : offsets.keySet())
+                fanout[ObjectId.fromString(id).getFirstByte()]++;
+            int total = 0;
+            for (int i = 0; i < 256; i++) {
+                total += fanout[i];
+                out.writeInt(total);
+            }
+            for (String id : offsets.keySet())
+                out.write(ObjectId.fromString(id).toRaw());
+            for (long offset : offsets.values())
+                out.writeLong(offset);
+            out.write(checksum);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deflate(InputStream in, OutputStream out) throws IOException {
+        // finished rather than closed, which would close the pack as well
+        Deflater deflater = new Deflater();
+        try {
+            DeflaterOutputStream stream = new DeflaterOutputStream(out, deflater, 8192);
+            in.transferTo(stream);
+            stream.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * An object recently written to the pack that later objects can be deltas of
+     */
+    private static class WindowEntry {
+        private final String id;
+        private final byte[] data;
+        private final int depth;
+
+        private WindowEntry(String id, byte[] data, int depth) {
+            this.id = id;
+            this.data = data;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Keeps track of how many bytes have been written, for the pack offsets.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Lets go of its reference to the pack when it is closed.
+     */
+    private class ReleasingInputStream extends FilterInputStream {
+        private boolean released;
+
+        private ReleasingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!released) {
+                    released = true;
+                    release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the pack from an offset using positional reads, so any number of
+     * threads can read the same pack at once.
+     */
+    private class ChannelInputStream extends InputStream {
+        private long position;
+
+        private ChannelInputStream(long position) {
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = PackFile.this.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0)
+                position += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The branches and tags of a repository, and HEAD.
+ *
+ * A ref is a name such as refs/heads/main or refs/tags/v1 that points at a
+ * commit. Each ref is either a loose file under git/refs holding the commit's
+ * hash, or a line of git/packed-refs, which holds many refs in one file so that
+ * a repository with thousands of them doesn't need thousands of files. A loose
+ * ref overrides a packed one of the same name. packed-refs is read into memory
+ * once and only read again when the file is replaced, so looking a ref up reads
+ * at most one small file and one hash map, however many refs there are.
+ *
+ * HEAD is either symbolic, "ref: refs/heads/main", naming the branch that new
+ * commits go on, or a plain hash when a commit is checked out directly.
+ * Repositories made before branches existed have a plain hash in HEAD and keep
+ * working that way.
+ *
+ * Every change is a compare and swap: it is made under the ref's lock file and
+ * only if the ref still has the value the caller expects, so two writers can't
+ * silently overwrite each other.
+ */
+public class Refs {
+
+    public static final String HEAD = "HEAD";
+    public static final String HEADS = "refs/heads/";
+    public static final String TAGS = "refs/tags/";
+
+    private static final String SYMBOLIC = "ref: ";
+
+    /**
+     * The refs in packed-refs, as they were when the file was last read
+     */
+    private static class Packed {
+        // sorted for listing and finding refs under a prefix; hashed for lookups
+        final TreeMap<String, String> sorted;
+        final HashMap<String, String> byName;
+        final long modified;
+        final long size;
+        final Object fileKey;
+
+        Packed(TreeMap<String, String> sorted, long modified, long size, Object fileKey) {
+            this.sorted = sorted;
+            this.byName = new HashMap<>(sorted);
+            this.modified = modified;
+            this.size = size;
+            this.fileKey = fileKey;
+        }
+    }
+
+    private static final Packed EMPTY = new Packed(new TreeMap<>(), Long.MIN_VALUE, -1, null);
+
+    private final Path gitDir;
+    private final Path packedFile;
+    private volatile Packed packed = EMPTY;
+    private volatile long lockTimeout = 10_000;
+
+    /**
+     * @param gitDir - The repository's git folder
+     */
+    public Refs(Path gitDir) {
+        this.gitDir = gitDir;
+        this.packedFile = gitDir.resolve("packed-refs");
+    }
+
+    /**
+     * @param millis - How long to wait for another writer to let go of a ref
+     */
+    public void setLockTimeout(long millis) {
+        lockTimeout = millis;
+    }
+
+    /**
+     * @param name - A ref name, such as refs/heads/main
+     * @return True if it can be used as the name of a branch or tag
+     */
+    public static boolean isValidName(String name) {
+        if (name == null || !name.startsWith("refs/") || name.endsWith("/") || name.endsWith(".lock")
+                || name.contains("//") || name.contains(".."))
+            return false;
+        for (String part : name.split("/")) {
+            if (part.isEmpty() || part.startsWith("."))
+                return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c <= ' ' || c == 127 || c == '~' || c == '^' || c == ':' || c == '?' || c == '*' || c == '['
+                    || c == '\\')
+                return false;
+        }
+        return true;
+    }
+
+    private Path path(String name) {
+        return gitDir.resolve(name);
+    }
+
+    /**
+     * @return What HEAD holds: "ref: " and a branch, a hash, or "" if it is
+     *         empty
+     * @throws IOException
+     */
+    public String readHead() throws IOException {
+        String head = readLoose(HEAD);
+        return head == null ? "" : head;
+    }
+
+    /**
+     * @return The branch HEAD is on, such as refs/heads/main, or null if HEAD
+     *         is a plain hash
+     * @throws IOException
+     */
+    public String getHeadBranch() throws IOException {
+        String head = readHead();
+        return head.startsWith(SYMBOLIC) ? head.substring(SYMBOLIC.length()) : null;
+    }
+
+    /**
+     * @param branch - A branch, such as refs/heads/main
+     * @return The contents of a symbolic HEAD on that branch
+     */
+    static byte[] symbolic(String branch) {
+        return (SYMBOLIC + branch + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finds the commit a name points at. Names are tried in the same order as
+     * real git: HEAD, a full ref name, a branch, then a tag. A hash is returned
+     * in lowercase, however it was typed.
+     *
+     * @param name - HEAD, a ref, a short branch or tag name, or a hash
+     * @return The hash of the commit, or null if the name doesn't point at one
+     * @throws IOException
+     */
+    public String resolve(String name) throws IOException {
+        if (name.equals(HEAD)) {
+            String head = readHead();
+            if (head.startsWith(SYMBOLIC))
+                return get(head.substring(SYMBOLIC.length()));
+            return ObjectId.isId(head) ? head : null;
+        }
+        if (name.startsWith("refs/"))
+            return isValidName(name) ? get(name) : null;
+        String value = null;
+        if (isValidName(HEADS + name)) {
+            value = get(HEADS + name);
+            if (value == null)
+                value = get(TAGS + name);
+        }
+        if (value == null && ObjectId.isId(name.toLowerCase(Locale.ROOT)))
+            value = name.toLowerCase(Locale.ROOT);
+        return value;
+    }
+
+    /**
+     * @param name - The full name of a ref, such as refs/heads/main
+     * @return The hash it points at, or null if there is no such ref
+     * @throws IOException
+     */
+    public String get(String name) throws IOException {
+        String loose = readLoose(name);
+        if (loose != null)
+            return loose;
+        return packed().byName.get(name);
+    }
+
+    /**
+     * @return The trimmed contents of a loose ref, or null if it doesn't exist
+     */
+    private String readLoose(String name) throws IOException {
+        Path path = path(name);
+        try {
+            return new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            // a folder of refs under this name, such as refs/heads/a for refs/heads/a/b
+            if (Files.isDirectory(path))
+                return null;
+            throw e;
+        }
+    }
+
+    /**
+     * @return The refs in packed-refs, reading it again if it has been replaced
+     * @throws IOException
+     */
+    private Packed packed() throws IOException {
+        Packed current = packed;
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(packedFile, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            if (current != EMPTY)
+                packed = EMPTY;
+            return EMPTY;
+        }
+        long modified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        if (modified == current.modified && attrs.size() == current.size
+                && Objects.equals(attrs.fileKey(), current.fileKey))
+            return current;
+
+        TreeMap<String, String> refs = new TreeMap<>();
+        try {
+            for (String line : Files.readAllLines(packedFile, StandardCharsets.UTF_8)) {
+                if (line.length() > 41 && line.charAt(40) == ' ' && ObjectId.isId(line.substring(0, 40)))
+                    refs.put(line.substring(41), line.substring(0, 40));
+            }
+        } catch (NoSuchFileException e) {
+            // replaced between the stat and the read; the next lookup reads the new one
+        }
+        Packed loaded = new Packed(refs, modified, attrs.size(), attrs.fileKey());
+        packed = loaded;
+        return loaded;
+    }
+
+    /**
+     * Lists the refs under a prefix, loose and packed.
+     *
+     * @param prefix - Such as refs/heads/, or refs/ for every ref
+     * @return The refs by name, sorted, and the hashes they point at
+     * @throws IOException
+     */
+    public SortedMap<String, String> list(String prefix) throws IOException {
+        TreeMap<String, String> refs = new TreeMap<>(packed().sorted.subMap(prefix, prefix + Character.MAX_VALUE));
+        refs.putAll(loose(prefix));
+        return refs;
+    }
+
+    /**
+     * @param prefix - Such as refs/heads/
+     * @return The loose refs under a prefix
+     * @throws IOException
+     */
+    private TreeMap<String, String> loose(String prefix) throws IOException {
+        TreeMap<String, String> refs = new TreeMap<>();
+        Path folder = path(prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix);
+        if (Files.isDirectory(folder)) {
+            try (java.util.stream.Stream<Path> files = Files.walk(folder)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = gitDir.relativize(file).toString().replace(File.separatorChar, '/');
+                    if (!name.startsWith(prefix) || name.endsWith(".lock") || !Files.isRegularFile(file))
+                        continue;
+                    String value = readLoose(name);
+                    if (value != null && ObjectId.isId(value))
+                        refs.put(name, value);
+                }
+            } catch (UncheckedIOException e) {
+                // a ref folder was removed while it was being walked
+            }
+        }
+        return refs;
+    }
+
+    /**
+     * Changes a ref if it still has the expected value.
+     *
+     * @param name     - The full name of the ref
+     * @param expected - The hash it must point at now, or null if it must not
+     *                 exist
+     * @param value    - The hash to point it at, or null to delete it
+     * @return False if the ref had another value, so nothing was changed
+     * @throws IOException
+     */
+    public boolean compareAndSet(String name, String expected, String value) throws IOException {
+        if (!isValidName(name))
+            throw new IllegalArgumentException("Not a valid ref name: " + name);
+        if (value != null && !ObjectId.isId(value))
+            throw new IllegalArgumentException("Not a hash: " + value);
+
+        Path path = path(name);
+        if (expected == null && value != null)
+            checkConflicts(name);
+        Files.createDirectories(path.getParent());
+        LockFile lock = LockFile.lock(path, lockTimeout);
+        try {
+            if (!Objects.equals(get(name), expected))
+                return false;
+            if (value != null) {
+                lock.write((value + "\n").getBytes(StandardCharsets.UTF_8));
+                lock.commit();
+                return true;
+            }
+
+            // a packed ref is removed from packed-refs too, or it would show through
+            LockFile packedLock = LockFile.lock(packedFile, lockTimeout);
+            try {
+                Packed current = packed();
+                if (current.byName.containsKey(name)) {
+                    TreeMap<String, String> remaining = new TreeMap<>(current.sorted);
+                    remaining.remove(name);
+                    writePacked(packedLock, remaining);
+                }
+                Files.deleteIfExists(path);
+            } finally {
+                packedLock.close();
+            }
+            return true;
+        } finally {
+            lock.close();
+            if (value == null)
+                removeEmptyFolders(path.getParent());
+        }
+    }
+
+    /**
+     * Checks that a new ref wouldn't need to be a file where a folder of refs is,
+     * or the other way round: refs/heads/a and refs/heads/a/b can't both exist.
+     */
+    private void checkConflicts(String name) throws IOException {
+        for (int slash = name.indexOf('/', 5); slash > 0; slash = name.indexOf('/', slash + 1)) {
+            String parent = name.substring(0, slash);
+            if (get(parent) != null)
+                throw new IOException("Can't make " + name + " since " + parent + " exists");
+        }
+        String under = packed().sorted.ceilingKey(name + "/");
+        if (under != null && under.startsWith(name + "/"))
+            throw new IOException("Can't make " + name + " since " + under + " exists");
+        Path path = path(name);
+        if (Files.isDirectory(path)) {
+            removeEmptyFolders(path);
+            if (Files.isDirectory(path))
+                throw new IOException("Can't make " + name + " since there are refs under it");
+        }
+    }
+
+    /**
+     * Removes a ref folder and the folders above it while they are empty,
+     * stopping at refs/heads, refs/tags or refs.
+     */
+    private void removeEmptyFolders(Path folder) throws IOException {
+        Path refs = gitDir.resolve("refs");
+        while (folder.startsWith(refs) && folder.getNameCount() > refs.getNameCount() + 1) {
+            try {
+                if (!Files.deleteIfExists(folder))
+                    return;
+            } catch (DirectoryNotEmptyException e) {
+                return;
+            }
+            folder = folder.getParent();
+        }
+    }
+
+    /**
+     * Moves every loose ref into packed-refs. A ref that is being changed while
+     * this runs is left loose, and still overrides its packed copy.
+     *
+     * @return The number of refs in packed-refs
+     * @throws IOException
+     */
+    public int pack() throws IOException {
+        LockFile packedLock = LockFile.lock(packedFile, lockTimeout);
+        SortedMap<String, String> loose;
+        try {
+            loose = loose("refs/");
+            TreeMap<String, String> all = new TreeMap<>(packed().sorted);
+            all.putAll(loose);
+            writePacked(packedLock, all);
+        } finally {
+            packedLock.close();
+        }
+
+        // deletes aren't waited for: one holding its ref's lock may be waiting on packed-refs
+        for (Map.Entry<String, String> ref : loose.entrySet()) {
+            Path path = path(ref.getKey());
+            LockFile lock;
+            try {
+                lock = LockFile.lock(path, 0);
+            } catch (LockFile.LockFailedException e) {
+                continue;
+            }
+            try {
+                if (ref.getValue().equals(readLoose(ref.getKey())))
+                    Files.deleteIfExists(path);
+            } finally {
+                lock.close();
+            }
+            removeEmptyFolders(path.getParent());
+        }
+        return packed().sorted.size();
+    }
+
+    private void writePacked(LockFile lock, SortedMap<String, String> refs) throws IOException {
+        StringBuilder sb = new StringBuilder("# pack-refs with: sorted\n");
+        for (Map.Entry<String, String> ref : refs.entrySet())
+            sb.append(ref.getValue()).append(' ').append(ref.getKey()).append('\n');
+        lock.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        lock.commit();
+    }
+}
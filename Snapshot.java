@@ -0,0 +1,70 @@
+import java.util.*;
+
+/**
+ * One commit in a batch passed to {@link Git#commit(List)}: the files to stage
+ * from the working directory, the contents to store under paths without going
+ * through the working directory, and who and why.
+ */
+public class Snapshot {
+
+    private final String author;
+    private final String message;
+    private final ArrayList<String> paths = new ArrayList<>();
+    private final LinkedHashMap<String, byte[]> files = new LinkedHashMap<>();
+
+    /**
+     * @param author  - The author of the commit
+     * @param message - The description of the commit
+     */
+    public Snapshot(String author, String message) {
+        this.author = author;
+        this.message = message;
+    }
+
+    /**
+     * Stages a file or folder from the working directory in this commit.
+     *
+     * @param path - The path to the file
+     * @return This snapshot
+     */
+    public Snapshot stage(String path) {
+        paths.add(path);
+        return this;
+    }
+
+    /**
+     * Stores the given contents under a path in this commit. The working
+     * directory isn't read or written, so the file shows as removed in
+     * {@link Git#status()} until it is checked out.
+     *
+     * @param path - The path of the file in the repository
+     * @param data - Its contents
+     * @return This snapshot
+     */
+    public Snapshot put(String path, byte[] data) {
+        files.put(path, data);
+        return this;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return The paths staged from the working directory, in the order added
+     */
+    public List<String> getPaths() {
+        return Collections.unmodifiableList(paths);
+    }
+
+    /**
+     * @return The contents stored by path, in the order added
+     */
+    public Map<String, byte[]> getFiles() {
+        return Collections.unmodifiableMap(files);
+    }
+}
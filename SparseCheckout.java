@@ -0,0 +1,173 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * The paths a sparse checkout puts in the working directory, kept in
+ * git/sparse-checkout one pattern per line.
+ *
+ * A pattern is either a path, which matches that file or everything in that
+ * folder, or a glob such as "docs/*.md" or "src/**&#47;*.java" if it has any of
+ * the characters *?[{ in it. Paths are matched from the root of the repository
+ * and separated by '/'.
+ */
+public class SparseCheckout {
+
+    private final List<String> patterns;
+    private final List<String> prefixes = new ArrayList<>();
+    private final List<PathMatcher> globs = new ArrayList<>();
+
+    // the folder part of each glob before its first wildcard, "" for none
+    private final List<String> globFolders = new ArrayList<>();
+
+    // how many names deep each glob's matches are, or -1 if a ** or {} in it
+    // lets that vary
+    private final List<Integer> globDepths = new ArrayList<>();
+
+    /**
+     * @param patterns - The paths and globs to check out
+     * @throws IllegalArgumentException if there are none, or a glob is invalid
+     */
+    public SparseCheckout(Collection<String> patterns) {
+        if (patterns.isEmpty())
+            throw new IllegalArgumentException("A sparse checkout needs at least one pattern");
+        ArrayList<String> cleaned = new ArrayList<>();
+        for (String pattern : patterns) {
+            String p = pattern.trim().replace(File.separatorChar, '/');
+            while (p.startsWith("./"))
+                p = p.substring(2);
+            while (p.endsWith("/"))
+                p = p.substring(0, p.length() - 1);
+            if (p.isEmpty() || p.contains("\n"))
+                throw new IllegalArgumentException("Invalid pattern: " + pattern);
+            cleaned.add(p);
+
+            int wildcard = firstWildcard(p);
+            if (wildcard < 0) {
+                prefixes.add(p);
+            } else {
+                globs.add(FileSystems.getDefault().getPathMatcher("glob:" + p));
+                int slash = p.lastIndexOf('/', wildcard);
+                globFolders.add(slash < 0 ? "" : p.substring(0, slash));
+                globDepths.add(p.contains("**") || p.indexOf('{') >= 0 ? -1 : depth(p));
+            }
+        }
+        this.patterns = Collections.unmodifiableList(cleaned);
+    }
+
+    private static int firstWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("*?[{".indexOf(pattern.charAt(i)) >= 0)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The number of names in a path, "" having none
+     */
+    private static int depth(String path) {
+        if (path.isEmpty())
+            return 0;
+        int depth = 1;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/')
+                depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * @param file - The path to the sparse-checkout file
+     * @return The patterns in it, or null if there is no such file
+     * @throws IOException
+     */
+    public static SparseCheckout read(Path file) throws IOException {
+        if (!Files.exists(file))
+            return null;
+        ArrayList<String> patterns = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (!line.isBlank())
+                patterns.add(line);
+        }
+        return patterns.isEmpty() ? null : new SparseCheckout(patterns);
+    }
+
+    /**
+     * Writes the patterns through a lock on the sparse-checkout file.
+     *
+     * @param lock - The lock on the file
+     * @throws IOException
+     */
+    public void write(LockFile lock) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String pattern : patterns)
+            sb.append(pattern).append('\n');
+        lock.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        lock.commit();
+    }
+
+    public List<String> getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * @param path - The path of a file
+     * @return True if the file is checked out
+     */
+    public boolean matches(String path) {
+        for (String prefix : prefixes) {
+            if (isUnder(path, prefix))
+                return true;
+        }
+        if (!globs.isEmpty()) {
+            Path p = Paths.get(path);
+            for (PathMatcher glob : globs) {
+                if (glob.matches(p))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether a folder has to be walked at all. A glob can only match
+     * under the folders its literal start names, and unless it has a ** only
+     * as deep as it has names.
+     *
+     * @param folder - The path of a folder, or "" for the root
+     * @return False if nothing in the folder can match
+     */
+    public boolean mayMatchUnder(String folder) {
+        for (String prefix : prefixes) {
+            if (isUnder(folder, prefix) || isUnder(prefix, folder))
+                return true;
+        }
+        for (int i = 0; i < globFolders.size(); i++) {
+            String globFolder = globFolders.get(i);
+            int depth = globDepths.get(i);
+            if ((isUnder(folder, globFolder) || isUnder(globFolder, folder))
+                    && (depth < 0 || depth(folder) < depth))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return True if the path is the folder or inside it; everything is inside
+     *         ""
+     */
+    private static boolean isUnder(String path, String folder) {
+        return folder.isEmpty() || path.equals(folder) || path.startsWith(folder + "/");
+    }
+
+    @Override
+    public String toString() {
+        return String.join(" ", patterns);
+    }
+}
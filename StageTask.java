@@ -0,0 +1,100 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Stages one file or folder as part of a parallel stage. A folder forks a task
+ * for every child and builds its tree once they have all finished. Index
+ * entries aren't added here; they are collected in the order a serial stage
+ * would add them and the caller adds them to the index afterwards.
+ */
+class StageTask extends RecursiveTask<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ObjectStore objects;
+    private final Index index;
+    private final File input;
+    private final String path;
+    private final HashSet<String> directories;
+    private final List<Index.Entry> entries;
+
+    /**
+     * @param objects     - The object store to write to
+     * @param index       - The index holding the stat data of hashed files
+     * @param input       - The file or folder to stage
+     * @param path        - Its path in the repository
+     * @param directories - The canonical paths of the folders above this one,
+     *                    used for detecting cycles
+     * @param entries     - Where the index entries for this file and everything
+     *                    under it are collected
+     */
+    StageTask(ObjectStore objects, Index index, File input, String path, HashSet<String> directories,
+            List<Index.Entry> entries) {
+        this.objects = objects;
+        this.index = index;
+        this.input = input;
+        this.path = path;
+        this.directories = directories;
+        this.entries = entries;
+    }
+
+    @Override
+    protected String compute() {
+        try {
+            if (!Git.isStageable(input))
+                return null;
+
+            String hash;
+            if (!input.isDirectory()) {
+                hash = Git.storeFile(objects, index, input, path);
+            } else {
+                hash = objects.write("tree", treeToBytes());
+            }
+            entries.add(new Index.Entry(input.isDirectory() ? "tree" : "blob", hash, path));
+            return hash;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Stages the children of the folder in parallel and builds its tree.
+     *
+     * @return The tree as a byte array
+     * @throws IOException
+     */
+    private byte[] treeToBytes() throws IOException {
+        HashSet<String> above = new HashSet<>(directories);
+        if (!above.add(input.getCanonicalPath())) {
+            throw new IllegalStateException("Cycle detected");
+        }
+
+        long start = System.nanoTime();
+        File[] children = input.listFiles();
+        objects.getMetrics().record(Metrics.Phase.WALK, start);
+
+        // in the same order as a serial stage, so the tree and the index come out the same
+        Arrays.sort(children, Comparator.comparing(File::getName));
+        ArrayList<StageTask> tasks = new ArrayList<>();
+        for (File f : children) {
+            tasks.add(new StageTask(objects, index, f, path + "/" + f.getName(), above, new ArrayList<>()));
+        }
+        invokeAll(tasks);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < children.length; i++) {
+            StageTask task = tasks.get(i);
+            String fHash = task.join();
+            entries.addAll(task.entries);
+
+            // hidden files aren't stored so they are left out of the tree
+            if (fHash == null)
+                continue;
+
+            File f = children[i];
+            sb.append((f.isDirectory() ? "tree " : "blob ") + fHash + " " + Git.treeEntryName(f) + "\n");
+        }
+        return sb.toString().getBytes();
+    }
+}
@@ -0,0 +1,103 @@
+import java.util.*;
+
+/**
+ * A parsed tree object: the files and folders of one folder, as "type hash
+ * name" lines.
+ */
+public class Tree {
+
+    /**
+     * One line of a tree
+     */
+    public static class Entry {
+        private final String type;
+        private final ObjectId id;
+        private final String name;
+
+        public Entry(String type, String hash, String name) {
+            this(type, ObjectId.fromString(hash), name);
+        }
+
+        public Entry(String type, ObjectId id, String name) {
+            this.type = type;
+            this.id = id;
+            this.name = name;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        public String getHash() {
+            return id.name();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isTree() {
+            return type.equals("tree");
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + id.name() + " " + name;
+        }
+    }
+
+    private final String hash;
+    private final List<Entry> entries;
+
+    public Tree(String hash, List<Entry> entries) {
+        this.hash = hash;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @param hash - The hash of the tree
+     * @param data - The contents of the tree object
+     * @return The parsed tree
+     */
+    public static Tree parse(String hash, byte[] data) {
+        ArrayList<Entry> entries = new ArrayList<>();
+        String text = new String(data);
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            if (end < 0)
+                end = text.length();
+            if (end - start > 46)
+                entries.add(new Entry(text.substring(start, start + 4), ObjectId.fromString(text, start + 5),
+                        text.substring(start + 46, end)));
+            start = end + 1;
+        }
+        entries.trimToSize();
+        return new Tree(hash, entries);
+    }
+
+    /**
+     * @param entries - The lines of a tree
+     * @return The contents of the tree object
+     */
+    public static byte[] toBytes(Collection<Entry> entries) {
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : entries) {
+            sb.append(entry.toString());
+            sb.append("\n");
+        }
+        return sb.toString().getBytes();
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Builds the tree of a commit: one tree object per folder, each listing its
+ * entries as "type hash name" lines sorted by name. The builder starts from the
+ * tree of the parent commit and applies the staged entries on top of it. Only
+ * the folders on the path to a changed entry are read and written again; every
+ * other folder keeps the hash it had in the parent.
+ *
+ * Trees written before commits were hierarchical list whole paths at the root.
+ * Lines whose name contains a '/' are applied as paths, so those trees can still
+ * be used as a parent; the folders they touch are then rewritten.
+ */
+public class TreeBuilder {
+
+    /**
+     * A file or folder in the tree being built
+     */
+    private static class Node {
+        private final boolean tree;
+
+        // null once the node has changed and has to be written again
+        private String hash;
+
+        // the entries of a folder, null until they are first needed
+        private TreeMap<String, Node> children;
+
+        private Node(boolean tree, String hash) {
+            this.tree = tree;
+            this.hash = hash;
+        }
+    }
+
+    private final ObjectDatabase database;
+    private final Node root;
+
+    /**
+     * @param database - The object database holding the parent's trees
+     * @param treeHash - The hash of the tree to start from, or null to start
+     *                 from an empty tree
+     */
+    public TreeBuilder(ObjectDatabase database, String treeHash) {
+        this.database = database;
+        this.root = new Node(true, treeHash);
+        if (treeHash == null)
+            root.children = new TreeMap<>();
+    }
+
+    /**
+     * Puts a file or folder into the tree, replacing whatever was at its path.
+     * Adding a folder uses its tree as it is; entries added under it afterwards
+     * change that folder.
+     *
+     * @param type - "blob" or "tree"
+     * @param hash - The hash of the object
+     * @param path - The path from the root of the repository, split by '/'
+     * @throws IOException
+     */
+    public void add(String type, String hash, String path) throws IOException {
+        add(root, type, hash, path);
+    }
+
+    private void add(Node start, String type, String hash, String path) throws IOException {
+        String[] names = path.split("/");
+        ArrayList<Node> parents = new ArrayList<>();
+        Node node = start;
+        for (int i = 0; i < names.length - 1; i++) {
+            load(node);
+            parents.add(node);
+            Node child = node.children.get(names[i]);
+            if (child == null || !child.tree) {
+                child = new Node(true, null);
+                child.children = new TreeMap<>();
+                node.children.put(names[i], child);
+            }
+            node = child;
+        }
+        load(node);
+        parents.add(node);
+
+        String name = names[names.length - 1];
+        boolean tree = type.equals("tree");
+        Node old = node.children.get(name);
+        boolean changed = old == null || old.tree != tree || !hash.equals(old.hash);
+        if (changed)
+            node.children.put(name, new Node(tree, hash));
+
+        // a changed folder changes every folder above it
+        for (int i = parents.size() - 1; i >= 0; i--) {
+            if (parents.get(i).hash == null)
+                changed = true;
+            if (changed)
+                parents.get(i).hash = null;
+        }
+    }
+
+    /**
+     * Reads a folder's entries from its tree object.
+     */
+    private void load(Node node) throws IOException {
+        if (node.children != null)
+            return;
+        node.children = new TreeMap<>();
+        boolean flat = false;
+        for (Tree.Entry entry : database.getTree(node.hash).getEntries()) {
+            String name = entry.getName();
+            if (name.indexOf('/') < 0) {
+                node.children.put(name, new Node(entry.isTree(), entry.getHash()));
+                continue;
+            }
+
+            // an old flat tree: apply its paths in order, later lines winning
+            flat = true;
+            add(node, entry.getType(), entry.getHash(), name.startsWith("/") ? name.substring(1) : name);
+        }
+        if (flat)
+            node.hash = null;
+    }
+
+    /**
+     * Writes every folder that changed and returns the hash of the root tree.
+     *
+     * @return The hash of the root tree
+     * @throws IOException
+     */
+    public String write() throws IOException {
+        return write(root);
+    }
+
+    private String write(Node node) throws IOException {
+        if (node.hash != null)
+            return node.hash;
+        ArrayList<Tree.Entry> entries = new ArrayList<>(node.children.size());
+        for (Map.Entry<String, Node> entry : node.children.entrySet()) {
+            Node child = entry.getValue();
+            String childHash = child.tree ? write(child) : child.hash;
+            entries.add(new Tree.Entry(child.tree ? "tree" : "blob", childHash, entry.getKey()));
+        }
+        node.hash = database.writeTree(entries);
+        return node.hash;
+    }
+}
@@ -0,0 +1,437 @@
+import java.io.*;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches the working directory so status and stage only have to look at the
+ * paths that changed instead of walking every folder.
+ *
+ * Every folder is registered with a {@link WatchService}, and one daemon thread
+ * adds the path of every file or folder that is created, deleted or modified to
+ * a set of dirty paths. Folders created later are registered as they appear.
+ * The first status works out every change against HEAD the slow way and keeps
+ * the result; after that only the dirty paths, and the paths that differ from
+ * the tree the result was worked out against, are compared again. If the
+ * watch service drops events (an overflow) the next status starts over with a
+ * full walk.
+ *
+ * Events arrive a little after the change that caused them, so before using
+ * the dirty set a status creates a cookie file in the git folder and waits for
+ * its event. Events are delivered in order, so every change made before the
+ * status started has been seen by then.
+ *
+ * Events usually come in bursts, such as a build writing many files. The
+ * listener, used for staging automatically, is only called once a burst has
+ * gone quiet for the debounce time, so a burst is handled once. It runs on a
+ * thread of its own so the watching thread can keep up with events, and cookies,
+ * while it does.
+ */
+public class Watcher {
+
+    private static final String COOKIE = "watch-cookie-";
+
+    // how long a status waits for its cookie before doing a full walk instead
+    private static final long SYNC_TIMEOUT_MILLIS = 2000;
+
+    // a burst is handled after this many debounce times even if it never goes quiet
+    private static final int MAX_DEBOUNCES = 10;
+
+    private final Path root;
+    private final Path gitDir;
+
+    private WatchService service;
+    private volatile Thread thread;
+    private ExecutorService notifier;
+    private volatile long debounceNanos;
+    private volatile Runnable listener;
+
+    // set while a call to the listener is waiting to run
+    private final AtomicBoolean notifying = new AtomicBoolean();
+
+    // the folder each key watches
+    private final ConcurrentHashMap<WatchKey, Path> folders = new ConcurrentHashMap<>();
+
+    // paths changed since the last status, from the root and separated by '/'
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private volatile boolean rescan = true;
+
+    private final AtomicLong cookies = new AtomicLong();
+    private final ConcurrentHashMap<String, CountDownLatch> pendingCookies = new ConcurrentHashMap<>();
+
+    // the last status by path, and the tree it was worked out against
+    private TreeMap<String, Diff.Change> status;
+    private String statusTree;
+
+    // metrics
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong fullScans = new AtomicLong();
+    private final AtomicLong incrementalScans = new AtomicLong();
+    private final AtomicLong pathsScanned = new AtomicLong();
+
+    /**
+     * @param root   - The root of the working directory
+     * @param gitDir - The repository's git folder, which isn't watched except
+     *               for cookies
+     */
+    public Watcher(Path root, Path gitDir) {
+        this.root = root;
+        this.gitDir = gitDir;
+    }
+
+    /**
+     * @param listener - Called once a burst of changes has gone quiet, or null
+     *                 for none
+     */
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Registers every folder and starts watching. Does nothing if already
+     * started.
+     *
+     * @param debounce - How long changes have to stop for before the listener is
+     *                 called
+     * @param unit     - The unit of the debounce time
+     * @throws IOException
+     */
+    public synchronized void start(long debounce, TimeUnit unit) throws IOException {
+        if (thread != null)
+            return;
+        debounceNanos = unit.toNanos(debounce);
+        service = root.getFileSystem().newWatchService();
+        try {
+            folders.put(gitDir.register(service, StandardWatchEventKinds.ENTRY_CREATE), gitDir);
+            register(root);
+        } catch (IOException | RuntimeException e) {
+            service.close();
+            folders.clear();
+            throw e;
+        }
+        rescan = true;
+        notifier = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "git-watcher-listener " + root);
+            thread.setDaemon(true);
+            return thread;
+        });
+        thread = new Thread(this::run, "git-watcher " + root);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching and forgets the last status.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = this.thread;
+            if (thread == null)
+                return;
+            this.thread = null;
+            try {
+                service.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            notifier.shutdown();
+            folders.clear();
+            dirty.clear();
+            status = null;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    /**
+     * Registers a folder and every folder under it, leaving out hidden folders
+     * and the git folder.
+     */
+    private void register(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path folder, BasicFileAttributes attrs) throws IOException {
+                if (!folder.equals(start) && relative(folder) == null)
+                    return FileVisitResult.SKIP_SUBTREE;
+                WatchKey key = folder.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                folders.put(key, folder);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // deleted while walking; its parent's event covers it
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @param path - A path in the working directory
+     * @return The path from the root separated by '/', or null if it is hidden
+     *         or in the git folder
+     */
+    private String relative(Path path) {
+        if (path.startsWith(gitDir) || !path.startsWith(root))
+            return null;
+        StringBuilder sb = new StringBuilder();
+        for (Path name : root.relativize(path)) {
+            if (name.toString().startsWith("."))
+                return null;
+            if (sb.length() > 0)
+                sb.append('/');
+            sb.append(name);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                boolean changed = handle(service.take());
+
+                // wait for the burst to go quiet so it is only handled once
+                long start = System.nanoTime();
+                WatchKey key;
+                while (System.nanoTime() - start < debounceNanos * MAX_DEBOUNCES
+                        && (key = service.poll(debounceNanos, TimeUnit.NANOSECONDS)) != null)
+                    changed |= handle(key);
+
+                Runnable listener = this.listener;
+                if (changed && listener != null && notifying.compareAndSet(false, true)) {
+                    notifier.execute(() -> {
+                        // changes from here on call it again
+                        notifying.set(false);
+                        try {
+                            listener.run();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    });
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Adds the paths a key's events are about to the dirty set.
+     *
+     * @param key - A signalled key
+     * @return True if anything in the working directory changed
+     */
+    boolean handle(WatchKey key) {
+        Path folder = folders.get(key);
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflows.incrementAndGet();
+                rescan = true;
+                changed = true;
+                continue;
+            }
+            if (folder == null)
+                continue;
+            Path child = folder.resolve((Path) event.context());
+            if (folder.equals(gitDir)) {
+                CountDownLatch cookie = pendingCookies.get(child.getFileName().toString());
+                if (cookie != null) {
+                    // everything signalled before the cookie has to be seen first
+                    drainReady();
+                    cookie.countDown();
+                }
+                continue;
+            }
+            String path = relative(child);
+            if (path == null)
+                continue;
+            events.incrementAndGet();
+            dirty.add(path);
+            changed = true;
+
+            // a new folder has to be watched too; anything made in it before
+            // then is covered by the folder's own path being dirty
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                    && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                try {
+                    register(child);
+                } catch (IOException e) {
+                    rescan = true;
+                }
+            }
+        }
+        if (!key.reset())
+            folders.remove(key);
+        return changed;
+    }
+
+    /**
+     * Handles every key that has already been signalled.
+     */
+    private void drainReady() {
+        WatchKey key;
+        while ((key = service.poll()) != null)
+            handle(key);
+    }
+
+    /**
+     * Waits until every change made before this was called has been seen.
+     *
+     * @return False if the watcher isn't running or the cookie never arrived
+     */
+    private boolean sync() throws IOException {
+        String name = COOKIE + cookies.incrementAndGet();
+        CountDownLatch latch = new CountDownLatch(1);
+        pendingCookies.put(name, latch);
+        Path cookie = gitDir.resolve(name);
+        try {
+            Files.createFile(cookie);
+            return latch.await(SYNC_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the watcher");
+        } finally {
+            pendingCookies.remove(name);
+            Files.deleteIfExists(cookie);
+        }
+    }
+
+    /**
+     * Takes the dirty paths.
+     *
+     * @return The paths that changed since the last call, or null if a change
+     *         may have been missed and everything has to be looked at again
+     * @throws IOException
+     */
+    private Set<String> drain() throws IOException {
+        if (!isRunning() || !sync())
+            return null;
+        boolean full = rescan;
+        rescan = false;
+        HashSet<String> paths = new HashSet<>();
+        for (Iterator<String> i = dirty.iterator(); i.hasNext();) {
+            paths.add(i.next());
+            i.remove();
+        }
+        return full ? null : paths;
+    }
+
+    /**
+     * Lists the files in the working directory that differ from a tree, only
+     * comparing the paths that changed since the last time.
+     *
+     * @param diff - A diff with the index holding the working directory's stat
+     *             data
+     * @param tree - The hash of HEAD's tree, or null for an empty tree
+     * @return The added, removed and modified files, sorted by path
+     * @throws IOException
+     */
+    public synchronized List<Diff.Change> status(Diff diff, String tree) throws IOException {
+        Set<String> paths = drain();
+        List<Diff.Change> changes = null;
+        if (paths != null && status != null) {
+            try {
+                // files that match one tree may not match the other
+                if (!Objects.equals(tree, statusTree)) {
+                    for (Diff.Change change : diff.trees(statusTree, tree))
+                        paths.add(change.getPath());
+                }
+                changes = diff.worktree(tree, root.toFile(), paths);
+            } catch (IOException | RuntimeException e) {
+                // taken out of the dirty set but never compared, so put them back
+                dirty.addAll(paths);
+                throw e;
+            }
+        }
+
+        if (changes != null) {
+            incrementalScans.incrementAndGet();
+            pathsScanned.addAndGet(paths.size());
+            for (String path : paths) {
+                status.remove(path);
+                // '0' comes right after '/', so this is everything under the path
+                status.subMap(path + "/", path + "0").clear();
+            }
+        } else {
+            fullScans.incrementAndGet();
+            // left null if the walk fails, so the next status walks everything too
+            status = null;
+            changes = diff.worktree(tree, root.toFile());
+            status = new TreeMap<>();
+        }
+        for (Diff.Change change : changes)
+            status.put(change.getPath(), change);
+        statusTree = tree;
+        return new ArrayList<>(status.values());
+    }
+
+    public long getEvents() {
+        return events.get();
+    }
+
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    /**
+     * @return The number of statuses that walked the whole working directory
+     */
+    public long getFullScans() {
+        return fullScans.get();
+    }
+
+    /**
+     * @return The number of statuses that only compared the dirty paths
+     */
+    public long getIncrementalScans() {
+        return incrementalScans.get();
+    }
+
+    /**
+     * @return The total number of dirty paths compared
+     */
+    public long getPathsScanned() {
+        return pathsScanned.get();
+    }
+
+    /**
+     * @return The number of folders being watched
+     */
+    public int getFolderCount() {
+        return folders.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d folders, %d events, %d overflows, %d full and %d incremental scans of %d paths",
+                getFolderCount(), getEvents(), getOverflows(), getFullScans(), getIncrementalScans(),
+                getPathsScanned());
+    }
+}
@@ -0,0 +1,15 @@
+import bench.Workloads;
+
+/**
+ * Hashes blobs for {@link bench.HashBenchmark}.
+ */
+public class HashWorkload implements Workloads.Hashing {
+
+    /**
+     * The SHA-1 that Git.generateFileHash names every object by
+     */
+    @Override
+    public String generateFileHash(byte[] data) {
+        return ObjectStore.hash(data);
+    }
+}
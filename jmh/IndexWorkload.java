@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+import bench.Workloads;
+
+/**
+ * An index of synthetic paths for {@link bench.IndexBenchmark}.
+ */
+public class IndexWorkload implements Workloads.Indexing {
+
+    private Path file;
+    private Index index;
+    private String[] paths;
+    private String[] hashes;
+
+    @Override
+    public void setUp(Path folder, int entries) throws IOException {
+        file = folder.resolve("index");
+        index = Index.load(file);
+        paths = new String[entries];
+        hashes = new String[entries];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = "folder" + (i % 100) + "/file" + i;
+            hashes[i] = ObjectStore.hash(paths[i].getBytes());
+            index.add("blob", hashes[i], paths[i]);
+        }
+        try (LockFile lock = LockFile.lock(file, 0)) {
+            index.write(lock);
+        }
+    }
+
+    @Override
+    public int lookup() {
+        return lookup(index);
+    }
+
+    /**
+     * The written index is mapped and searched in place rather than parsed
+     */
+    @Override
+    public int loadAndLookup() throws IOException {
+        return lookup(Index.load(file));
+    }
+
+    private int lookup(Index index) {
+        int found = 0;
+        for (String path : paths) {
+            if (index.getByPath(path) != null)
+                found++;
+        }
+        return found;
+    }
+
+    /**
+     * What inIndex used to answer by scanning the index file
+     */
+    @Override
+    public int inIndex() {
+        int found = 0;
+        for (String hash : hashes) {
+            if (index.containsHash(hash))
+                found++;
+        }
+        return found;
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import bench.Workloads;
+
+/**
+ * A synthetic repository for {@link bench.RepositoryBenchmark}, rooted in a
+ * temporary folder.
+ */
+public class RepositoryWorkload implements Workloads.Repository {
+
+    private final Random random = new Random(42);
+    private Git git;
+    private Path root;
+    private String shape;
+    private List<Path> paths;
+    private String first;
+    private String last;
+    private int next;
+
+    @Override
+    public void setUp(Path root, String shape, int scale, boolean cold) throws IOException {
+        this.root = root;
+        this.shape = shape;
+        git = new Git(root);
+        switch (shape) {
+            case "small":
+                paths = generate(1000 * scale, 1, 1024);
+                break;
+            case "huge":
+                paths = generate(3, 1, 8 * 1024 * 1024 * scale);
+                break;
+            case "deep":
+                paths = generate(256 * scale, 64, 512);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+        if (!cold) {
+            git.stage(shape);
+            first = git.commit("bench", shape);
+            last = first;
+        }
+    }
+
+    /**
+     * Writes the files of the repository under a folder named after its shape.
+     *
+     * @param files - The number of files
+     * @param depth - How many folders deep the files are spread
+     * @param size  - The size of each file in bytes
+     * @return The paths of the files, sorted
+     * @throws IOException
+     */
+    private List<Path> generate(int files, int depth, int size) throws IOException {
+        ArrayList<Path> paths = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            Path folder = root.resolve(shape);
+            int level = depth == 1 ? 1 : i % depth + 1;
+            for (int d = 0; d < level; d++)
+                folder = folder.resolve("d" + (depth == 1 ? i % 10 : d));
+            Files.createDirectories(folder);
+            Path file = folder.resolve("file" + i);
+            Files.write(file, randomBytes(size));
+            paths.add(file);
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Override
+    public void stage() {
+        git.stage(shape);
+    }
+
+    @Override
+    public String commit() throws IOException {
+        Path path = paths.get(next++ % paths.size());
+        Files.write(path, randomBytes((int) Math.min(Files.size(path), 4096)));
+        git.stage(root.relativize(path).toString());
+        last = git.commit("bench", "change " + next);
+        return last;
+    }
+
+    @Override
+    public void checkout() {
+        git.checkout(first);
+        git.checkout(last);
+    }
+
+    @Override
+    public void checkoutUnchanged() {
+        git.checkout(last);
+    }
+
+    @Override
+    public void close() {
+        git.close();
+    }
+}
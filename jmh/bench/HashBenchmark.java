@@ -0,0 +1,36 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Hashes blobs in memory, without touching the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({ "1024", "65536", "1048576" })
+    public int size;
+
+    private Workloads.Hashing hashing;
+    private byte[] data;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        hashing = Workloads.create("HashWorkload", Workloads.Hashing.class);
+        data = new byte[size];
+        new Random(42).nextBytes(data);
+    }
+
+    @Benchmark
+    public String generateFileHash() {
+        return hashing.generateFileHash(data);
+    }
+}
@@ -0,0 +1,53 @@
+package bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Looks up every path and every hash of an index in memory, and loads a
+ * written index and searches it in place.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexBenchmark {
+
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int entries;
+
+    private Path folder;
+    private Workloads.Indexing index;
+
+    @Setup
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("index-bench");
+        index = Workloads.create("IndexWorkload", Workloads.Indexing.class);
+        index.setUp(folder, entries);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        TempFolders.delete(folder);
+    }
+
+    @Benchmark
+    public int lookup() {
+        return index.lookup();
+    }
+
+    @Benchmark
+    public int loadAndLookup() throws Exception {
+        return index.loadAndLookup();
+    }
+
+    @Benchmark
+    public int inIndex() {
+        return index.inIndex();
+    }
+}
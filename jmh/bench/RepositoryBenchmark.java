@@ -0,0 +1,102 @@
+package bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Stages, commits and checks out synthetic repositories of a few shapes: many
+ * small files, a few huge files, and deep folder trees. Each repository lives
+ * in its own temporary folder. Run with -prof gc for the allocation rate, which
+ * covers the checkout and staging pools as well as the benchmark thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryBenchmark {
+
+    @Param({ "small", "huge", "deep" })
+    public String shape;
+
+    @Param({ "1", "10", "100" })
+    public int scale;
+
+    private Path root;
+    private Workloads.Repository repository;
+
+    /**
+     * A repository whose files have never been staged, made again for every
+     * iteration.
+     */
+    @State(Scope.Benchmark)
+    public static class Cold {
+        private Path root;
+        private Workloads.Repository repository;
+
+        @Setup(Level.Iteration)
+        public void setUp(RepositoryBenchmark benchmark) throws Exception {
+            root = Files.createTempDirectory("cold-bench");
+            repository = Workloads.create("RepositoryWorkload", Workloads.Repository.class);
+            repository.setUp(root, benchmark.shape, benchmark.scale, true);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws Exception {
+            repository.close();
+            TempFolders.delete(root);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("repo-bench");
+        repository = Workloads.create("RepositoryWorkload", Workloads.Repository.class);
+        repository.setUp(root, shape, scale, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        repository.close();
+        TempFolders.delete(root);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public void stageCold(Cold cold) {
+        cold.repository.stage();
+    }
+
+    /**
+     * Stages files that haven't changed, so the stat cache answers
+     */
+    @Benchmark
+    public void stage() {
+        repository.stage();
+    }
+
+    /**
+     * Changes one file and commits it, so there is something to write
+     */
+    @Benchmark
+    public String commit() throws Exception {
+        return repository.commit();
+    }
+
+    /**
+     * Checks out the first commit and then the latest one
+     */
+    @Benchmark
+    public void checkout() {
+        repository.checkout();
+    }
+
+    @Benchmark
+    public void checkoutUnchanged() {
+        repository.checkoutUnchanged();
+    }
+}
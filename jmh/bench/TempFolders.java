@@ -0,0 +1,28 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Cleans up the temporary folders the benchmarks work in.
+ */
+public final class TempFolders {
+
+    private TempFolders() {
+    }
+
+    /**
+     * Deletes a folder and everything in it.
+     */
+    public static void delete(Path folder) throws IOException {
+        if (folder == null || !Files.exists(folder))
+            return;
+        try (Stream<Path> walk = Files.walk(folder)) {
+            for (Path path : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package bench;
+
+/**
+ * The repository's classes are in the default package, which code in a named
+ * package can't refer to, and JMH won't generate benchmarks in the default
+ * package. So each benchmark drives a workload class from the default package
+ * through one of the interfaces here, loaded once by name at setup.
+ */
+public final class Workloads {
+
+    private Workloads() {
+    }
+
+    /**
+     * Operations on hashes in memory
+     */
+    public interface Hashing {
+        String generateFileHash(byte[] data);
+    }
+
+    /**
+     * Operations on an index file
+     */
+    public interface Indexing {
+        void setUp(java.nio.file.Path folder, int entries) throws Exception;
+
+        /**
+         * @return The number of paths found
+         */
+        int lookup();
+
+        int loadAndLookup() throws Exception;
+
+        /**
+         * @return The number of hashes found
+         */
+        int inIndex();
+    }
+
+    /**
+     * Operations on a synthetic repository
+     */
+    public interface Repository extends AutoCloseable {
+        /**
+         * Generates the repository's files, and stages and commits them unless
+         * it is cold.
+         *
+         * @param root  - The folder for the repository
+         * @param shape - "small", "huge" or "deep"
+         * @param scale - How many times larger than the default to make it
+         * @param cold  - True to leave the files unstaged
+         */
+        void setUp(java.nio.file.Path root, String shape, int scale, boolean cold) throws Exception;
+
+        void stage();
+
+        String commit() throws Exception;
+
+        void checkout();
+
+        void checkoutUnchanged();
+    }
+
+    /**
+     * @param name - The name of a class in the default package
+     * @param type - The interface it implements
+     * @return A new instance of it
+     */
+    public static <T> T create(String name, Class<T> type) throws ReflectiveOperationException {
+        return type.cast(Class.forName(name).getDeclaredConstructor().newInstance());
+    }
+}
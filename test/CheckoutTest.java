@@ -0,0 +1,169 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CheckoutTest {
+
+    @TempDir
+    Path root;
+
+    /**
+     * A hard linked file is the same inode as its object, so staging it must not
+     * touch the object, or the file's time changes and its stat data is lost.
+     */
+    @Test
+    public void stagingHardLinkedFilesKeepsTheirStatData() throws Exception {
+        Git git = new Git(root);
+        Files.createDirectories(root.resolve("src"));
+        for (int i = 0; i < 5; i++)
+            Files.writeString(root.resolve("src/file" + i), "contents " + i);
+        git.stage("src");
+        String commit = git.commit("me", "files");
+
+        for (int i = 0; i < 5; i++)
+            Files.delete(root.resolve("src/file" + i));
+        git.checkout(commit, true);
+        Path file = root.resolve("src/file0");
+        Assumptions.assumeTrue((Integer) Files.getAttribute(file, "unix:nlink") > 1,
+                "hard links aren't supported here");
+        FileTime before = Files.getLastModifiedTime(file);
+
+        Thread.sleep(20);
+        long hashed = git.getMetrics().getFilesHashed();
+        git.stage("src");
+        git.stage("src");
+        assertEquals(before, Files.getLastModifiedTime(file));
+        assertEquals(hashed, git.getMetrics().getFilesHashed());
+        assertTrue(git.status().isEmpty());
+    }
+
+    private String commit(Git git, String message, String... files) throws Exception {
+        for (int i = 0; i < files.length; i += 2) {
+            Path file = root.resolve(files[i]);
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, files[i + 1]);
+            git.stage(files[i]);
+        }
+        return git.commit("me", message);
+    }
+
+    /**
+     * An edited file that the checkout would replace stops the checkout unless
+     * it is forced.
+     */
+    @Test
+    public void localChangesAreNotOverwritten() throws Exception {
+        Git git = new Git(root);
+        String first = commit(git, "first", "a.txt", "one", "dir/sub/b.txt", "b");
+        String second = commit(git, "second", "a.txt", "two!");
+        Files.writeString(root.resolve("a.txt"), "my own edit");
+
+        assertThrows(UncheckedIOException.class, () -> git.checkout(first));
+        assertEquals("my own edit", Files.readString(root.resolve("a.txt")));
+        assertEquals(second, git.resolve("HEAD"));
+
+        git.checkout(first, false, true);
+        assertEquals("one", Files.readString(root.resolve("a.txt")));
+        assertEquals(first, git.resolve("HEAD"));
+    }
+
+    /**
+     * Edits to files the commit doesn't change are carried over, and files
+     * deleted by hand are brought back.
+     */
+    @Test
+    public void editsToUnchangedFilesAreKept() throws Exception {
+        Git git = new Git(root);
+        String first = commit(git, "first", "a.txt", "one", "dir/sub/b.txt", "b");
+        commit(git, "second", "a.txt", "two!");
+        Files.writeString(root.resolve("dir/sub/b.txt"), "my own edit");
+        Files.delete(root.resolve("a.txt"));
+
+        git.checkout(first);
+        assertEquals("one", Files.readString(root.resolve("a.txt")));
+        assertEquals("my own edit", Files.readString(root.resolve("dir/sub/b.txt")));
+        assertEquals(first, git.resolve("HEAD"));
+    }
+
+    private Map<String, String> files(Path folder) throws Exception {
+        HashMap<String, String> files = new HashMap<>();
+        try (var walk = Files.walk(folder)) {
+            for (Path file : (Iterable<Path>) walk::iterator) {
+                if (Files.isRegularFile(file))
+                    files.put(folder.relativize(file).toString(), Files.readString(file));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Checking out on one thread or several writes the same files, restores
+     * only what differs, and reports every file to the listener.
+     */
+    @Test
+    public void checkoutRestoresOnAPool() throws Exception {
+        Git git = new Git(root);
+        Path top = root.resolve("top");
+        for (int i = 0; i < 200; i++) {
+            Path file = top.resolve("d" + i % 6 + "/e" + i % 4 + "/f" + i);
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, "version 1 of " + i);
+        }
+        git.stage("top");
+        String first = git.commit("me", "first");
+        Map<String, String> firstFiles = files(top);
+
+        // 50 changed, 20 removed, 30 added
+        for (int i = 0; i < 70; i++) {
+            Path file = top.resolve("d" + i % 6 + "/e" + i % 4 + "/f" + i);
+            if (i < 50)
+                Files.writeString(file, "version 2 of " + i);
+            else
+                Files.delete(file);
+        }
+        for (int i = 200; i < 230; i++)
+            Files.writeString(top.resolve("d" + i % 6 + "/new" + i), "new " + i);
+        git.stage("top");
+        String second = git.commit("me", "second");
+        Map<String, String> secondFiles = files(top);
+
+        for (int threads : new int[] { 1, 8 }) {
+            git.setCheckoutThreads(threads);
+            AtomicInteger calls = new AtomicInteger();
+            ConcurrentHashMap<Integer, Boolean> seen = new ConcurrentHashMap<>();
+            git.setCheckoutListener((done, total, bytes) -> {
+                calls.incrementAndGet();
+                seen.put(done, true);
+            });
+
+            git.checkout(first);
+            assertEquals(firstFiles, files(top));
+            CheckoutStats stats = git.getLastCheckoutStats();
+            assertEquals(70, stats.getFilesRestored());
+            assertEquals(30, stats.getFilesDeleted());
+            int total = stats.getFilesRestored() + stats.getFilesSkipped();
+            assertEquals(total, calls.get());
+            assertEquals(total, seen.size());
+            assertTrue(stats.getBytesWritten() > 0);
+
+            git.checkout(second);
+            assertEquals(secondFiles, files(top));
+            stats = git.getLastCheckoutStats();
+            assertEquals(80, stats.getFilesRestored());
+            assertEquals(20, stats.getFilesDeleted());
+            assertTrue(git.status().isEmpty());
+        }
+        assertThrows(IllegalArgumentException.class, () -> git.setCheckoutThreads(0));
+    }
+}
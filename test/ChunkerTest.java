@@ -0,0 +1,120 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ChunkerTest {
+
+    @TempDir
+    Path root;
+
+    /**
+     * @return The hashes of the chunks the data is cut into, in order
+     */
+    private static List<String> chunk(byte[] data) throws Exception {
+        List<String> chunks = new ArrayList<>();
+        Chunker chunker = new Chunker((chunk, length) -> {
+            assertTrue(length <= Chunker.MAX_SIZE);
+            chunks.add(ObjectStore.hash(Arrays.copyOf(chunk, length)));
+        });
+        // fed in odd sized pieces, which mustn't change where the cuts are
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        for (int at = 0; at < data.length; at += 12345)
+            chunker.update(buffer.duplicate().position(at).limit(Math.min(at + 12345, data.length)));
+        chunker.finish();
+        return chunks;
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void chunksAverageTheTargetSize() throws Exception {
+        int size = 32 * 1024 * 1024;
+        List<String> chunks = chunk(random(size, 1));
+        double average = (double) size / chunks.size();
+        assertTrue(average > Chunker.AVERAGE_SIZE * 0.85 && average < Chunker.AVERAGE_SIZE * 1.15,
+                "average chunk size " + average);
+    }
+
+    /**
+     * Inserting bytes in the middle of a file only changes the chunks around
+     * the insert; the ones before and after are cut in the same places.
+     */
+    @Test
+    public void anInsertOnlyChangesTheChunksAroundIt() throws Exception {
+        byte[] original = random(4 * 1024 * 1024, 2);
+        byte[] inserted = random(100, 3);
+        int at = original.length / 2;
+        byte[] edited = new byte[original.length + inserted.length];
+        System.arraycopy(original, 0, edited, 0, at);
+        System.arraycopy(inserted, 0, edited, at, inserted.length);
+        System.arraycopy(original, at, edited, at + inserted.length, original.length - at);
+
+        List<String> before = chunk(original);
+        List<String> after = chunk(edited);
+        assertEquals(before, chunk(original));
+        assertTrue(before.size() > 20);
+
+        HashSet<String> shared = new HashSet<>(after);
+        shared.retainAll(before);
+        assertTrue(after.size() - shared.size() <= 2, (after.size() - shared.size()) + " chunks changed");
+        assertEquals(before.get(0), after.get(0));
+        assertEquals(before.get(before.size() - 1), after.get(after.size() - 1));
+    }
+
+    /**
+     * A chunked blob reads back whole from its manifest, under the hash of its
+     * whole contents, and a new version stores only the chunks that changed.
+     */
+    @Test
+    public void manifestsReassembleTheBlob() throws Exception {
+        Path directory = root.resolve("objects");
+        Files.createDirectories(directory);
+        ObjectStore objects = new ObjectStore(directory);
+        objects.setChunkThreshold(1024 * 1024);
+
+        byte[] data = random(3 * 1024 * 1024, 4);
+        Path file = Files.write(root.resolve("big.bin"), data);
+        String hash = objects.writeBlob(file);
+        assertEquals(ObjectStore.hash(data), hash);
+        assertEquals(objects.hashFile(file), hash);
+
+        List<String> chunks = objects.chunks(hash);
+        assertNotNull(chunks);
+        assertEquals(chunk(data), chunks);
+        assertEquals(data.length, objects.size(hash));
+        assertArrayEquals(data, objects.read(hash));
+        try (InputStream in = objects.open(hash)) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+
+        // packing keeps the manifest and packs the chunks
+        objects.pack();
+        assertArrayEquals(data, objects.read(hash));
+
+        data[data.length / 2] ^= 1;
+        Files.write(file, data);
+        String changed = objects.writeBlob(file);
+        HashSet<String> added = new HashSet<>(objects.chunks(changed));
+        added.removeAll(chunks);
+        assertEquals(1, added.size());
+        assertArrayEquals(data, objects.read(changed));
+
+        // small blobs aren't chunked
+        assertNull(objects.chunks(objects.write("blob", "small".getBytes())));
+    }
+}
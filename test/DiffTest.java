@@ -0,0 +1,113 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DiffTest {
+
+    @TempDir
+    Path root;
+
+    private static final FileTime PAST = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+
+    private void write(String path, String contents) throws Exception {
+        Path file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, contents);
+        Files.setLastModifiedTime(file, PAST);
+    }
+
+    /**
+     * A commit with a large folder that doesn't change and a few changes
+     * elsewhere
+     */
+    private String[] commits(Git git) throws Exception {
+        for (int i = 0; i < 100; i++)
+            write("lib/sub" + i % 4 + "/f" + i, "lib " + i);
+        write("src/a.txt", "a");
+        write("src/old.txt", "old");
+        write("thing", "a file");
+        write("thing.txt", "sorts between thing and thing/");
+        git.stage("lib");
+        git.stage("src");
+        git.stage("thing");
+        git.stage("thing.txt");
+        String first = git.commit("me", "first");
+
+        write("src/a.txt", "changed");
+        Files.delete(root.resolve("src/old.txt"));
+        write("src/new.txt", "new");
+        Files.delete(root.resolve("thing"));
+        write("thing/inner", "now a folder");
+        git.stage("src");
+        git.stage("thing");
+        String second = git.commit("me", "second");
+        return new String[] { first, second };
+    }
+
+    /**
+     * Comparing commits lists every change, and doesn't read the trees of
+     * folders that are the same in both.
+     */
+    @Test
+    public void treesSkipUnchangedFolders() throws Exception {
+        try (Git git = new Git(root)) {
+            String[] commits = commits(git);
+            assertEquals("[M src/a.txt, A src/new.txt, R src/old.txt, R thing, A thing/inner]",
+                    git.diff(commits[0], commits[1]).toString());
+            assertEquals("[M src/a.txt, R src/new.txt, A src/old.txt, A thing, R thing/inner]",
+                    git.diff(commits[1], commits[0]).toString());
+            assertTrue(git.diff(commits[1], commits[1]).isEmpty());
+
+            ObjectDatabase database = new ObjectDatabase(git.getObjectDatabase().getObjects(), 1000);
+            String before = database.getCommit(commits[0]).getTree();
+            String after = database.getCommit(commits[1]).getTree();
+            long misses = database.getMisses();
+            List<Diff.Change> changes = new Diff(database, null).trees(before, after);
+            assertEquals(5, changes.size());
+            // both roots, both src trees and the new thing tree; nothing under lib
+            assertEquals(misses + 5, database.getMisses());
+
+            List<Diff.Change> added = new Diff(database, null).trees(null, after);
+            assertEquals(1 + 100 + 2 + 2, added.size());
+            assertEquals("A thing.txt", added.get(added.size() - 2).toString());
+            assertTrue(added.stream().allMatch(change -> change.getType() == Diff.Change.Type.ADDED));
+        }
+    }
+
+    /**
+     * Comparing HEAD with the working directory finds every kind of change,
+     * and once the stat data is saved only files that look changed are read.
+     */
+    @Test
+    public void worktreeOnlyReadsFilesThatLookChanged() throws Exception {
+        try (Git git = new Git(root)) {
+            commits(git);
+            assertTrue(git.status().isEmpty());
+
+            git.getMetrics().reset();
+            assertTrue(git.status().isEmpty());
+            assertEquals(0, git.getMetrics().getFilesHashed());
+            assertTrue(git.getMetrics().getFilesSkipped() >= 100);
+
+            write("lib/sub1/f1", "edited");
+            Files.delete(root.resolve("src/new.txt"));
+            write("src/untracked/deep.txt", "untracked");
+            Files.delete(root.resolve("thing/inner"));
+            Files.delete(root.resolve("thing"));
+            write("thing", "a file again");
+            write("thing.txt", "edited");
+            write(".hidden", "hidden");
+
+            git.getMetrics().reset();
+            assertEquals("[M lib/sub1/f1, R src/new.txt, A src/untracked/deep.txt, A thing, M thing.txt, R thing/inner]",
+                    git.status().toString());
+            assertEquals(2, git.getMetrics().getFilesHashed());
+        }
+    }
+}
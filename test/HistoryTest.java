@@ -0,0 +1,66 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class HistoryTest {
+
+    @TempDir
+    Path root;
+
+    private List<String> commit(Git git, int count) throws Exception {
+        ArrayList<String> commits = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Files.writeString(root.resolve("file.txt"), "version " + i);
+            git.stage("file.txt");
+            commits.add(git.commit("me", "change " + i));
+        }
+        return commits;
+    }
+
+    /**
+     * Walking commits in the commit-graph reads rows, not commit objects, until
+     * a commit's message is asked for.
+     */
+    @Test
+    public void logReadsTheGraphInsteadOfCommits() throws Exception {
+        Git git = new Git(root);
+        List<String> commits = commit(git, 5);
+        assertEquals(6, git.writeCommitGraph());
+
+        Git fresh = new Git(root);
+        ObjectDatabase database = fresh.getObjectDatabase();
+        ArrayList<String> walked = new ArrayList<>();
+        ArrayList<Commit> logged = new ArrayList<>();
+        for (Iterator<Commit> log = fresh.log(null, 5); log.hasNext();) {
+            Commit commit = log.next();
+            assertNotNull(commit.getTree());
+            walked.add(commit.getHash());
+            logged.add(commit);
+        }
+        assertEquals(0, database.getHits() + database.getMisses());
+
+        Collections.reverse(commits);
+        assertEquals(commits, walked);
+        assertEquals(commits.get(1), logged.get(0).getParent());
+        assertEquals("change 4", logged.get(0).getMessage());
+        assertEquals(1, database.getMisses());
+    }
+
+    @Test
+    public void isAncestorResolvesNames() throws Exception {
+        Git git = new Git(root);
+        List<String> commits = commit(git, 3);
+        git.writeCommitGraph();
+        commit(git, 1);
+
+        assertTrue(git.isAncestor(commits.get(0), "HEAD"));
+        assertTrue(git.isAncestor(commits.get(2), "main"));
+        assertFalse(git.isAncestor("HEAD", commits.get(1)));
+        assertFalse(git.isAncestor("no-such-branch", "HEAD"));
+    }
+}
@@ -0,0 +1,239 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class IndexTest {
+
+    @TempDir
+    Path root;
+
+    /**
+     * A file rewritten within the same timestamp as the index write has the same
+     * stat data as before. Writing the index again later must not make the old
+     * hash look safe to reuse.
+     */
+    @Test
+    public void racilyCleanFileIsHashedAgainAfterLaterWrites() throws Exception {
+        Git git = new Git(root);
+        Path a = root.resolve("a.txt");
+
+        // a time after this index write and before the next one
+        FileTime tick = FileTime.fromMillis(System.currentTimeMillis() + 1000);
+        Files.writeString(a, "AAAA");
+        Files.setLastModifiedTime(a, tick);
+        git.stage("a.txt");
+
+        // same size, same inode, same time
+        Files.writeString(a, "BBBB");
+        Files.setLastModifiedTime(a, tick);
+
+        while (System.currentTimeMillis() <= tick.toMillis() + 10)
+            Thread.sleep(50);
+        Files.writeString(root.resolve("b.txt"), "b");
+        git.stage("b.txt");
+        git.stage("a.txt");
+        String commit = git.commit("me", "racy");
+
+        Files.delete(a);
+        git.checkout(commit);
+        assertEquals("BBBB", Files.readString(a));
+        assertTrue(git.status().isEmpty());
+    }
+
+    @Test
+    public void cleanFileKeepsItsStatData() throws Exception {
+        Path file = root.resolve("index");
+        Path a = root.resolve("a.txt");
+        Files.writeString(a, "AAAA");
+        Files.setLastModifiedTime(a, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+        BasicFileAttributes attrs = Files.readAttributes(a, BasicFileAttributes.class);
+
+        Index index = Index.load(file);
+        index.recordStat("a.txt", ObjectStore.hash("AAAA".getBytes()), attrs);
+        try (LockFile lock = LockFile.lock(file, 0)) {
+            index.write(lock);
+        }
+        assertEquals(ObjectStore.hash("AAAA".getBytes()), Index.load(file).cachedHash("a.txt", attrs));
+    }
+
+    /**
+     * A large index is looked up in place by binary search after it is read
+     * back, and a flipped byte anywhere in it is caught by the checksum.
+     */
+    @Test
+    public void largeIndexIsSearchedAndChecked() throws Exception {
+        int count = 100_000;
+        Path file = root.resolve("index");
+        Path a = root.resolve("a.txt");
+        Files.writeString(a, "AAAA");
+        Files.setLastModifiedTime(a, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+        BasicFileAttributes attrs = Files.readAttributes(a, BasicFileAttributes.class);
+
+        // staged in a shuffled order, so the file has to sort them
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        Random random = new Random(7);
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        Index index = Index.load(file);
+        for (int i : order) {
+            String hash = ObjectStore.hash(("file " + i).getBytes());
+            index.add("blob", hash, "dir" + i % 100 + "/file" + i);
+            index.recordStat("stat/" + i, hash, attrs);
+        }
+        try (LockFile lock = LockFile.lock(file, 0)) {
+            index.write(lock);
+        }
+
+        Index loaded = Index.load(file);
+        for (int i = 0; i < count; i += 97) {
+            String hash = ObjectStore.hash(("file " + i).getBytes());
+            assertEquals(hash, loaded.getByPath("dir" + i % 100 + "/file" + i).getHash());
+            assertEquals(hash, loaded.cachedHash("stat/" + i, attrs));
+        }
+        assertEquals(ObjectStore.hash("file 0".getBytes()), loaded.getByPath("dir0/file0").getHash());
+        assertEquals(ObjectStore.hash(("file " + (count - 1)).getBytes()),
+                loaded.cachedHash("stat/" + (count - 1), attrs));
+        assertNull(loaded.getByPath("dir0/file1"));
+        assertNull(loaded.getByPath("dir0/file"));
+        assertNull(loaded.getByPath("zzz"));
+        assertNull(loaded.cachedHash("stat/" + count, attrs));
+        assertNull(loaded.cachedHash("", attrs));
+        assertEquals(count, loaded.entries().size());
+
+        byte[] data = Files.readAllBytes(file);
+        for (int at : new int[] { 20, data.length / 2, data.length - 5 }) {
+            byte[] corrupt = data.clone();
+            corrupt[at] ^= 1;
+            Files.write(file, corrupt);
+            assertThrows(IOException.class, () -> Index.load(file), "byte " + at);
+        }
+    }
+
+    /**
+     * The stat data of files that have been deleted isn't carried into the
+     * next index.
+     */
+    @Test
+    public void statDataOfDeletedFilesIsDropped() throws Exception {
+        Path file = root.resolve("git/index");
+        Files.createDirectories(file.getParent());
+        FileTime past = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+        BasicFileAttributes[] attrs = new BasicFileAttributes[3];
+        for (int i = 0; i < 3; i++) {
+            Path f = root.resolve("f" + i);
+            Files.writeString(f, "f" + i);
+            Files.setLastModifiedTime(f, past);
+            attrs[i] = Files.readAttributes(f, BasicFileAttributes.class);
+        }
+
+        Index index = Index.load(file, root);
+        index.recordStat("f0", ObjectStore.hash("f0".getBytes()), attrs[0]);
+        index.recordStat("f1", ObjectStore.hash("f1".getBytes()), attrs[1]);
+        try (LockFile lock = LockFile.lock(file, 0)) {
+            index.write(lock);
+        }
+        long before = Files.size(file);
+
+        // dropped both from the table that was read and from the new records
+        Files.delete(root.resolve("f1"));
+        index.recordStat("f2", ObjectStore.hash("f2".getBytes()), attrs[2]);
+        Files.delete(root.resolve("f2"));
+        try (LockFile lock = LockFile.lock(file, 0)) {
+            index.write(lock);
+        }
+        assertTrue(Files.size(file) < before);
+
+        Index loaded = Index.load(file, root);
+        assertEquals(ObjectStore.hash("f0".getBytes()), loaded.cachedHash("f0", attrs[0]));
+        assertNull(loaded.cachedHash("f1", attrs[1]));
+        assertNull(loaded.cachedHash("f2", attrs[2]));
+    }
+
+    /**
+     * Entries are found by path and by hash, before and after the index is
+     * written, and replacing one file's entry doesn't hide another file with
+     * the same contents.
+     */
+    @Test
+    public void entriesAreFoundByPathAndHash() throws Exception {
+        Path file = root.resolve("index");
+        String same = ObjectStore.hash("same".getBytes());
+        String other = ObjectStore.hash("other".getBytes());
+        String tree = ObjectStore.hash("tree".getBytes());
+
+        Index index = Index.load(file);
+        index.add("blob", same, "b.txt");
+        index.add("blob", same, "a.txt");
+        index.add("tree", tree, "dir");
+        assertTrue(index.isDirty());
+        assertEquals(same, index.getByPath("a.txt").getHash());
+        assertEquals("tree", index.getByPath("dir").getType());
+        assertTrue(index.containsHash(same));
+        assertNull(index.getByPath("c.txt"));
+        assertFalse(index.containsHash(other));
+
+        index.add("blob", other, "a.txt");
+        assertTrue(index.containsHash(same));
+        assertEquals("b.txt", index.getByHash(same).getPath());
+        assertEquals("a.txt", index.getByHash(other).getPath());
+        index.add("blob", other, "b.txt");
+        assertFalse(index.containsHash(same));
+        assertNull(index.getByHash(same));
+        assertEquals(3, index.entries().size());
+
+        try (LockFile lock = LockFile.lock(file, 0)) {
+            index.write(lock);
+        }
+        assertFalse(index.isDirty());
+
+        // looked up in the written table, then in the maps once they're loaded
+        Index loaded = Index.load(file);
+        assertFalse(loaded.isDirty());
+        assertEquals(other, loaded.getByPath("b.txt").getHash());
+        assertEquals(tree, loaded.getByPath("dir").getHash());
+        assertNull(loaded.getByPath("c.txt"));
+        assertTrue(loaded.containsHash(other));
+        assertFalse(loaded.containsHash(same));
+        assertEquals(3, loaded.entries().size());
+        assertEquals(other, loaded.getByPath("a.txt").getHash());
+
+        loaded.clear();
+        assertTrue(loaded.isEmpty());
+        assertFalse(loaded.containsHash(other));
+    }
+
+    /**
+     * An index in the old text format is read and written back as binary.
+     */
+    @Test
+    public void textIndexIsConverted() throws Exception {
+        Path file = root.resolve("index");
+        String a = ObjectStore.hash("a".getBytes());
+        Files.writeString(file, "blob " + a + " a.txt\n"
+                + "stat " + a + " 1 1000 - a.txt\n");
+
+        Index index = Index.load(file);
+        assertTrue(index.isDirty());
+        assertEquals(a, index.getByPath("a.txt").getHash());
+        try (LockFile lock = LockFile.lock(file, 0)) {
+            index.write(lock);
+        }
+        assertEquals(0x47494458, ByteBuffer.wrap(Files.readAllBytes(file)).getInt());
+        assertEquals(a, Index.load(file).getByPath("a.txt").getHash());
+    }
+}
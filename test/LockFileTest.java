@@ -0,0 +1,127 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class LockFileTest {
+
+    @TempDir
+    Path root;
+
+    /**
+     * Threads on two handles staging and committing on the same repository
+     * don't lose each other's commits or files.
+     */
+    @Test
+    public void racingHandlesKeepEveryCommit() throws Exception {
+        int threads = 4;
+        int commits = 10;
+        try (Git first = new Git(root); Git second = new Git(root)) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Git git = t % 2 == 0 ? first : second;
+                int thread = t;
+                done.add(pool.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < commits; i++) {
+                        String name = "t" + thread + "-" + i;
+                        Files.writeString(root.resolve(name), name);
+                        git.stage(name);
+                        git.commit("thread " + thread, name);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : done)
+                future.get();
+            pool.shutdown();
+
+            HashSet<String> messages = new HashSet<>();
+            for (Iterator<Commit> log = first.log(null, 1000); log.hasNext();)
+                messages.add(log.next().getMessage());
+            assertEquals(threads * commits + 1, messages.size());
+            assertTrue(first.status().isEmpty());
+            assertFalse(Files.exists(root.resolve("git/index.lock")));
+            assertFalse(Files.exists(root.resolve("git/HEAD.lock")));
+        }
+    }
+
+    /**
+     * A handle that can't get the index in time fails with the lock error
+     * instead of staging into a lost update.
+     */
+    @Test
+    public void contentionIsReported() throws Exception {
+        try (Git git = new Git(root)) {
+            git.setLockTimeout(50);
+            Files.writeString(root.resolve("file.txt"), "contents");
+            CountDownLatch locked = new CountDownLatch(1);
+            CountDownLatch finished = new CountDownLatch(1);
+            Thread holder = new Thread(() -> {
+                try (LockFile lock = LockFile.lock(root.resolve("git/index"), 0)) {
+                    locked.countDown();
+                    finished.await();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            holder.start();
+            locked.await();
+            try {
+                UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> git.stage("file.txt"));
+                assertInstanceOf(LockFile.LockFailedException.class, e.getCause());
+                assertEquals(1, git.getMetrics().getOperationErrors(Metrics.Operation.STAGE));
+            } finally {
+                finished.countDown();
+                holder.join();
+            }
+
+            // and works once the lock is free
+            git.stage("file.txt");
+            assertEquals(1, git.getMetrics().getOperationErrors(Metrics.Operation.STAGE));
+        }
+    }
+
+    /**
+     * The in-memory locks of files nobody is locking any more are let go of.
+     */
+    @Test
+    public void threadLocksAreDroppedOnceReleased() throws Exception {
+        int before = LockFile.threadLocks();
+        for (int i = 0; i < 100; i++) {
+            try (LockFile lock = LockFile.lock(root.resolve("file" + i), 0)) {
+                lock.write(new byte[] { (byte) i });
+                lock.commit();
+            }
+        }
+        assertEquals(before, LockFile.threadLocks());
+
+        // a thread that gives up waiting lets go too
+        Path file = root.resolve("busy");
+        ExecutorService waiter = Executors.newSingleThreadExecutor();
+        try (LockFile lock = LockFile.lock(file, 0)) {
+            Future<LockFile> waited = waiter.submit(() -> LockFile.lock(file, 20));
+            ExecutionException e = assertThrows(ExecutionException.class, waited::get);
+            assertInstanceOf(LockFile.LockFailedException.class, e.getCause());
+        } finally {
+            waiter.shutdown();
+        }
+        assertEquals(before, LockFile.threadLocks());
+    }
+}
@@ -0,0 +1,61 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MaintenanceTest {
+
+    @TempDir
+    Path root;
+
+    /**
+     * Runs more often than the grace period must not keep an unreachable object
+     * young forever, whether it starts out loose or packed.
+     */
+    @Test
+    public void orphansArePrunedWhenRunsAreMoreFrequentThanTheGracePeriod() throws Exception {
+        Git git = new Git(root);
+        Files.writeString(root.resolve("file.txt"), "kept");
+        git.stage("file.txt");
+        String commit = git.commit("me", "kept");
+
+        ObjectStore objects = git.getObjectDatabase().getObjects();
+        String loose = objects.write("blob", "loose orphan".getBytes());
+        String packed = objects.write("blob", "packed orphan".getBytes());
+        objects.pack();
+
+        Maintenance maintenance = git.getMaintenance();
+        maintenance.setGracePeriod(Duration.ofSeconds(2));
+        int runs = 0;
+        while ((objects.exists(loose) || objects.exists(packed)) && runs < 8) {
+            assertTrue(maintenance.runOnce());
+            runs++;
+            Thread.sleep(1000);
+        }
+        assertFalse(objects.exists(loose), "loose orphan survived " + runs + " runs");
+        assertFalse(objects.exists(packed), "packed orphan survived " + runs + " runs");
+
+        // everything reachable is still there
+        Files.delete(root.resolve("file.txt"));
+        git.checkout(commit);
+        assertEquals("kept", Files.readString(root.resolve("file.txt")));
+    }
+
+    @Test
+    public void youngOrphansAreKept() throws Exception {
+        Git git = new Git(root);
+        ObjectStore objects = git.getObjectDatabase().getObjects();
+        String orphan = objects.write("blob", "orphan".getBytes());
+        objects.pack();
+
+        Maintenance maintenance = git.getMaintenance();
+        maintenance.setGracePeriod(Duration.ofHours(1));
+        for (int i = 0; i < 3; i++)
+            assertTrue(maintenance.runOnce());
+        assertArrayEquals("orphan".getBytes(), objects.read(orphan));
+    }
+}
@@ -0,0 +1,89 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MetricsTest {
+
+    @TempDir
+    Path root;
+
+    /**
+     * A second handle on a repository publishes its own metrics instead of
+     * replacing the first handle's, and closing a handle takes only its own
+     * metrics off JMX.
+     */
+    @Test
+    public void everyHandleHasItsOwnMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Git first = new Git(root);
+        Git second = new Git(root);
+        ObjectName firstName = first.getMetrics().getObjectName();
+        ObjectName secondName = second.getMetrics().getObjectName();
+        assertNotNull(firstName);
+        assertNotNull(secondName);
+        assertNotEquals(firstName, secondName);
+        assertTrue(server.isRegistered(firstName));
+        assertTrue(server.isRegistered(secondName));
+
+        second.close();
+        assertFalse(server.isRegistered(secondName));
+        assertTrue(server.isRegistered(firstName));
+
+        first.close();
+        assertFalse(server.isRegistered(firstName));
+        assertNull(first.getMetrics().getObjectName());
+    }
+
+    @Test
+    public void closeStopsTheBackgroundThreads() throws Exception {
+        Git git = new Git(root);
+        git.startMaintenance(1, TimeUnit.HOURS);
+        git.startWatching(1, TimeUnit.SECONDS, false);
+        assertTrue(git.getMaintenance().isRunning());
+        assertTrue(git.getWatcher().isRunning());
+
+        git.close();
+        assertFalse(git.getMaintenance().isRunning());
+        assertFalse(git.getWatcher().isRunning());
+    }
+
+    /**
+     * A failed operation throws instead of returning an empty result, and is
+     * counted as an error.
+     */
+    @Test
+    public void failuresAreThrownAndCounted() throws Exception {
+        try (Git git = new Git(root)) {
+            UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> git.checkout("no-such-branch"));
+            assertInstanceOf(FileNotFoundException.class, e.getCause());
+            assertEquals(1, git.getMetrics().getOperationErrors(Metrics.Operation.CHECKOUT));
+            assertTrue(git.getMetrics().getLastError().contains("no-such-branch"));
+
+            assertThrows(IllegalArgumentException.class, () -> git.stage("../outside"));
+            assertEquals(1, git.getMetrics().getOperationErrors(Metrics.Operation.STAGE));
+        }
+    }
+
+    /**
+     * A repository that can't be opened doesn't leave an MBean behind.
+     */
+    @Test
+    public void failedOpenPublishesNothing() throws Exception {
+        Path file = Files.writeString(root.resolve("not-a-folder"), "");
+        assertThrows(IOException.class, () -> new Git(file));
+        ObjectName pattern = new ObjectName(
+                "git:type=Repository,root=" + ObjectName.quote(file.toString()) + ",*");
+        assertTrue(ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null).isEmpty());
+    }
+}
@@ -0,0 +1,104 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ObjectDatabaseTest {
+
+    @TempDir
+    Path root;
+
+    private ObjectStore store() throws Exception {
+        Path directory = root.resolve("objects");
+        Files.createDirectories(directory);
+        return new ObjectStore(directory);
+    }
+
+    private static List<Tree.Entry> entries(int i) {
+        return List.of(new Tree.Entry("blob", ObjectStore.hash(("file " + i).getBytes()), "file" + i));
+    }
+
+    /**
+     * Each stripe drops its least recently used object once it is full, and a
+     * dropped object is parsed again from the store when it is asked for.
+     */
+    @Test
+    public void leastRecentlyUsedObjectsAreDropped() throws Exception {
+        ObjectStore objects = store();
+        // two objects a stripe
+        ObjectDatabase database = new ObjectDatabase(objects, 32);
+
+        // three trees in the same stripe
+        List<String> same = new ArrayList<>();
+        for (int i = 0; same.size() < 3; i++) {
+            String hash = objects.write("tree", Tree.toBytes(entries(i)));
+            if (hash.charAt(0) == '7')
+                same.add(hash);
+        }
+        String a = same.get(0), b = same.get(1), c = same.get(2);
+
+        database.getTree(a);
+        database.getTree(b);
+        assertEquals(2, database.getMisses());
+        assertSame(database.getTree(a), database.getTree(a));
+        assertEquals(2, database.getHits());
+
+        // b is the least recently used, so c pushes it out
+        database.getTree(c);
+        assertEquals(3, database.getMisses());
+        database.getTree(a);
+        assertEquals(3, database.getHits());
+        Tree again = database.getTree(b);
+        assertEquals(4, database.getMisses());
+        assertEquals(b, again.getHash());
+        assertEquals(2, database.size());
+
+        database.clear();
+        assertEquals(0, database.size());
+        assertEquals(3.0 / 7, database.getHitRate(), 1e-9);
+    }
+
+    /**
+     * A tree that was just written is kept parsed, and the cache never holds
+     * more than its capacity however many objects are read.
+     */
+    @Test
+    public void writtenTreesAreCachedWithinCapacity() throws Exception {
+        ObjectDatabase database = new ObjectDatabase(store(), 64);
+        List<String> hashes = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+            hashes.add(database.writeTree(entries(i)));
+        assertTrue(database.size() <= 64);
+
+        String last = hashes.get(hashes.size() - 1);
+        database.getTree(last);
+        assertEquals(1, database.getHits());
+        assertEquals(entries(499).get(0).getHash(), database.getTree(last).getEntries().get(0).getHash());
+
+        // read from many threads at once, every object still comes back right
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> reads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int start = t;
+            reads.add(pool.submit(() -> {
+                for (int i = start; i < hashes.size(); i += 3) {
+                    Tree tree = database.getTree(hashes.get(i));
+                    assertEquals("file" + i, tree.getEntries().get(0).getName());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> read : reads)
+            read.get();
+        pool.shutdown();
+        assertTrue(database.size() <= 64);
+    }
+}
@@ -0,0 +1,143 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+public class ObjectIdTest {
+
+    private static final String HASH = "0123456789abcdef00ff10fe7f80a5b6c7d8e9f0";
+
+    private static String sha1(byte[] data) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(data));
+    }
+
+    /**
+     * Hex, raw bytes and buffers all convert to the same id and back, and hex
+     * always comes out lowercase.
+     */
+    @Test
+    public void idsConvertBothWays() {
+        ObjectId id = ObjectId.fromString(HASH);
+        assertEquals(HASH, id.name());
+        assertEquals(HASH, id.toString());
+        assertEquals(0x01, id.getFirstByte());
+        assertEquals(id, ObjectId.fromString(HASH.toUpperCase()));
+        assertEquals(HASH, ObjectId.fromString(HASH.toUpperCase()).name());
+
+        byte[] raw = id.toRaw();
+        assertArrayEquals(HexFormat.of().parseHex(HASH), raw);
+        assertEquals(id, ObjectId.fromRaw(raw));
+        byte[] padded = new byte[30];
+        id.copyRawTo(padded, 7);
+        assertEquals(id, ObjectId.fromRaw(padded, 7));
+        ByteBuffer buffer = ByteBuffer.wrap(padded);
+        assertEquals(id, ObjectId.fromBuffer(buffer, 7));
+        assertEquals(0, id.compareTo(buffer, 7));
+
+        // out of the middle of a line
+        String line = "tree " + HASH + " name";
+        assertEquals(id, ObjectId.fromString(line, 5));
+        assertEquals(id, ObjectId.fromString(new StringBuilder(line), 5));
+
+        String top = "ffffffff" + HASH.substring(8);
+        assertEquals(top, ObjectId.fromString(top).name());
+        assertEquals(0xFF, ObjectId.fromString(top).getFirstByte());
+    }
+
+    @Test
+    public void badHashesAreRefused() {
+        for (String bad : new String[] { "", HASH.substring(1), HASH + "0", HASH.replace('a', 'g'),
+                HASH.replace('b', ' '), HASH.replace('c', 'é'), HASH.replace('d', '０') })
+            assertThrows(IllegalArgumentException.class, () -> ObjectId.fromString(bad), bad);
+        assertThrows(IllegalArgumentException.class, () -> ObjectId.fromString("tree " + HASH, 6));
+        assertThrows(IllegalArgumentException.class, () -> ObjectId.fromString(HASH, -1));
+
+        assertTrue(ObjectId.isId(HASH));
+        assertFalse(ObjectId.isId(HASH.toUpperCase()));
+        assertFalse(ObjectId.isId(HASH.substring(1)));
+        assertFalse(ObjectId.isId(HASH.replace('a', 'g')));
+        assertFalse(ObjectId.isId(null));
+    }
+
+    /**
+     * Ids sort the same way as their hex does, including ones whose top bit is
+     * set, and equal ids hash the same.
+     */
+    @Test
+    public void idsSortLikeTheirHex() {
+        Random random = new Random(15);
+        List<String> hashes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] raw = new byte[20];
+            random.nextBytes(raw);
+            // ids that only differ late on
+            if (i % 3 == 0)
+                System.arraycopy(HexFormat.of().parseHex(HASH), 0, raw, 0, 16);
+            hashes.add(HexFormat.of().formatHex(raw));
+        }
+        for (int i = 1; i < hashes.size(); i++) {
+            String a = hashes.get(i - 1), b = hashes.get(i);
+            ObjectId x = ObjectId.fromString(a), y = ObjectId.fromString(b);
+            assertEquals(Integer.signum(a.compareTo(b)), Integer.signum(x.compareTo(y)), a + " " + b);
+            assertEquals(Integer.signum(a.compareTo(b)), Integer.signum(x.compareTo(ByteBuffer.wrap(y.toRaw()), 0)));
+            assertEquals(a.equals(b), x.equals(y));
+        }
+
+        ObjectId id = ObjectId.fromString(HASH);
+        ObjectId same = ObjectId.fromRaw(id.toRaw());
+        assertNotSame(id, same);
+        assertEquals(id, same);
+        assertEquals(id.hashCode(), same.hashCode());
+        assertEquals(0, id.compareTo(same));
+        assertNotEquals(id, HASH);
+    }
+
+    /**
+     * Hashes match a fresh SHA-1 digest, even when many threads hash at once
+     * with their own digests.
+     */
+    @Test
+    public void hashesMatchSha1OnEveryThread() throws Exception {
+        assertEquals(sha1(new byte[0]), ObjectId.hash(new byte[0]).name());
+        assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", ObjectId.hash(new byte[0]).name());
+
+        // a digest left part fed is reset before it is handed out again
+        ObjectId.digest().update("left over".getBytes());
+        assertEquals(sha1("abc".getBytes()), ObjectId.hash("abc".getBytes()).name());
+
+        MessageDigest digest = ObjectId.newDigest();
+        assertNotSame(digest, ObjectId.newDigest());
+        digest.update("ab".getBytes());
+        digest.update("c".getBytes());
+        assertEquals(sha1("abc".getBytes()), ObjectId.fromDigest(digest).name());
+        digest.update("abc".getBytes());
+        assertEquals(sha1("abc".getBytes()), ObjectId.fromDigest(digest).name());
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> hashing = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int seed = t;
+            hashing.add(pool.submit(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 2000; i++) {
+                    byte[] data = new byte[random.nextInt(300)];
+                    random.nextBytes(data);
+                    assertEquals(sha1(data), ObjectId.hash(data).name());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> task : hashing)
+            task.get();
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,176 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ObjectStoreTest {
+
+    @TempDir
+    Path root;
+
+    /**
+     * A repack replaces and closes the pack a reader is partway through. The
+     * reader has to be able to finish.
+     */
+    @Test
+    public void readerFinishesAfterItsPackIsReplaced() throws Exception {
+        Path directory = root.resolve("objects");
+        Files.createDirectories(directory);
+        ObjectStore objects = new ObjectStore(directory);
+        byte[] data = new byte[1024 * 1024];
+        new Random(42).nextBytes(data);
+        String hash = objects.write("blob", data);
+        objects.pack();
+        Path oldPack;
+        try (var packs = Files.list(directory.resolve("pack"))) {
+            oldPack = packs.filter(p -> p.toString().endsWith(".pack")).findFirst().orElseThrow();
+        }
+
+        try (InputStream in = objects.open(hash)) {
+            byte[] start = in.readNBytes(10);
+
+            // a new object makes the next pack a different file
+            objects.write("blob", "another".getBytes());
+            objects.pack();
+            assertFalse(Files.exists(oldPack));
+
+            byte[] rest = in.readAllBytes();
+            assertArrayEquals(Arrays.copyOfRange(data, 0, 10), start);
+            assertArrayEquals(Arrays.copyOfRange(data, 10, data.length), rest);
+        }
+        assertArrayEquals(data, objects.read(hash));
+    }
+
+    /**
+     * Lookups that have to rescan the packs don't wait for a pack being built.
+     */
+    @Test
+    public void lookupsDontWaitOnARepack() throws Exception {
+        Path directory = root.resolve("objects");
+        Files.createDirectories(directory);
+        ObjectStore objects = new ObjectStore(directory);
+        objects.write("blob", "first".getBytes());
+        objects.pack();
+
+        ExecutorService packer = Executors.newSingleThreadExecutor();
+        CountDownLatch packing = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        try {
+            Future<?> held = packer.submit(() -> {
+                synchronized (objects.packing) {
+                    packing.countDown();
+                    finished.await();
+                }
+                return null;
+            });
+            packing.await();
+
+            // another handle packs an object this one has to rescan to find
+            ObjectStore other = new ObjectStore(directory);
+            String hash = other.write("blob", "second".getBytes());
+            other.pack();
+            other.close();
+            assertTimeoutPreemptively(Duration.ofSeconds(5),
+                    () -> assertArrayEquals("second".getBytes(), objects.read(hash)));
+
+            finished.countDown();
+            held.get(5, TimeUnit.SECONDS);
+        } finally {
+            finished.countDown();
+            packer.shutdown();
+        }
+    }
+
+    /**
+     * A file larger than the copy buffer is hashed and stored in one streamed
+     * read, with or without compression, under the hash of its contents.
+     */
+    @Test
+    public void blobsAreStreamedIn() throws Exception {
+        byte[] data = new byte[5 * 1024 * 1024 + 17];
+        new Random(3).nextBytes(data);
+        Path file = Files.write(root.resolve("big.bin"), data);
+        Path empty = Files.write(root.resolve("empty"), new byte[0]);
+        for (boolean compressed : new boolean[] { false, true }) {
+            Path directory = root.resolve("objects-" + compressed);
+            Files.createDirectories(directory);
+            ObjectStore objects = new ObjectStore(directory);
+            objects.setCompressed(compressed);
+
+            String hash = objects.writeBlob(file);
+            assertEquals(ObjectStore.hash(data), hash);
+            assertEquals(hash, objects.hashFile(file));
+            assertEquals(data.length, objects.size(hash));
+            assertArrayEquals(data, objects.read(hash));
+            assertEquals(hash, objects.writeBlob(file));
+
+            String none = objects.writeBlob(empty);
+            assertEquals(ObjectStore.hash(new byte[0]), none);
+            assertArrayEquals(new byte[0], objects.read(none));
+
+            try (var files = Files.list(directory)) {
+                assertTrue(files.noneMatch(p -> p.getFileName().toString().startsWith("tmp_")));
+            }
+            assertEquals(2, objects.list().size());
+        }
+    }
+
+    /**
+     * Compressed objects are stored like git's loose objects, deflated with a
+     * "type length\0" header under a fan-out folder, and named by the hash of
+     * their contents like plain ones, so a store reads both kinds.
+     */
+    @Test
+    public void compressedObjectsUseGitsLooseFormat() throws Exception {
+        Path directory = root.resolve("objects");
+        Files.createDirectories(directory);
+        ObjectStore compressed = new ObjectStore(directory);
+        compressed.setCompressed(true);
+        ObjectStore plain = new ObjectStore(directory);
+
+        byte[] text = "line of text\n".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        String hash = compressed.write("tree", text);
+        assertEquals(ObjectStore.hash(text), hash);
+        Path file = directory.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+        assertTrue(Files.exists(file));
+        assertFalse(Files.exists(directory.resolve(hash)));
+        assertTrue(Files.size(file) < text.length / 10);
+        try (InflaterInputStream in = new InflaterInputStream(Files.newInputStream(file))) {
+            byte[] header = ("tree " + text.length + "\0").getBytes(StandardCharsets.US_ASCII);
+            assertArrayEquals(header, in.readNBytes(header.length));
+            assertArrayEquals(text, in.readAllBytes());
+        }
+
+        byte[] other = "plain".getBytes(StandardCharsets.UTF_8);
+        String plainHash = plain.write("blob", other);
+        assertArrayEquals(other, Files.readAllBytes(directory.resolve(plainHash)));
+
+        // each reads the other's objects
+        for (ObjectStore objects : new ObjectStore[] { compressed, plain }) {
+            assertArrayEquals(text, objects.read(hash));
+            assertEquals(text.length, objects.size(hash));
+            assertArrayEquals(other, objects.read(plainHash));
+            assertEquals(other.length, objects.size(plainHash));
+            assertTrue(objects.exists(hash) && objects.exists(plainHash));
+        }
+        Path copy = root.resolve("copy");
+        plain.copyTo(hash, copy);
+        assertArrayEquals(text, Files.readAllBytes(copy));
+        assertFalse(plain.linkTo(hash, root.resolve("link")));
+        assertTrue(plain.linkTo(plainHash, root.resolve("link")));
+    }
+}
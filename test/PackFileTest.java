@@ -0,0 +1,147 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PackFileTest {
+
+    @TempDir
+    Path root;
+
+    private ObjectStore store() throws Exception {
+        Path directory = root.resolve("objects");
+        Files.createDirectories(directory);
+        return new ObjectStore(directory);
+    }
+
+    private Path index() throws Exception {
+        try (var files = Files.list(root.resolve("objects/pack"))) {
+            return files.filter(p -> p.toString().endsWith(".idx")).findFirst().orElseThrow();
+        }
+    }
+
+    @Test
+    public void deltasRoundTrip() throws Exception {
+        Random random = new Random(5);
+        byte[] base = new byte[50_000];
+        random.nextBytes(base);
+        byte[] target = base.clone();
+        target[100] ^= 1;
+        System.arraycopy(base, 0, target, 30_000, 1000);
+        byte[] longer = Arrays.copyOf(target, 60_000);
+
+        for (byte[] to : new byte[][] { base, target, longer, new byte[0], Arrays.copyOf(base, 10) }) {
+            byte[] delta = Delta.create(base, to);
+            assertArrayEquals(to, Delta.apply(base, delta));
+        }
+        assertTrue(Delta.create(base, target).length < 2000);
+    }
+
+    /**
+     * Every object reads back the same from a pack, including the ones stored
+     * as deltas of each other, and the loose copies are gone.
+     */
+    @Test
+    public void packedObjectsReadBack() throws Exception {
+        ObjectStore objects = store();
+        HashMap<String, byte[]> stored = new HashMap<>();
+        long total = 0;
+
+        // versions of a file that differ by a line each, which pack as deltas
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++)
+            text.append("line ").append(i).append('\n');
+        for (int v = 0; v < 30; v++) {
+            text.append("version ").append(v).append('\n');
+            byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+            stored.put(objects.write("blob", data), data);
+            total += data.length;
+        }
+        Random random = new Random(6);
+        for (int size : new int[] { 0, 1, 20, 4096, 100_000 }) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            stored.put(objects.write("blob", data), data);
+            total += size;
+        }
+
+        assertEquals(stored.size(), objects.pack());
+        try (var files = Files.list(root.resolve("objects"))) {
+            assertEquals(List.of("pack"), files.map(p -> p.getFileName().toString()).toList());
+        }
+        long packed = Files.size(index().resolveSibling(index().getFileName().toString().replace(".idx", ".pack")));
+        assertTrue(packed < total / 5, packed + " bytes packed from " + total);
+
+        for (Map.Entry<String, byte[]> object : stored.entrySet()) {
+            assertArrayEquals(object.getValue(), objects.read(object.getKey()));
+            assertEquals(object.getValue().length, objects.size(object.getKey()));
+        }
+
+        // packing again reads the deltas back out and writes the same objects
+        objects.write("blob", "one more".getBytes());
+        assertEquals(stored.size() + 1, objects.pack());
+        for (Map.Entry<String, byte[]> object : stored.entrySet())
+            assertArrayEquals(object.getValue(), objects.read(object.getKey()));
+
+        PackFile pack = PackFile.open(index());
+        try {
+            assertEquals(stored.size() + 1, pack.size());
+            TreeSet<String> ids = new TreeSet<>(stored.keySet());
+            ids.add(ObjectStore.hash("one more".getBytes()));
+            assertEquals(new ArrayList<>(ids), pack.ids());
+            for (String id : ids)
+                assertTrue(pack.contains(id));
+            assertFalse(pack.contains(ObjectStore.hash("missing".getBytes())));
+            assertNull(pack.open(ObjectStore.hash("missing".getBytes())));
+            assertEquals(-1, pack.size(ObjectStore.hash("missing".getBytes())));
+        } finally {
+            pack.close();
+        }
+    }
+
+    /**
+     * Streams opened before a pack is closed keep reading it, and nothing new
+     * is opened after.
+     */
+    @Test
+    public void openStreamsOutliveClose() throws Exception {
+        ObjectStore objects = store();
+        byte[] data = new byte[1024 * 1024];
+        new Random(7).nextBytes(data);
+        String hash = objects.write("blob", data);
+        objects.pack();
+
+        PackFile pack = PackFile.open(index());
+        InputStream first = pack.open(hash);
+        InputStream second = pack.open(hash);
+        byte[] start = first.readNBytes(100);
+        pack.close();
+        pack.close();
+
+        assertNull(pack.open(hash));
+        assertEquals(-1, pack.size(hash));
+        assertArrayEquals(Arrays.copyOf(data, 100), start);
+        byte[] rest = first.readAllBytes();
+        first.close();
+        assertArrayEquals(Arrays.copyOfRange(data, 100, data.length), rest);
+        assertArrayEquals(data, second.readAllBytes());
+        second.close();
+
+        // the store's own copy is unaffected
+        assertArrayEquals(data, objects.read(hash));
+        objects.close();
+        assertArrayEquals(data, objects.read(hash));
+    }
+}
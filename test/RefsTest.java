@@ -0,0 +1,116 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class RefsTest {
+
+    @TempDir
+    Path root;
+
+    private static final String A = ObjectStore.hash("a".getBytes());
+    private static final String B = ObjectStore.hash("b".getBytes());
+    private static final String C = ObjectStore.hash("c".getBytes());
+
+    @Test
+    public void hashesAreLowercase() throws Exception {
+        Refs refs = new Refs(root);
+        String upper = A.toUpperCase(Locale.ROOT);
+        assertTrue(ObjectId.isId(A));
+        assertFalse(ObjectId.isId(upper));
+        assertFalse(ObjectId.isId(A.substring(1) + "g"));
+        assertFalse(ObjectId.isId(A.substring(1)));
+
+        assertEquals(A, refs.resolve(upper));
+        assertEquals(A, refs.resolve(A));
+        assertThrows(IllegalArgumentException.class, () -> refs.compareAndSet("refs/heads/main", null, upper));
+    }
+
+    /**
+     * A change only goes through if the ref still has the value the caller
+     * read, and only one of several writers racing from the same value wins.
+     */
+    @Test
+    public void compareAndSetRefusesStaleValues() throws Exception {
+        Refs refs = new Refs(root);
+        String main = "refs/heads/main";
+        assertTrue(refs.compareAndSet(main, null, A));
+        assertFalse(refs.compareAndSet(main, null, B));
+        assertFalse(refs.compareAndSet(main, B, C));
+        assertEquals(A, refs.get(main));
+        assertFalse(refs.compareAndSet(main, B, null));
+        assertEquals(A, refs.get(main));
+
+        int writers = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(writers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            String value = ObjectStore.hash(("writer " + i).getBytes());
+            results.add(pool.submit(() -> {
+                start.await();
+                return refs.compareAndSet(main, A, value);
+            }));
+        }
+        start.countDown();
+        int won = 0;
+        for (Future<Boolean> result : results)
+            won += result.get() ? 1 : 0;
+        pool.shutdown();
+        assertEquals(1, won);
+        assertNotEquals(A, refs.get(main));
+
+        assertTrue(refs.compareAndSet(main, refs.get(main), null));
+        assertNull(refs.get(main));
+        assertFalse(Files.exists(root.resolve(main)));
+    }
+
+    /**
+     * Packing moves loose refs into packed-refs without changing what they
+     * point at, a loose ref written after overrides its packed copy, and
+     * deleting a packed ref removes it from packed-refs too.
+     */
+    @Test
+    public void looseRefsOverridePackedOnes() throws Exception {
+        Refs refs = new Refs(root);
+        assertTrue(refs.compareAndSet("refs/heads/main", null, A));
+        assertTrue(refs.compareAndSet("refs/heads/topic/one", null, B));
+        assertTrue(refs.compareAndSet("refs/tags/v1", null, C));
+        var before = refs.list("refs/");
+
+        assertEquals(3, refs.pack());
+        assertTrue(Files.exists(root.resolve("packed-refs")));
+        assertFalse(Files.exists(root.resolve("refs/heads/main")));
+        assertFalse(Files.exists(root.resolve("refs/heads/topic")));
+        assertEquals(before, refs.list("refs/"));
+        assertEquals(before, new Refs(root).list("refs/"));
+        assertEquals(C, refs.resolve("v1"));
+        assertEquals(B, refs.resolve("topic/one"));
+
+        assertTrue(refs.compareAndSet("refs/heads/main", A, B));
+        assertTrue(Files.exists(root.resolve("refs/heads/main")));
+        assertEquals(B, refs.get("refs/heads/main"));
+        assertEquals(B, refs.list("refs/heads/").get("refs/heads/main"));
+        assertFalse(refs.compareAndSet("refs/heads/main", A, C));
+
+        assertTrue(refs.compareAndSet("refs/heads/main", B, null));
+        assertNull(refs.get("refs/heads/main"));
+        assertNull(new Refs(root).get("refs/heads/main"));
+        assertFalse(refs.list("refs/").containsKey("refs/heads/main"));
+
+        // a packed ref that is deleted can be made again as a folder of refs
+        assertTrue(refs.compareAndSet("refs/tags/v1", C, null));
+        assertTrue(refs.compareAndSet("refs/tags/v1/rc", null, A));
+        assertEquals(2, refs.pack());
+    }
+}
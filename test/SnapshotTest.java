@@ -0,0 +1,98 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.FileNotFoundException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SnapshotTest {
+
+    @TempDir
+    Path root;
+
+    private static List<String> names(Git git, String commit) throws Exception {
+        ObjectDatabase database = git.getObjectDatabase();
+        List<String> names = new ArrayList<>();
+        for (Tree.Entry entry : database.getTree(database.getCommit(commit).getTree()).getEntries())
+            names.add(entry.getName());
+        return names;
+    }
+
+    @Test
+    public void batchesCommitOnTopOfEachOther() throws Exception {
+        try (Git git = new Git(root)) {
+            String start = git.resolve(Refs.HEAD);
+            Files.writeString(root.resolve("a.txt"), "a");
+            List<String> hashes = git.commit(List.of(
+                    new Snapshot("me", "one").stage("a.txt"),
+                    new Snapshot("me", "two").put("b.txt", "b".getBytes()),
+                    new Snapshot("me", "three").put("c.txt", "c".getBytes())));
+
+            assertEquals(3, hashes.size());
+            ObjectDatabase database = git.getObjectDatabase();
+            assertEquals(start, database.getCommit(hashes.get(0)).getParent());
+            assertEquals(hashes.get(0), database.getCommit(hashes.get(1)).getParent());
+            assertEquals(hashes.get(1), database.getCommit(hashes.get(2)).getParent());
+            assertEquals(hashes.get(2), git.resolve(Refs.HEAD));
+            assertEquals(List.of("README.md", "a.txt", "b.txt", "c.txt"), names(git, hashes.get(2)));
+        }
+    }
+
+    /**
+     * A batch with a snapshot that can't be staged commits none of it: HEAD
+     * stays put and the files of the snapshots before it aren't left staged.
+     */
+    @Test
+    public void failedSnapshotLeavesHeadAndIndexUntouched() throws Exception {
+        try (Git git = new Git(root)) {
+            Files.writeString(root.resolve("a.txt"), "a");
+            git.stage("a.txt");
+            String head = git.commit("me", "first");
+            byte[] index = Files.readAllBytes(root.resolve("git/index"));
+
+            Files.writeString(root.resolve("a.txt"), "changed");
+            UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> git.commit(List.of(
+                    new Snapshot("me", "ok").put("b.txt", "b".getBytes()).stage("a.txt"),
+                    new Snapshot("me", "broken").stage("missing.txt"))));
+            assertInstanceOf(FileNotFoundException.class, e.getCause());
+            assertEquals(1, git.getMetrics().getOperationErrors(Metrics.Operation.COMMIT));
+
+            assertEquals(head, git.resolve(Refs.HEAD));
+            assertArrayEquals(index, Files.readAllBytes(root.resolve("git/index")));
+            assertFalse(Files.exists(root.resolve("git/index.lock")));
+
+            // nothing from the failed batch is in the next commit
+            String next = git.commit("me", "next");
+            assertEquals(List.of("README.md", "a.txt"), names(git, next));
+            assertEquals(git.getObjectDatabase().getCommit(head).getTree(),
+                    git.getObjectDatabase().getCommit(next).getTree());
+        }
+    }
+
+    /**
+     * Contents committed from memory don't appear in the working directory, so
+     * they show as removed until they are checked out.
+     */
+    @Test
+    public void committedContentsAreNotWritten() throws Exception {
+        try (Git git = new Git(root)) {
+            String commit = git.commit("me", "generated", Map.of("gen/c.txt", "c".getBytes()));
+            assertFalse(Files.exists(root.resolve("gen/c.txt")));
+
+            List<Diff.Change> status = git.status();
+            assertEquals(1, status.size());
+            assertEquals(Diff.Change.Type.REMOVED, status.get(0).getType());
+            assertEquals("gen/c.txt", status.get(0).getPath());
+
+            git.checkout(commit, false, true);
+            assertEquals("c", Files.readString(root.resolve("gen/c.txt")));
+            assertTrue(git.status().isEmpty());
+        }
+    }
+}
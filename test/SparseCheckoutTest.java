@@ -0,0 +1,220 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SparseCheckoutTest {
+
+    @TempDir
+    Path root;
+
+    private void write(String path, String contents) throws Exception {
+        Path file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, contents);
+    }
+
+    /**
+     * @return The files in the working directory, leaving out the git folder
+     */
+    private List<String> files() throws Exception {
+        List<String> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(root)) {
+            walk.filter(Files::isRegularFile).forEach(p -> files.add(root.relativize(p).toString().replace('\\', '/')));
+        }
+        files.removeIf(p -> p.startsWith("git/"));
+        files.sort(null);
+        return files;
+    }
+
+    /**
+     * A large snapshot of which a job needs a small part
+     */
+    private String snapshot(Git git) throws Exception {
+        for (int i = 0; i < 200; i++)
+            write("data/part" + i % 10 + "/f" + i, "data " + i);
+        write("src/main/A.java", "class A {}");
+        write("src/main/util/B.java", "class B {}");
+        write("src/test/ATest.java", "class ATest {}");
+        write("docs/guide.md", "guide");
+        write("docs/notes.txt", "notes");
+        write("docs/deep/more.md", "more");
+        for (String path : new String[] { "data", "src", "docs" })
+            git.stage(path);
+        return git.commit("me", "snapshot");
+    }
+
+    @Test
+    public void patternsMatchPathsAndGlobs() throws Exception {
+        SparseCheckout sparse = new SparseCheckout(List.of("./src/main/", "docs/*.md", "**/*.txt"));
+        assertEquals(List.of("src/main", "docs/*.md", "**/*.txt"), sparse.getPatterns());
+
+        assertTrue(sparse.matches("src/main"));
+        assertTrue(sparse.matches("src/main/util/B.java"));
+        assertFalse(sparse.matches("src/mainly.java"));
+        assertFalse(sparse.matches("src/test/ATest.java"));
+        assertTrue(sparse.matches("docs/guide.md"));
+        assertFalse(sparse.matches("docs/deep/more.md"));
+        assertTrue(sparse.matches("a/b/c.txt"));
+
+        SparseCheckout narrow = new SparseCheckout(List.of("src/main", "docs/*.md"));
+        assertTrue(narrow.mayMatchUnder(""));
+        assertTrue(narrow.mayMatchUnder("src"));
+        assertTrue(narrow.mayMatchUnder("src/main/util"));
+        assertTrue(narrow.mayMatchUnder("docs"));
+        assertFalse(narrow.mayMatchUnder("src/test"));
+        assertFalse(narrow.mayMatchUnder("data"));
+        // docs/*.md only matches files right in docs
+        assertFalse(narrow.mayMatchUnder("docs/deep"));
+        assertTrue(sparse.mayMatchUnder("docs/deep"));
+        assertTrue(new SparseCheckout(List.of("docs/**/*.md")).mayMatchUnder("docs/deep/er"));
+        assertTrue(new SparseCheckout(List.of("docs/{a,b/c}/*.md")).mayMatchUnder("docs/b/c"));
+
+        assertThrows(IllegalArgumentException.class, () -> new SparseCheckout(List.of()));
+        assertThrows(IllegalArgumentException.class, () -> new SparseCheckout(List.of("/")));
+        assertThrows(IllegalArgumentException.class, () -> new SparseCheckout(List.of("a\nb")));
+
+        // kept one pattern a line
+        Path file = root.resolve("sparse-checkout");
+        assertNull(SparseCheckout.read(file));
+        try (LockFile lock = LockFile.lock(file, 1000)) {
+            narrow.write(lock);
+        }
+        assertEquals(narrow.getPatterns(), SparseCheckout.read(file).getPatterns());
+    }
+
+    /**
+     * Only the matching files are written, and the trees of folders no pattern
+     * reaches aren't read.
+     */
+    @Test
+    public void onlyMatchingFilesAreCheckedOut() throws Exception {
+        try (Git git = new Git(root)) {
+            String commit = snapshot(git);
+            git.checkout(commit, false, true);
+            assertEquals(200 + 7, files().size());
+
+            git.checkout(commit, List.of("src/main", "docs/*.md"));
+            assertEquals(List.of("docs/guide.md", "src/main/A.java", "src/main/util/B.java"), files());
+            assertFalse(Files.exists(root.resolve("data")));
+            assertFalse(Files.exists(root.resolve("src/test")));
+            assertEquals("src/main docs/*.md", Files.readString(root.resolve("git/sparse-checkout")).strip()
+                    .replace('\n', ' '));
+            CheckoutStats stats = git.getLastCheckoutStats();
+            assertEquals(0, stats.getFilesRestored());
+            assertEquals(3, stats.getFilesSkipped());
+            assertEquals(200 + 4, stats.getFilesDeleted());
+
+            // with data gone from the working directory, the commit and the trees
+            // of the root, src, src/main, src/main/util and docs are read; none
+            // of data's, nor docs/deep's
+            git.getObjectDatabase().clear();
+            long misses = git.getObjectDatabase().getMisses();
+            git.checkout(commit, List.of("src/main", "docs/*.md"));
+            assertEquals(misses + 6, git.getObjectDatabase().getMisses());
+            assertEquals(3, git.getLastCheckoutStats().getFilesSkipped());
+
+            // the files left out aren't reported as removed
+            assertTrue(git.status().isEmpty());
+
+            // from a snapshot with nothing checked out, only the wanted files are
+            // written
+            write("src/main/A.java", "class A { int a; }");
+            git.stage("src");
+            String next = git.commit("me", "next");
+            git.checkout(commit, List.of("docs/deep"));
+            assertEquals(List.of("docs/deep/more.md"), files());
+            git.checkout(next, List.of("src/main/A.java"));
+            assertEquals(List.of("src/main/A.java"), files());
+            assertEquals("class A { int a; }", Files.readString(root.resolve("src/main/A.java")));
+            assertEquals(1, git.getLastCheckoutStats().getFilesRestored());
+
+            // a full checkout writes everything and forgets the patterns
+            git.checkout(next);
+            assertEquals(200 + 7, files().size());
+            assertFalse(Files.exists(root.resolve("git/sparse-checkout")));
+        }
+    }
+
+    /**
+     * Files left out can be restored whole folders at a time, or one at a time
+     * by reading them.
+     */
+    @Test
+    public void filesLeftOutAreRestoredOnDemand() throws Exception {
+        try (Git git = new Git(root)) {
+            String commit = snapshot(git);
+            git.checkout(commit, List.of("docs"));
+            assertEquals(3, files().size());
+
+            assertEquals(20, git.materialize("data/part3"));
+            assertEquals("data 13", Files.readString(root.resolve("data/part3/f13")));
+            assertEquals(0, git.materialize("data/part3"));
+            assertEquals(0, git.materialize("docs"));
+            assertEquals(3 + 20, files().size());
+
+            try (InputStream in = git.open("src/main/util/B.java")) {
+                assertEquals("class B {}", new String(in.readAllBytes()));
+            }
+            assertTrue(Files.exists(root.resolve("src/main/util/B.java")));
+            assertFalse(Files.exists(root.resolve("src/main/A.java")));
+            try (InputStream in = git.open("docs/guide.md")) {
+                assertEquals("guide", new String(in.readAllBytes()));
+            }
+            assertEquals(3 + 20 + 1, files().size());
+            assertTrue(git.status().isEmpty());
+
+            UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> git.materialize("nothing"));
+            assertInstanceOf(FileNotFoundException.class, e.getCause());
+            assertThrows(FileNotFoundException.class, () -> git.open("data/part3/missing"));
+        }
+    }
+
+    /**
+     * Staging a partly checked out folder keeps what was left out as it is in
+     * HEAD, while files that were checked out and then deleted are removed.
+     */
+    @Test
+    public void stagingKeepsFilesLeftOut() throws Exception {
+        try (Git git = new Git(root)) {
+            String commit = snapshot(git);
+            git.checkout(commit, List.of("src/main/util", "docs/*.md", "data/part1/f1"));
+            ObjectDatabase database = git.getObjectDatabase();
+
+            // nothing changed, so staging the folders gives the same trees
+            for (String path : new String[] { "src", "docs", "data" })
+                git.stage(path);
+            String same = git.commit("me", "same");
+            assertEquals(database.getCommit(commit).getTree(), database.getCommit(same).getTree());
+
+            write("src/main/util/C.java", "class C {}");
+            Files.delete(root.resolve("docs/guide.md"));
+            write("data/part1/f1", "edited");
+            for (String path : new String[] { "src", "docs", "data" })
+                git.stage(path);
+            String next = git.commit("me", "next");
+            assertEquals("[A src/main/util/C.java, R docs/guide.md, M data/part1/f1]",
+                    git.diff(commit, next).stream()
+                            .sorted((a, b) -> a.getType().compareTo(b.getType()))
+                            .toList().toString());
+            assertTrue(git.status().isEmpty());
+
+            // everything left out is still there in full
+            git.checkout(next);
+            assertEquals(200 + 7, files().size());
+            assertFalse(Files.exists(root.resolve("docs/guide.md")));
+            assertEquals("class ATest {}", Files.readString(root.resolve("src/test/ATest.java")));
+            assertEquals("notes", Files.readString(root.resolve("docs/notes.txt")));
+            assertEquals("data 11", Files.readString(root.resolve("data/part1/f11")));
+        }
+    }
+}
@@ -0,0 +1,172 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TreeTest {
+
+    @TempDir
+    Path folder;
+
+    private static final String[] NAMES = { "zeta", "Beta", "alpha", "m.txt", "m-txt", "m", "z9", "a10", "a2", "_x",
+            "delta", "Gamma", "omega", "kappa", "lambda", "epsilon", "sigma", "tau", "upsilon", "phi" };
+
+    /**
+     * Writes the same files under a new repository, in an order that isn't
+     * sorted.
+     */
+    private Git repository(String name) throws Exception {
+        Path root = folder.resolve(name);
+        for (String file : NAMES)
+            Files.createDirectories(root.resolve("dir/" + file));
+        for (String file : NAMES) {
+            Files.writeString(root.resolve("dir/" + file + "/inner"), file);
+            Files.writeString(root.resolve("dir/" + file + ".f"), file);
+        }
+        return new Git(root);
+    }
+
+    /**
+     * @return The hash of dir in the commit's tree
+     */
+    private static String dir(Git git, String commit) throws Exception {
+        ObjectDatabase database = git.getObjectDatabase();
+        for (Tree.Entry entry : database.getTree(database.getCommit(commit).getTree()).getEntries()) {
+            if (entry.getName().equals("dir"))
+                return entry.getHash();
+        }
+        throw new AssertionError("dir isn't in " + commit);
+    }
+
+    /**
+     * A folder hashes the same whether the commit builds its tree from staged
+     * files, or the folder is staged whole, serially or in parallel, and its
+     * entries are sorted by name.
+     */
+    @Test
+    public void folderTreesAreSortedAndStable() throws Exception {
+        Git byFile = repository("files");
+        for (String file : NAMES) {
+            byFile.stage("dir/" + file + ".f");
+            byFile.stage("dir/" + file + "/inner");
+        }
+        String built = dir(byFile, byFile.commit("me", "files"));
+
+        Git serial = repository("serial");
+        serial.stage("dir");
+        String staged = dir(serial, serial.commit("me", "serial"));
+
+        Git parallel = repository("parallel");
+        parallel.stage("dir", 4);
+        String stagedInParallel = dir(parallel, parallel.commit("me", "parallel"));
+
+        assertEquals(built, staged);
+        assertEquals(built, stagedInParallel);
+
+        List<String> names = new ArrayList<>();
+        for (Tree.Entry entry : serial.getObjectDatabase().getTree(staged).getEntries())
+            names.add(entry.getName());
+        List<String> sorted = new ArrayList<>(names);
+        sorted.sort(null);
+        assertEquals(2 * NAMES.length, names.size());
+        assertEquals(sorted, names);
+    }
+
+    /**
+     * Staging a folder reads each file once, however deep, keeps files with the
+     * same contents in different places, leaves hidden files out, and doesn't
+     * read unchanged files again the next time.
+     */
+    @Test
+    public void foldersAreStagedInOnePass() throws Exception {
+        Path root = folder.resolve("repo");
+        Git git = new Git(root);
+        FileTime past = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+        String[] files = { "dir/a.txt", "dir/sub/a.txt", "dir/sub/deeper/b.txt", "dir/sub/deeper/c.txt", "dir/d.txt" };
+        for (String file : files) {
+            Path path = root.resolve(file);
+            Files.createDirectories(path.getParent());
+            Files.writeString(path, file.endsWith("a.txt") ? "same" : file);
+            Files.setLastModifiedTime(path, past);
+        }
+        Files.writeString(root.resolve("dir/sub/.hidden"), "hidden");
+
+        git.getMetrics().reset();
+        git.stage("dir");
+        assertEquals(files.length, git.getMetrics().getFilesHashed());
+        String commit = git.commit("me", "dir");
+
+        ObjectDatabase database = git.getObjectDatabase();
+        String sub = null;
+        for (Tree.Entry entry : database.getTree(dir(git, commit)).getEntries()) {
+            if (entry.getName().equals("sub"))
+                sub = entry.getHash();
+        }
+        List<String> names = new ArrayList<>();
+        for (Tree.Entry entry : database.getTree(sub).getEntries())
+            names.add(entry.getName());
+        assertEquals(List.of("a.txt", "deeper"), names);
+
+        git.getMetrics().reset();
+        git.stage("dir");
+        assertEquals(0, git.getMetrics().getFilesHashed());
+        assertEquals(files.length, git.getMetrics().getFilesSkipped());
+        assertEquals(database.getCommit(commit).getTree(), database.getCommit(git.commit("me", "again")).getTree());
+    }
+
+    /**
+     * A parallel stage stores the same objects and commits the same tree as a
+     * serial one, and stops at a folder linked back into itself the same way.
+     */
+    @Test
+    public void parallelStageMatchesSerial() throws Exception {
+        Git[] gits = new Git[2];
+        for (int g = 0; g < 2; g++) {
+            Path root = folder.resolve("repo" + g);
+            for (int i = 0; i < 300; i++) {
+                Path file = root.resolve("top/d" + i % 7 + "/e" + i % 3 + "/f" + i + ".txt");
+                Files.createDirectories(file.getParent());
+                Files.writeString(file, i % 10 == 0 ? "duplicate" : "file " + i);
+            }
+            Files.writeString(root.resolve("single.txt"), "single");
+            gits[g] = new Git(root);
+        }
+        ObjectDatabase[] databases = { gits[0].getObjectDatabase(), gits[1].getObjectDatabase() };
+        List<Set<String>> stored = new ArrayList<>();
+        for (ObjectDatabase database : databases)
+            stored.add(database.getObjects().list());
+
+        gits[0].stage("top");
+        gits[0].stage("single.txt");
+        gits[1].stage("top", 8);
+        gits[1].stage("single.txt", 8);
+        // the commits that made the repositories have their own times, so only
+        // what staging added is compared
+        for (int g = 0; g < 2; g++) {
+            Set<String> added = databases[g].getObjects().list();
+            added.removeAll(stored.get(g));
+            stored.set(g, added);
+        }
+        assertEquals(stored.get(0), stored.get(1));
+        // 270 different files, the duplicate and single.txt, and 21 + 7 + 1 trees
+        assertEquals(272 + 29, stored.get(0).size());
+
+        String serial = gits[0].commit("me", "staged");
+        String parallel = gits[1].commit("me", "staged");
+        assertEquals(databases[0].getCommit(serial).getTree(), databases[1].getCommit(parallel).getTree());
+
+        for (int g = 0; g < 2; g++) {
+            Path root = gits[g].getRoot();
+            Files.createSymbolicLink(root.resolve("top/d0/loop"), root.resolve("top"));
+        }
+        assertThrows(IllegalStateException.class, () -> gits[0].stage("top"));
+        assertThrows(IllegalStateException.class, () -> gits[1].stage("top", 8));
+    }
+}
@@ -0,0 +1,197 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WatcherTest {
+
+    @TempDir
+    Path root;
+
+    /**
+     * A key signalling that the watch service dropped events
+     */
+    private static class OverflowKey implements WatchKey {
+        @Override
+        public boolean isValid() {
+            return false;
+        }
+
+        @Override
+        public List<WatchEvent<?>> pollEvents() {
+            return List.of(new WatchEvent<Object>() {
+                @Override
+                public WatchEvent.Kind<Object> kind() {
+                    return StandardWatchEventKinds.OVERFLOW;
+                }
+
+                @Override
+                public int count() {
+                    return 1;
+                }
+
+                @Override
+                public Object context() {
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        public boolean reset() {
+            return false;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public Watchable watchable() {
+            return null;
+        }
+    }
+
+    private static Diff diff(Git git) throws IOException {
+        return new Diff(git.getObjectDatabase(), Index.load(git.getRoot().resolve("git/index"), git.getRoot()));
+    }
+
+    private static String tree(Git git) throws IOException {
+        return git.getObjectDatabase().getCommit(git.resolve(Refs.HEAD)).getTree();
+    }
+
+    /**
+     * After the first status only the paths that changed are compared, and the
+     * result is the same as comparing everything.
+     */
+    @Test
+    public void statusOnlyComparesChangedPaths() throws Exception {
+        try (Git git = new Git(root)) {
+            for (int i = 0; i < 50; i++) {
+                Files.createDirectories(root.resolve("dir" + i % 5));
+                Files.writeString(root.resolve("dir" + i % 5 + "/file" + i), "file " + i);
+            }
+            git.stage("dir0");
+            git.commit("me", "files");
+            git.startWatching(1, TimeUnit.HOURS, false);
+            Watcher watcher = git.getWatcher();
+
+            List<Diff.Change> first = git.status();
+            assertEquals(1, watcher.getFullScans());
+            assertEquals(40, first.size());
+
+            Files.writeString(root.resolve("dir0/file0"), "changed");
+            Files.delete(root.resolve("dir1/file1"));
+            Files.writeString(root.resolve("new.txt"), "new");
+            List<Diff.Change> second = git.status();
+            assertEquals(1, watcher.getFullScans());
+            assertEquals(1, watcher.getIncrementalScans());
+            assertTrue(watcher.getPathsScanned() <= 5, watcher.getPathsScanned() + " paths compared");
+            assertEquals(diff(git).worktree(tree(git), root.toFile()).toString(), second.toString());
+            assertEquals(41, second.size());
+
+            // nothing changed, nothing compared
+            long scanned = watcher.getPathsScanned();
+            assertEquals(second.toString(), git.status().toString());
+            assertEquals(scanned, watcher.getPathsScanned());
+        }
+    }
+
+    /**
+     * Dropped events make the next status walk everything again, since a change
+     * may have been missed.
+     */
+    @Test
+    public void overflowMakesTheNextStatusRescan() throws Exception {
+        try (Git git = new Git(root)) {
+            git.startWatching(1, TimeUnit.HOURS, false);
+            Watcher watcher = git.getWatcher();
+            git.status();
+            git.status();
+            assertEquals(1, watcher.getFullScans());
+            assertEquals(1, watcher.getIncrementalScans());
+
+            assertTrue(watcher.handle(new OverflowKey()));
+            assertEquals(1, watcher.getOverflows());
+            git.status();
+            assertEquals(2, watcher.getFullScans());
+            git.status();
+            assertEquals(2, watcher.getFullScans());
+        }
+    }
+
+    /**
+     * A status that fails doesn't lose the changes it took from the dirty set.
+     */
+    @Test
+    public void failedStatusKeepsTheDirtyPaths() throws Exception {
+        try (Git git = new Git(root)) {
+            Files.writeString(root.resolve("a.txt"), "a");
+            git.stage("a.txt");
+            git.commit("me", "a");
+            git.startWatching(1, TimeUnit.HOURS, false);
+            Watcher watcher = git.getWatcher();
+            assertTrue(git.status().isEmpty());
+
+            Files.writeString(root.resolve("a.txt"), "changed");
+            Diff failing = new Diff(git.getObjectDatabase(), null) {
+                @Override
+                public List<Change> worktree(String tree, File root, Collection<String> paths) throws IOException {
+                    throw new IOException("failed");
+                }
+            };
+            assertThrows(IOException.class, () -> watcher.status(failing, tree(git)));
+
+            List<Diff.Change> changes = git.status();
+            assertEquals(1, changes.size());
+            assertEquals("a.txt", changes.get(0).getPath());
+            assertEquals(Diff.Change.Type.MODIFIED, changes.get(0).getType());
+            assertEquals(1, watcher.getFullScans());
+        }
+    }
+
+    /**
+     * A burst of changes calls the listener once, after it goes quiet.
+     */
+    @Test
+    public void burstsAreDebounced() throws Exception {
+        Files.createDirectories(root.resolve("git"));
+        Watcher watcher = new Watcher(root, root.resolve("git"));
+        AtomicInteger calls = new AtomicInteger();
+        watcher.setListener(calls::incrementAndGet);
+        watcher.start(300, TimeUnit.MILLISECONDS);
+        try {
+            for (int i = 0; i < 20; i++) {
+                Files.writeString(root.resolve("file" + i), "file " + i);
+                Thread.sleep(10);
+            }
+            assertEquals(0, calls.get());
+            for (int wait = 0; calls.get() == 0 && wait < 100; wait++)
+                Thread.sleep(50);
+            Thread.sleep(1000);
+            assertEquals(1, calls.get());
+            assertTrue(watcher.getEvents() >= 20);
+
+            // a later burst calls it again
+            Files.writeString(root.resolve("file0"), "again");
+            for (int wait = 0; calls.get() == 1 && wait < 100; wait++)
+                Thread.sleep(50);
+            assertEquals(2, calls.get());
+        } finally {
+            watcher.stop();
+        }
+    }
+}